@@ -0,0 +1,148 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.jpetrak.gate.jdbclookup.JdbcString2StringLR;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.Gate;
+import gate.Resource;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.Random;
+
+/**
+ * Helper methods shared by the benchmarks.
+ * 
+ * The LR is created directly instead of through the Factory, so all its
+ * parameters need to be set explicitly. The PRs are created through the
+ * Factory after registering just their class, so the benchmarks do not 
+ * need the plugin to be loaded and the CREOLE defaults are used for all 
+ * parameters not set by the benchmark.
+ * 
+ * @author Johann Petrak
+ */
+public class BenchmarkUtils {
+  
+  public static synchronized void initGate() throws Exception {
+    if (!Gate.isInitialised()) {
+      Gate.runInSandbox(true);
+      Gate.init();
+    }
+  }
+  
+  public static JdbcString2StringLR newString2StringLR(String jdbcUrl, String tableName) throws Exception {
+    initGate();
+    JdbcString2StringLR lr = new JdbcString2StringLR();
+    lr.setJdbcDriver("org.h2.Driver");
+    lr.setJdbcUrl(jdbcUrl);
+    lr.setJdbcUser("");
+    lr.setJdbcPassword("");
+    lr.setDbDirectoryUrl(new File(".").toURI().toURL());
+    lr.setTableName(tableName);
+    lr.setReadOnly(false);
+    lr.setKeyColumnName("key");
+    lr.setValueColumnName("value");
+    lr.init();
+    return lr;
+  }
+  
+  public static Resource newPR(Class<? extends Resource> cls, FeatureMap parms) throws Exception {
+    initGate();
+    Gate.getCreoleRegister().registerComponent(cls);
+    return Factory.createResource(cls.getName(), parms);
+  }
+  
+  public static Connection connect(String jdbcUrl) throws Exception {
+    Class.forName("org.h2.Driver");
+    return DriverManager.getConnection(jdbcUrl, "", "");
+  }
+  
+  /**
+   * Insert rows in batches and commit.
+   * 
+   * @param conn the connection
+   * @param insert the prepared insert statement
+   * @param n the number of rows, the batch is executed every 1000 rows
+   * @param row called to set the parameters for row i
+   * @throws Exception if something goes wrong
+   */
+  public static void insertRows(Connection conn, PreparedStatement insert, int n, RowSetter row) throws Exception {
+    conn.setAutoCommit(false);
+    for (int i = 0; i < n; i++) {
+      row.set(insert, i);
+      insert.addBatch();
+      if (i % 1000 == 999) {
+        insert.executeBatch();
+      }
+    }
+    insert.executeBatch();
+    conn.commit();
+    conn.setAutoCommit(true);
+  }
+  
+  public interface RowSetter {
+    void set(PreparedStatement st, int i) throws Exception;
+  }
+  
+  /**
+   * Create documents which consist of nAnns keys separated by spaces, each
+   * covered by a Lookup annotation. The keys are "key" followed by a random
+   * number below nKeys * 1.25, so about a fifth of the keys are not found
+   * if the keys from key0 to key(nKeys-1) are in the database.
+   * 
+   * @param nDocs the number of documents
+   * @param nAnns the number of annotations per document
+   * @param nKeys the number of keys in the database
+   * @param seed the random seed
+   * @return the documents
+   * @throws Exception if a document cannot be created
+   */
+  public static Document[] newDocuments(int nDocs, int nAnns, int nKeys, long seed) throws Exception {
+    initGate();
+    Random random = new Random(seed);
+    Document[] docs = new Document[nDocs];
+    int maxKey = nKeys + nKeys / 4;
+    for (int d = 0; d < nDocs; d++) {
+      StringBuilder sb = new StringBuilder();
+      long[] starts = new long[nAnns];
+      long[] ends = new long[nAnns];
+      for (int i = 0; i < nAnns; i++) {
+        if (i > 0) {
+          sb.append(' ');
+        }
+        starts[i] = sb.length();
+        sb.append("key").append(random.nextInt(maxKey));
+        ends[i] = sb.length();
+      }
+      docs[d] = Factory.newDocument(sb.toString());
+      AnnotationSet anns = docs[d].getAnnotations();
+      for (int i = 0; i < nAnns; i++) {
+        anns.add(starts[i], ends[i], "Lookup", Factory.newFeatureMap());
+      }
+    }
+    return docs;
+  }
+  
+}
@@ -0,0 +1,135 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.jpetrak.gate.jdbclookup.JdbcLookup;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for JdbcLookup to set the features of the annotations of a document
+ * from a column which contains a vector of numbers as a string like 
+ * "[0.1, 0.2]", with the s2adouble or s2ldouble conversion or without
+ * any conversion. The table is preloaded so that this mainly measures
+ * setFeaturesFromColumns.
+ * 
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColumnParsingBenchmark {
+  
+  @Param({"jdbc:h2:mem:parsingbench;DB_CLOSE_DELAY=-1"})
+  public String jdbcUrl;
+  
+  // the empty string means no conversion
+  @Param({"", "s2adouble", "s2ldouble"})
+  public String conversion;
+  
+  @Param({"100", "300"})
+  public int dimensions;
+  
+  @Param({"100"})
+  public int annsPerDocument;
+  
+  @Param({"10000"})
+  public int nKeys;
+  
+  private Connection conn;
+  private JdbcLookup pr;
+  private Document[] docs;
+  private int next = 0;
+  
+  @Setup
+  public void setup() throws Exception {
+    conn = BenchmarkUtils.connect(jdbcUrl);
+    Statement st = conn.createStatement();
+    st.execute("DROP TABLE IF EXISTS VECTORS");
+    st.execute("CREATE TABLE VECTORS (K VARCHAR, V VARCHAR)");
+    st.close();
+    final Random random = new Random(42);
+    BenchmarkUtils.insertRows(conn, conn.prepareStatement("INSERT INTO VECTORS VALUES(?,?)"),
+            nKeys, new BenchmarkUtils.RowSetter() {
+              @Override
+              public void set(PreparedStatement ps, int i) throws Exception {
+                double[] v = new double[dimensions];
+                for (int d = 0; d < dimensions; d++) {
+                  v[d] = random.nextGaussian();
+                }
+                ps.setString(1, "key" + i);
+                ps.setString(2, java.util.Arrays.toString(v));
+              }
+            });
+    
+    FeatureMap mappings = Factory.newFeatureMap();
+    mappings.put("V", conversion.isEmpty() ? "vector" : "vector|" + conversion);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("jdbcUrl", jdbcUrl);
+    parms.put("sqlQuery", "SELECT V FROM VECTORS WHERE K = ?");
+    parms.put("preload", true);
+    parms.put("preloadSqlQuery", "SELECT K, V FROM VECTORS");
+    parms.put("nameMappings", mappings);
+    pr = (JdbcLookup) BenchmarkUtils.newPR(JdbcLookup.class, parms);
+    pr.controllerExecutionStarted(null);
+    docs = BenchmarkUtils.newDocuments(16, annsPerDocument, nKeys, 42);
+  }
+  
+  @TearDown
+  public void tearDown() throws Exception {
+    pr.controllerExecutionFinished(null);
+    Factory.deleteResource(pr);
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+    conn.close();
+  }
+  
+  @Benchmark
+  public Document execute() throws Exception {
+    Document doc = docs[next];
+    next = (next + 1) % docs.length;
+    pr.setDocument(doc);
+    pr.execute();
+    return doc;
+  }
+  
+}
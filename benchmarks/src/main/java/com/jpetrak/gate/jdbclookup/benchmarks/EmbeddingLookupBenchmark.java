@@ -0,0 +1,161 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.jpetrak.gate.jdbclookup.MapdbLookup;
+import com.jpetrak.gate.jdbclookup.VectorEncoding;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for MapdbLookup to add embedding vectors to a document, for the 
+ * loading modes which keep the embeddings in memory and memory mapping.
+ * The file is created like convertW2V2mdb.groovy does it, for each of its
+ * encodings. The file size, the time it took to load the embeddings and 
+ * the heap used afterwards are printed once in the setup.
+ * 
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmbeddingLookupBenchmark {
+  
+  @Param({"MEMORY_MAPPED", "COPY2MEMORY", "EMBEDDING_MATRIX"})
+  public String loadingMode;
+  
+  // how the vectors are stored, like the encoding argument of convertW2V2mdb.groovy
+  @Param({"DOUBLE", "FLOAT32", "FLOAT16", "INT8"})
+  public String encoding;
+  
+  @Param({"300"})
+  public int dimensions;
+  
+  @Param({"100"})
+  public int annsPerDocument;
+  
+  @Param({"100000"})
+  public int nKeys;
+  
+  private File dbFile;
+  private MapdbLookup pr;
+  private Document[] docs;
+  private int next = 0;
+  
+  @Setup
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void setup() throws Exception {
+    dbFile = File.createTempFile("embeddinglookupbench", ".mapdb");
+    dbFile.delete();
+    DB db = DBMaker.fileDB(dbFile).fileMmapEnable().make();
+    Serializer valueSerializer = encoding.equals("DOUBLE") ? Serializer.DOUBLE_ARRAY : 
+            encoding.equals("FLOAT32") ? Serializer.FLOAT_ARRAY : Serializer.BYTE_ARRAY;
+    HTreeMap<String, Object> map = db.hashMap("map", Serializer.STRING, valueSerializer).create();
+    HTreeMap<String, Object> config = db.hashMap("config", Serializer.STRING, Serializer.JAVA).create();
+    config.put("n", dimensions);
+    config.put("keySerializer", "STRING");
+    config.put("valueSerializer", encoding.equals("DOUBLE") ? "DOUBLE_ARRAY" : 
+            encoding.equals("FLOAT32") ? "FLOAT_ARRAY" : "BYTE_ARRAY");
+    config.put("valueEncoding", encoding.equals("FLOAT16") || encoding.equals("INT8") ? encoding : "NONE");
+    Random random = new Random(42);
+    for (int i = 0; i < nKeys; i++) {
+      float[] v = new float[dimensions];
+      for (int d = 0; d < dimensions; d++) {
+        v[d] = (float) random.nextGaussian();
+      }
+      if (encoding.equals("DOUBLE")) {
+        double[] dv = new double[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+          dv[d] = v[d];
+        }
+        map.put("key" + i, dv);
+      } else if (encoding.equals("FLOAT32")) {
+        map.put("key" + i, v);
+      } else {
+        map.put("key" + i, VectorEncoding.valueOf(encoding).encode(v));
+      }
+    }
+    db.close();
+    
+    docs = BenchmarkUtils.newDocuments(16, annsPerDocument, nKeys, 42);
+    long heapBefore = usedHeap();
+    long startTime = System.nanoTime();
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("mapDbFileUrl", dbFile.toURI().toURL());
+    parms.put("loadingMode", MapdbLookup.LoadingMode.valueOf(loadingMode));
+    pr = (MapdbLookup) BenchmarkUtils.newPR(MapdbLookup.class, parms);
+    pr.controllerExecutionStarted(null);
+    // loading happens when the first document gets processed
+    pr.setDocument(docs[0]);
+    pr.execute();
+    long loadMillis = (System.nanoTime() - startTime) / 1000000;
+    System.err.println("INFO: " + loadingMode + "/" + encoding + " loaded " + nKeys + " x " + dimensions + " in " + loadMillis + 
+            " ms, heap used: " + ((usedHeap() - heapBefore) >> 20) + " MB, file size: " + (dbFile.length() >> 20) + " MB");
+  }
+  
+  private static long usedHeap() {
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+  
+  @TearDown
+  public void tearDown() throws Exception {
+    pr.controllerExecutionFinished(null);
+    Factory.deleteResource(pr);
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+    dbFile.delete();
+  }
+  
+  @Benchmark
+  public Document execute() throws Exception {
+    Document doc = docs[next];
+    next = (next + 1) % docs.length;
+    pr.setDocument(doc);
+    pr.execute();
+    return doc;
+  }
+  
+}
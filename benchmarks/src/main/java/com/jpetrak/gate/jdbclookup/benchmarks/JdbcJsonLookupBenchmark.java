@@ -0,0 +1,169 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.jpetrak.gate.jdbclookup.JdbcJsonLookup;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for JdbcJsonLookup to process a document, for JSON stored as text,
+ * Smile or CBOR and with or without projecting the JSON to a few fields.
+ * The result cache is disabled so that every row gets decoded.
+ * 
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JdbcJsonLookupBenchmark {
+  
+  @Param({"jdbc:h2:mem:jsonbench;DB_CLOSE_DELAY=-1;MULTI_THREADED=1"})
+  public String jdbcUrl;
+  
+  @Param({"TEXT", "SMILE", "CBOR"})
+  public String format;
+  
+  // comma separated jsonFields, the empty string to decode everything
+  @Param({"", "name,/meta/score"})
+  public String fields;
+  
+  @Param({"100"})
+  public int annsPerDocument;
+  
+  @Param({"10000"})
+  public int nKeys;
+  
+  private Connection conn;
+  private JdbcJsonLookup pr;
+  private Document[] docs;
+  private int next = 0;
+  
+  @Setup
+  public void setup() throws Exception {
+    conn = BenchmarkUtils.connect(jdbcUrl);
+    Statement st = conn.createStatement();
+    st.execute("DROP TABLE IF EXISTS JSONBENCH");
+    st.execute("CREATE TABLE JSONBENCH (K VARCHAR, J " + 
+            (format.equals("TEXT") ? "VARCHAR" : "VARBINARY") + ")");
+    st.execute("CREATE INDEX JSONBENCHIDX ON JSONBENCH (K)");
+    st.close();
+    final ObjectMapper mapper;
+    if (format.equals("SMILE")) {
+      mapper = new ObjectMapper(new SmileFactory());
+    } else if (format.equals("CBOR")) {
+      mapper = new ObjectMapper(new CBORFactory());
+    } else {
+      mapper = new ObjectMapper();
+    }
+    BenchmarkUtils.insertRows(conn, conn.prepareStatement("INSERT INTO JSONBENCH VALUES(?,?)"),
+            nKeys, new BenchmarkUtils.RowSetter() {
+              @Override
+              public void set(PreparedStatement ps, int i) throws Exception {
+                ps.setString(1, "key" + i);
+                if (format.equals("TEXT")) {
+                  ps.setString(2, mapper.writeValueAsString(newJson(i)));
+                } else {
+                  ps.setBytes(2, mapper.writeValueAsBytes(newJson(i)));
+                }
+              }
+            });
+    
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("jdbcUrl", jdbcUrl);
+    parms.put("sqlQuery", "SELECT J FROM JSONBENCH WHERE K = ?");
+    parms.put("cacheSize", 0);
+    parms.put("processingMode", JdbcJsonLookup.ProcessingMode.AddFeatures);
+    parms.put("jsonFormat", JdbcJsonLookup.JsonFormat.valueOf(format));
+    if (!fields.isEmpty()) {
+      parms.put("jsonFields", new ArrayList<String>(Arrays.asList(fields.split(","))));
+    }
+    pr = (JdbcJsonLookup) BenchmarkUtils.newPR(JdbcJsonLookup.class, parms);
+    pr.controllerExecutionStarted(null);
+    docs = BenchmarkUtils.newDocuments(16, annsPerDocument, nKeys, 42);
+  }
+  
+  // a JSON object with some nesting and a few fields which are not projected
+  private static Map<String, Object> newJson(int i) {
+    Map<String, Object> json = new LinkedHashMap<String, Object>();
+    json.put("name", "entity" + i);
+    json.put("id", i);
+    json.put("description", "A longer description of entity " + i + " which is usually not needed");
+    List<Object> aliases = new ArrayList<Object>();
+    for (int k = 0; k < 5; k++) {
+      aliases.add("alias" + k + "of" + i);
+    }
+    json.put("aliases", aliases);
+    Map<String, Object> meta = new LinkedHashMap<String, Object>();
+    meta.put("score", i / 100.0);
+    meta.put("source", "benchmark");
+    meta.put("tags", Arrays.asList("a", "b", "c"));
+    json.put("meta", meta);
+    return json;
+  }
+  
+  @TearDown
+  public void tearDown() throws Exception {
+    pr.controllerExecutionFinished(null);
+    Factory.deleteResource(pr);
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+    conn.close();
+  }
+  
+  @Benchmark
+  public Document execute() throws Exception {
+    Document doc = docs[next];
+    next = (next + 1) % docs.length;
+    pr.setDocument(doc);
+    pr.execute();
+    return doc;
+  }
+  
+}
@@ -0,0 +1,157 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.jpetrak.gate.jdbclookup.JdbcLookup;
+import com.jpetrak.gate.jdbclookup.JdbcLookupBase;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for JdbcLookup to process a document against an embedded H2 
+ * database, for each processing mode and each way of looking up the keys.
+ * 
+ * The lookups for the annotations of a document need a connection which 
+ * is only borrowed while a document is executed, so this runs the PR on 
+ * whole documents instead of calling doLookup directly. The result cache
+ * is disabled so that every distinct key of a document is looked up.
+ * Every third key has two rows.
+ * 
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JdbcLookupBenchmark {
+  
+  @Param({"jdbc:h2:mem:jdbclookupbench;DB_CLOSE_DELAY=-1;MULTI_THREADED=1"})
+  public String jdbcUrl;
+  
+  @Param({"AddFeaturesFromFirst", "UpdateFeatures", "AddAnnotations"})
+  public String processingMode;
+  
+  // NONE: one query per key, IN_LIST and H2_TABLE: batch queries, 
+  // PRELOAD: the table is loaded into memory, ASYNC: asynchronous single
+  // key queries, PARALLEL: the keys are looked up in parallel chunks
+  @Param({"NONE", "IN_LIST", "H2_TABLE", "PRELOAD", "ASYNC", "PARALLEL"})
+  public String lookupMode;
+  
+  @Param({"100"})
+  public int annsPerDocument;
+  
+  @Param({"10000"})
+  public int nKeys;
+  
+  private static final String OUTPUT_SET = "Out";
+  
+  private Connection conn;
+  private JdbcLookup pr;
+  private Document[] docs;
+  private int next = 0;
+  
+  @Setup
+  public void setup() throws Exception {
+    conn = BenchmarkUtils.connect(jdbcUrl);
+    Statement st = conn.createStatement();
+    st.execute("DROP TABLE IF EXISTS LOOKUPBENCH");
+    st.execute("CREATE TABLE LOOKUPBENCH (K VARCHAR, A VARCHAR, B INT)");
+    st.execute("CREATE INDEX LOOKUPBENCHIDX ON LOOKUPBENCH (K)");
+    st.close();
+    BenchmarkUtils.insertRows(conn, conn.prepareStatement("INSERT INTO LOOKUPBENCH VALUES(?,?,?)"),
+            nKeys + nKeys / 3, new BenchmarkUtils.RowSetter() {
+              @Override
+              public void set(PreparedStatement ps, int i) throws Exception {
+                // the rows after the first nKeys are second rows for every third key
+                int k = i < nKeys ? i : (i - nKeys) * 3;
+                ps.setString(1, "key" + k);
+                ps.setString(2, "value" + i);
+                ps.setInt(3, i);
+              }
+            });
+    
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("jdbcUrl", jdbcUrl);
+    parms.put("sqlQuery", "SELECT A, B FROM LOOKUPBENCH WHERE K = ?");
+    parms.put("cacheSize", 0);
+    parms.put("outputAnnotationSet", OUTPUT_SET);
+    parms.put("processingMode", JdbcLookup.ProcessingMode.valueOf(processingMode));
+    if (lookupMode.equals("IN_LIST")) {
+      parms.put("batchMode", JdbcLookupBase.BatchMode.IN_LIST);
+      parms.put("batchSqlQuery", "SELECT K, A, B FROM LOOKUPBENCH WHERE K IN (!!KEYS!!)");
+    } else if (lookupMode.equals("H2_TABLE")) {
+      parms.put("batchMode", JdbcLookupBase.BatchMode.H2_TABLE);
+      parms.put("batchSqlQuery", 
+              "SELECT K, A, B FROM LOOKUPBENCH WHERE K IN (SELECT X FROM TABLE(X VARCHAR = !!KEYS!!))");
+    } else if (lookupMode.equals("PRELOAD")) {
+      parms.put("preload", true);
+      parms.put("preloadSqlQuery", "SELECT K, A, B FROM LOOKUPBENCH");
+    } else if (lookupMode.equals("ASYNC")) {
+      parms.put("asyncLookups", 8);
+    } else if (lookupMode.equals("PARALLEL")) {
+      parms.put("parallelThreshold", 1);
+      parms.put("parallelChunkSize", 25);
+    }
+    pr = (JdbcLookup) BenchmarkUtils.newPR(JdbcLookup.class, parms);
+    pr.controllerExecutionStarted(null);
+    docs = BenchmarkUtils.newDocuments(16, annsPerDocument, nKeys, 42);
+  }
+  
+  @TearDown
+  public void tearDown() throws Exception {
+    pr.controllerExecutionFinished(null);
+    Factory.deleteResource(pr);
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+    conn.close();
+  }
+  
+  @Benchmark
+  public Document execute() throws Exception {
+    Document doc = docs[next];
+    next = (next + 1) % docs.length;
+    // only keep the annotations from this run for AddAnnotations
+    doc.removeAnnotationSet(OUTPUT_SET);
+    pr.setDocument(doc);
+    pr.execute();
+    return doc;
+  }
+  
+}
@@ -0,0 +1,154 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TCP proxy on the loopback interface which delays everything the client
+ * sends by a fixed time before passing it on to the server. Put in front 
+ * of an H2 TCP server, each query then takes at least that much longer,
+ * like a round trip to a remote database.
+ * 
+ * Data is forwarded in the chunks in which it is read, and the client of
+ * a database protocol waits for the answer before it sends the next 
+ * request, so each request is delayed once.
+ * 
+ * @author Johann Petrak
+ */
+public class LatencyProxy implements Runnable {
+  
+  private final ServerSocket serverSocket;
+  private final int targetPort;
+  private final long delayMicros;
+  private final List<Socket> sockets = new ArrayList<Socket>();
+  private volatile boolean running = true;
+  
+  /**
+   * Start a proxy on a free port.
+   * 
+   * @param targetPort the port of the server on the loopback interface
+   * @param delayMicros the delay for each request in microseconds
+   * @throws IOException if the server socket cannot be created
+   */
+  public LatencyProxy(int targetPort, long delayMicros) throws IOException {
+    this.targetPort = targetPort;
+    this.delayMicros = delayMicros;
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread t = new Thread(this, "LatencyProxy-accept");
+    t.setDaemon(true);
+    t.start();
+  }
+  
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+  
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        Socket client = serverSocket.accept();
+        Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+        client.setTcpNoDelay(true);
+        server.setTcpNoDelay(true);
+        synchronized (sockets) {
+          sockets.add(client);
+          sockets.add(server);
+        }
+        pump(client, server, delayMicros);
+        pump(server, client, 0);
+      } catch (IOException ex) {
+        if (running) {
+          System.err.println("WARNING: latency proxy could not accept a connection: " + ex);
+        }
+      }
+    }
+  }
+  
+  private void pump(final Socket from, final Socket to, final long delay) throws IOException {
+    final InputStream in = from.getInputStream();
+    final OutputStream out = to.getOutputStream();
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+          int n;
+          while ((n = in.read(buffer)) >= 0) {
+            if (delay > 0) {
+              sleepMicros(delay);
+            }
+            out.write(buffer, 0, n);
+            out.flush();
+          }
+        } catch (IOException ex) {
+          // the connection was closed
+        } finally {
+          closeQuietly(from);
+          closeQuietly(to);
+        }
+      }
+    }, "LatencyProxy-pump");
+    t.setDaemon(true);
+    t.start();
+  }
+  
+  private static void sleepMicros(long micros) {
+    long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+    long left;
+    while ((left = end - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(left);
+    }
+  }
+  
+  private static void closeQuietly(Socket s) {
+    try {
+      s.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+  }
+  
+  public void close() {
+    running = false;
+    try {
+      serverSocket.close();
+    } catch (IOException ex) {
+      // ignore
+    }
+    synchronized (sockets) {
+      for (Socket s : sockets) {
+        closeQuietly(s);
+      }
+      sockets.clear();
+    }
+  }
+  
+}
@@ -0,0 +1,345 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.jpetrak.gate.jdbclookup.JdbcJsonLookup;
+import com.jpetrak.gate.jdbclookup.JdbcLookup;
+import com.jpetrak.gate.jdbclookup.MapdbLookup;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.LanguageAnalyser;
+import gate.Resource;
+import gate.creole.ControllerAwarePR;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.h2.tools.Server;
+
+/**
+ * End-to-end load test: runs a number of duplicates of JdbcLookup, 
+ * JdbcJsonLookup or MapdbLookup, each on its own thread, over a synthetic 
+ * corpus with Zipf distributed keys and reports documents per second, the
+ * 50th and 99th percentile of the time per document and the heap use.
+ * 
+ * The database is an H2 file database which is accessed through an H2 
+ * TCP server on the loopback interface, optionally behind a LatencyProxy 
+ * which adds a delay to every request, to stand in for a remote database.
+ * 
+ * Run with e.g.
+ * <pre>
+ * java -cp target/benchmarks.jar com.jpetrak.gate.jdbclookup.benchmarks.LoadTest \
+ *   -pr JdbcLookup -duplicates 4 -latencyMicros 500 -set batchMode=IN_LIST
+ * </pre>
+ * Options (defaults in parentheses): -pr (JdbcLookup), -duplicates (1), 
+ * -docs (1000), -warmupDocs (docs/10), -annotations per document (200), 
+ * -keys (100000), -zipf exponent (1.0), -missRate (0.1), -latencyMicros (0),
+ * -seed (42), -dir for the database files (a new temporary directory) and
+ * -set name=value, repeatable, to set any parameter of the PR.
+ * 
+ * @author Johann Petrak
+ */
+public class LoadTest {
+  
+  private String prName = "JdbcLookup";
+  private int nDuplicates = 1;
+  private int nDocs = 1000;
+  private int nWarmupDocs = -1;
+  private int nAnns = 200;
+  private int nKeys = 100000;
+  private double zipf = 1.0;
+  private double missRate = 0.1;
+  private long latencyMicros = 0;
+  private long seed = 42;
+  private File dir = null;
+  private final List<String> settings = new ArrayList<String>();
+  
+  public static void main(String[] args) throws Exception {
+    LoadTest test = new LoadTest();
+    for (int i = 0; i < args.length; i++) {
+      String opt = args[i];
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for option " + opt);
+      }
+      String val = args[++i];
+      if (opt.equals("-pr")) {
+        test.prName = val;
+      } else if (opt.equals("-duplicates")) {
+        test.nDuplicates = Integer.parseInt(val);
+      } else if (opt.equals("-docs")) {
+        test.nDocs = Integer.parseInt(val);
+      } else if (opt.equals("-warmupDocs")) {
+        test.nWarmupDocs = Integer.parseInt(val);
+      } else if (opt.equals("-annotations")) {
+        test.nAnns = Integer.parseInt(val);
+      } else if (opt.equals("-keys")) {
+        test.nKeys = Integer.parseInt(val);
+      } else if (opt.equals("-zipf")) {
+        test.zipf = Double.parseDouble(val);
+      } else if (opt.equals("-missRate")) {
+        test.missRate = Double.parseDouble(val);
+      } else if (opt.equals("-latencyMicros")) {
+        test.latencyMicros = Long.parseLong(val);
+      } else if (opt.equals("-seed")) {
+        test.seed = Long.parseLong(val);
+      } else if (opt.equals("-dir")) {
+        test.dir = new File(val);
+      } else if (opt.equals("-set")) {
+        test.settings.add(val);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + opt);
+      }
+    }
+    if (test.nWarmupDocs < 0) {
+      test.nWarmupDocs = test.nDocs / 10;
+    }
+    test.run();
+    System.exit(0);
+  }
+  
+  private void run() throws Exception {
+    BenchmarkUtils.initGate();
+    if (dir == null) {
+      dir = Files.createTempDirectory("jdbclookup-loadtest").toFile();
+    }
+    dir.mkdirs();
+    String dbPath = new File(dir, "loadtest").getAbsolutePath();
+    File mapdbFile = new File(dir, "loadtest.mapdb");
+    
+    System.err.println("INFO: creating the database with " + nKeys + " keys in " + dir);
+    Connection conn = BenchmarkUtils.connect("jdbc:h2:" + dbPath);
+    SyntheticCorpus.createTables(conn, nKeys);
+    conn.close();
+    if (prName.equals("MapdbLookup")) {
+      mapdbFile.delete();
+      SyntheticCorpus.createMapdb(mapdbFile, nKeys);
+    }
+    
+    Server server = Server.createTcpServer("-tcpPort", String.valueOf(freePort())).start();
+    LatencyProxy proxy = null;
+    int port = server.getPort();
+    if (latencyMicros > 0) {
+      proxy = new LatencyProxy(server.getPort(), latencyMicros);
+      port = proxy.getPort();
+    }
+    String jdbcUrl = "jdbc:h2:tcp://localhost:" + port + "/" + dbPath;
+    
+    List<LanguageAnalyser> prs = new ArrayList<LanguageAnalyser>();
+    try {
+      LanguageAnalyser pr = (LanguageAnalyser) BenchmarkUtils.newPR(prClass(), parameters(jdbcUrl, mapdbFile));
+      prs.add(pr);
+      for (int i = 1; i < nDuplicates; i++) {
+        prs.add((LanguageAnalyser) Factory.duplicate(pr));
+      }
+      
+      SyntheticCorpus corpus = new SyntheticCorpus(nKeys, zipf, missRate, seed);
+      System.err.println("INFO: creating " + (nWarmupDocs + nDocs) + " documents with " + nAnns + " annotations");
+      Document[] warmupDocs = newDocuments(corpus, nWarmupDocs);
+      Document[] docs = newDocuments(corpus, nDocs);
+      
+      for (LanguageAnalyser p : prs) {
+        ((ControllerAwarePR) p).controllerExecutionStarted(null);
+      }
+      process(prs, warmupDocs);
+      for (Document doc : warmupDocs) {
+        Factory.deleteResource(doc);
+      }
+      
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        pool.resetPeakUsage();
+      }
+      long startTime = System.nanoTime();
+      long[] nanos = process(prs, docs);
+      long totalNanos = System.nanoTime() - startTime;
+      long peakHeap = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          peakHeap += pool.getPeakUsage().getUsed();
+        }
+      }
+      for (LanguageAnalyser p : prs) {
+        ((ControllerAwarePR) p).controllerExecutionFinished(null);
+      }
+      System.gc();
+      long usedHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      
+      Arrays.sort(nanos);
+      double seconds = totalNanos / 1e9;
+      System.out.println(String.format(Locale.ROOT,
+              "RESULT pr=%s duplicates=%d latencyMicros=%d settings=%s docs=%d annotations=%d keys=%d zipf=%.2f " +
+              "docsPerSec=%.1f annotationsPerSec=%.0f docMsP50=%.3f docMsP99=%.3f docMsMax=%.3f " +
+              "peakHeapMB=%.1f heapAfterGcMB=%.1f",
+              prName, nDuplicates, latencyMicros, settings, nDocs, nAnns, nKeys, zipf,
+              nDocs / seconds, (double) nDocs * nAnns / seconds,
+              percentile(nanos, 0.5) / 1e6, percentile(nanos, 0.99) / 1e6, nanos[nanos.length - 1] / 1e6,
+              peakHeap / 1048576.0, usedHeap / 1048576.0));
+      for (Document doc : docs) {
+        Factory.deleteResource(doc);
+      }
+    } finally {
+      for (int i = prs.size() - 1; i >= 0; i--) {
+        Factory.deleteResource(prs.get(i));
+      }
+      if (proxy != null) {
+        proxy.close();
+      }
+      server.stop();
+    }
+  }
+  
+  private Document[] newDocuments(SyntheticCorpus corpus, int n) throws Exception {
+    Document[] docs = new Document[n];
+    for (int i = 0; i < n; i++) {
+      docs[i] = corpus.newDocument(nAnns);
+    }
+    return docs;
+  }
+  
+  // Process all documents with one thread per PR and return the time 
+  // taken for each document.
+  private long[] process(List<LanguageAnalyser> prs, final Document[] docs) throws Exception {
+    final long[] nanos = new long[docs.length];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (final LanguageAnalyser pr : prs) {
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          int i;
+          while ((i = next.getAndIncrement()) < docs.length && error.get() == null) {
+            long start = System.nanoTime();
+            try {
+              pr.setDocument(docs[i]);
+              pr.execute();
+            } catch (Throwable ex) {
+              error.compareAndSet(null, ex);
+            }
+            nanos[i] = System.nanoTime() - start;
+          }
+        }
+      }, "LoadTest-" + pr.getName());
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    if (error.get() != null) {
+      throw new RuntimeException("Error processing a document", error.get());
+    }
+    return nanos;
+  }
+  
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int i = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+  }
+  
+  private static int freePort() throws Exception {
+    ServerSocket s = new ServerSocket(0);
+    int port = s.getLocalPort();
+    s.close();
+    return port;
+  }
+  
+  private Class<? extends Resource> prClass() {
+    if (prName.equals("JdbcLookup")) {
+      return JdbcLookup.class;
+    } else if (prName.equals("JdbcJsonLookup")) {
+      return JdbcJsonLookup.class;
+    } else if (prName.equals("MapdbLookup")) {
+      return MapdbLookup.class;
+    }
+    throw new IllegalArgumentException("Unknown PR " + prName);
+  }
+  
+  private FeatureMap parameters(String jdbcUrl, File mapdbFile) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    if (prName.equals("JdbcLookup")) {
+      parms.put("jdbcUrl", jdbcUrl);
+      parms.put("sqlQuery", "SELECT A, B FROM LOOKUP WHERE K = ?");
+      parms.put("batchSqlQuery", "SELECT K, A, B FROM LOOKUP WHERE K IN (!!KEYS!!)");
+      parms.put("preloadSqlQuery", "SELECT K, A, B FROM LOOKUP");
+    } else if (prName.equals("JdbcJsonLookup")) {
+      parms.put("jdbcUrl", jdbcUrl);
+      parms.put("sqlQuery", "SELECT J FROM LOOKUPJSON WHERE K = ?");
+      parms.put("batchSqlQuery", "SELECT K, J FROM LOOKUPJSON WHERE K IN (!!KEYS!!)");
+    } else {
+      parms.put("mapDbFileUrl", mapdbFile.toURI().toURL());
+    }
+    for (String setting : settings) {
+      int eq = setting.indexOf('=');
+      if (eq < 1) {
+        throw new IllegalArgumentException("Setting must be name=value: " + setting);
+      }
+      String name = setting.substring(0, eq);
+      parms.put(name, convert(prClass(), name, setting.substring(eq + 1)));
+    }
+    return parms;
+  }
+  
+  // convert the string value to the type of the parameter setter
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Object convert(Class<?> cls, String name, String value) throws Exception {
+    String setter = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    for (Method m : cls.getMethods()) {
+      if (m.getName().equals(setter) && m.getParameterTypes().length == 1) {
+        Class<?> type = m.getParameterTypes()[0];
+        if (type == String.class) {
+          return value;
+        } else if (type == Integer.class || type == int.class) {
+          return Integer.valueOf(value);
+        } else if (type == Long.class || type == long.class) {
+          return Long.valueOf(value);
+        } else if (type == Double.class || type == double.class) {
+          return Double.valueOf(value);
+        } else if (type == Boolean.class || type == boolean.class) {
+          return Boolean.valueOf(value);
+        } else if (type.isEnum()) {
+          return Enum.valueOf((Class<Enum>) type, value);
+        } else if (type == URL.class) {
+          return value.contains(":") ? new URL(value) : new File(value).toURI().toURL();
+        } else if (List.class.isAssignableFrom(type)) {
+          return new ArrayList<String>(Arrays.asList(value.split(",")));
+        }
+        throw new IllegalArgumentException("Cannot set parameter " + name + " of type " + type.getName());
+      }
+    }
+    throw new IllegalArgumentException("No parameter " + name + " for " + cls.getName());
+  }
+  
+}
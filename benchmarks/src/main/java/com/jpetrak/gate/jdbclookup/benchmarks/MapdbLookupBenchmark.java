@@ -0,0 +1,166 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jpetrak.gate.jdbclookup.MapdbLookup;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for MapdbLookup to process a document, for each loading mode and
+ * each mapping mode. The values in the map are strings for DIRECT, maps
+ * for MAP_TO_FEATURES and double arrays for SEQUENCE_TO_FEATURES, stored 
+ * either with the generic default serializer or with STRING, JSON and 
+ * DOUBLE_ARRAY serializers declared in the config map.
+ * 
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapdbLookupBenchmark {
+  
+  @Param({"MEMORY_MAPPED", "FILE_ONLY", "COPY2MEMORY"})
+  public String loadingMode;
+  
+  @Param({"DIRECT", "MAP_TO_FEATURES", "SEQUENCE_TO_FEATURES"})
+  public String mappingMode;
+  
+  // DEFAULT stores everything with the generic MapDB serializer, SPECIFIC
+  // uses STRING, JSON or DOUBLE_ARRAY values depending on the mapping mode
+  @Param({"DEFAULT", "SPECIFIC"})
+  public String serializers;
+  
+  @Param({"100"})
+  public int dimensions;
+  
+  @Param({"100"})
+  public int annsPerDocument;
+  
+  @Param({"100000"})
+  public int nKeys;
+  
+  private File dbFile;
+  private MapdbLookup pr;
+  private Document[] docs;
+  private int next = 0;
+  private final ObjectMapper mapper = new ObjectMapper();
+  
+  @Setup
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void setup() throws Exception {
+    dbFile = File.createTempFile("mapdblookupbench", ".mapdb");
+    dbFile.delete();
+    DB db = DBMaker.fileDB(dbFile).fileMmapEnable().make();
+    HTreeMap<String, Object> map;
+    if (serializers.equals("SPECIFIC")) {
+      String valueSerializer = mappingMode.equals("DIRECT") ? "STRING" : 
+              mappingMode.equals("MAP_TO_FEATURES") ? "JSON" : "DOUBLE_ARRAY";
+      map = db.hashMap("map", Serializer.STRING, 
+              valueSerializer.equals("DOUBLE_ARRAY") ? (Serializer) Serializer.DOUBLE_ARRAY : Serializer.STRING).create();
+      HTreeMap<String, String> config = db.hashMap("config", Serializer.STRING, Serializer.STRING).create();
+      config.put("keySerializer", "STRING");
+      config.put("valueSerializer", valueSerializer);
+    } else {
+      map = (HTreeMap<String, Object>) db.hashMap("map").create();
+    }
+    Random random = new Random(42);
+    for (int i = 0; i < nKeys; i++) {
+      Object value = newValue(i, random);
+      if (value instanceof Map && serializers.equals("SPECIFIC")) {
+        value = mapper.writeValueAsString(value);
+      }
+      map.put("key" + i, value);
+    }
+    db.close();
+    
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("mapDbFileUrl", dbFile.toURI().toURL());
+    parms.put("loadingMode", MapdbLookup.LoadingMode.valueOf(loadingMode));
+    parms.put("mappingMode", MapdbLookup.MappingMode.valueOf(mappingMode));
+    pr = (MapdbLookup) BenchmarkUtils.newPR(MapdbLookup.class, parms);
+    pr.controllerExecutionStarted(null);
+    docs = BenchmarkUtils.newDocuments(16, annsPerDocument, nKeys, 42);
+  }
+  
+  private Object newValue(int i, Random random) {
+    if (mappingMode.equals("DIRECT")) {
+      return "value" + i;
+    } else if (mappingMode.equals("MAP_TO_FEATURES")) {
+      Map<String, Object> m = new HashMap<String, Object>();
+      m.put("name", "entity" + i);
+      m.put("id", i);
+      m.put("score", random.nextDouble());
+      return m;
+    } else {
+      double[] v = new double[dimensions];
+      for (int d = 0; d < dimensions; d++) {
+        v[d] = random.nextGaussian();
+      }
+      return v;
+    }
+  }
+  
+  @TearDown
+  public void tearDown() throws Exception {
+    pr.controllerExecutionFinished(null);
+    Factory.deleteResource(pr);
+    for (Document doc : docs) {
+      Factory.deleteResource(doc);
+    }
+    dbFile.delete();
+  }
+  
+  @Benchmark
+  public Document execute() throws Exception {
+    Document doc = docs[next];
+    next = (next + 1) % docs.length;
+    pr.setDocument(doc);
+    pr.execute();
+    return doc;
+  }
+  
+}
@@ -0,0 +1,61 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * The main class of the benchmarks jar: takes the same options as the
+ * standard JMH main class, but always adds the GC profiler (-prof gc), so
+ * every run also reports the allocation rate and bytes allocated per 
+ * operation (gc.alloc.rate.norm).
+ * 
+ * @author Johann Petrak
+ */
+public class RunBenchmarks {
+  
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmdOptions = new CommandLineOptions(args);
+    if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams() ||
+            cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    OptionsBuilder builder = new OptionsBuilder();
+    builder.parent(cmdOptions);
+    boolean haveGc = false;
+    for (ProfilerConfig profiler : cmdOptions.getProfilers()) {
+      if (profiler.getKlass().equals("gc") || profiler.getKlass().equals(GCProfiler.class.getName())) {
+        haveGc = true;
+      }
+    }
+    if (!haveGc) {
+      builder.addProfiler(GCProfiler.class);
+    }
+    Options options = builder.build();
+    new Runner(options).run();
+  }
+  
+}
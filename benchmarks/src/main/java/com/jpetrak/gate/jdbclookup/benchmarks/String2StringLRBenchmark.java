@@ -0,0 +1,95 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import com.jpetrak.gate.jdbclookup.JdbcString2StringLR;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of JdbcString2StringLR get and put with one LR shared by all
+ * benchmark threads. Run with different numbers of threads to see how
+ * it scales, e.g.
+ * <pre>
+ * for t in 1 2 4 8; do java -jar target/benchmarks.jar String2StringLRBenchmark -t $t; done
+ * </pre>
+ * 
+ * @author Johann Petrak
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class String2StringLRBenchmark {
+  
+  @Param({"jdbc:h2:mem:s2sbench;DB_CLOSE_DELAY=-1;MULTI_THREADED=1"})
+  public String jdbcUrl;
+  
+  @Param({"10000"})
+  public int nKeys;
+  
+  private JdbcString2StringLR lr;
+  
+  @Setup
+  public void setup() throws Exception {
+    lr = BenchmarkUtils.newString2StringLR(jdbcUrl, "S2SBENCH");
+    for (int i = 0; i < nKeys; i++) {
+      lr.put("key" + i, "value" + i);
+    }
+  }
+  
+  @TearDown
+  public void tearDown() {
+    lr.cleanup();
+  }
+  
+  @State(Scope.Thread)
+  public static class Keys {
+    private final Random random = new Random();
+    String next(int nKeys) {
+      return "key" + random.nextInt(nKeys);
+    }
+  }
+  
+  @Benchmark
+  public String get(Keys keys) {
+    return lr.get(keys.next(nKeys));
+  }
+  
+  @Benchmark
+  public String put(Keys keys) {
+    return lr.put(keys.next(nKeys), "changed");
+  }
+  
+}
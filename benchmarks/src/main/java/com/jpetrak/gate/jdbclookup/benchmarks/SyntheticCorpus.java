@@ -0,0 +1,176 @@
+/* 
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup.benchmarks;
+
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+/**
+ * Synthetic documents with Lookup annotations whose keys follow a Zipf 
+ * distribution, and the matching database tables and MapDB file.
+ * 
+ * The key with rank r (starting at 0) is "key" + r and is chosen with a 
+ * probability proportional to 1/(r+1)^exponent. A fraction of the 
+ * annotations get a key which is not in the database.
+ * 
+ * @author Johann Petrak
+ */
+public class SyntheticCorpus {
+  
+  private final int nKeys;
+  private final double missRate;
+  private final double[] cdf;
+  private final Random random;
+  
+  /**
+   * Create a generator.
+   * 
+   * @param nKeys the number of keys in the database
+   * @param exponent the Zipf exponent, 0 for a uniform distribution
+   * @param missRate the fraction of annotations with a key not in the database
+   * @param seed the random seed
+   */
+  public SyntheticCorpus(int nKeys, double exponent, double missRate, long seed) {
+    this.nKeys = nKeys;
+    this.missRate = missRate;
+    this.random = new Random(seed);
+    cdf = new double[nKeys];
+    double sum = 0.0;
+    for (int r = 0; r < nKeys; r++) {
+      sum += 1.0 / Math.pow(r + 1, exponent);
+      cdf[r] = sum;
+    }
+    for (int r = 0; r < nKeys; r++) {
+      cdf[r] /= sum;
+    }
+  }
+  
+  public static String key(int rank) {
+    return "key" + rank;
+  }
+  
+  /**
+   * Draw the rank of a key.
+   * 
+   * @return the rank, from 0 to nKeys-1
+   */
+  public int nextRank() {
+    int i = Arrays.binarySearch(cdf, random.nextDouble());
+    return Math.min(i < 0 ? -i - 1 : i, nKeys - 1);
+  }
+  
+  /**
+   * Create a document with nAnns keys separated by spaces, each covered
+   * by a Lookup annotation.
+   * 
+   * @param nAnns the number of annotations
+   * @return the document
+   * @throws Exception if the document cannot be created
+   */
+  public Document newDocument(int nAnns) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    long[] starts = new long[nAnns];
+    long[] ends = new long[nAnns];
+    for (int i = 0; i < nAnns; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      starts[i] = sb.length();
+      if (random.nextDouble() < missRate) {
+        sb.append("missing").append(random.nextInt(Integer.MAX_VALUE));
+      } else {
+        sb.append(key(nextRank()));
+      }
+      ends[i] = sb.length();
+    }
+    Document doc = Factory.newDocument(sb.toString());
+    AnnotationSet anns = doc.getAnnotations();
+    for (int i = 0; i < nAnns; i++) {
+      anns.add(starts[i], ends[i], "Lookup", Factory.newFeatureMap());
+    }
+    return doc;
+  }
+  
+  /**
+   * Create the tables LOOKUP (K, A, B) with one or, for every third key, 
+   * two rows per key and LOOKUPJSON (K, J) with a JSON object per key.
+   * 
+   * @param conn the connection
+   * @param nKeys the number of keys
+   * @throws Exception if something goes wrong
+   */
+  public static void createTables(Connection conn, final int nKeys) throws Exception {
+    Statement st = conn.createStatement();
+    st.execute("DROP TABLE IF EXISTS LOOKUP");
+    st.execute("CREATE TABLE LOOKUP (K VARCHAR, A VARCHAR, B INT)");
+    st.execute("CREATE INDEX LOOKUPIDX ON LOOKUP (K)");
+    st.execute("DROP TABLE IF EXISTS LOOKUPJSON");
+    st.execute("CREATE TABLE LOOKUPJSON (K VARCHAR, J VARCHAR)");
+    st.execute("CREATE UNIQUE INDEX LOOKUPJSONIDX ON LOOKUPJSON (K)");
+    st.close();
+    BenchmarkUtils.insertRows(conn, conn.prepareStatement("INSERT INTO LOOKUP VALUES(?,?,?)"),
+            nKeys + nKeys / 3, new BenchmarkUtils.RowSetter() {
+              @Override
+              public void set(PreparedStatement ps, int i) throws Exception {
+                int k = i < nKeys ? i : (i - nKeys) * 3;
+                ps.setString(1, key(k));
+                ps.setString(2, "value" + i);
+                ps.setInt(3, i);
+              }
+            });
+    BenchmarkUtils.insertRows(conn, conn.prepareStatement("INSERT INTO LOOKUPJSON VALUES(?,?)"),
+            nKeys, new BenchmarkUtils.RowSetter() {
+              @Override
+              public void set(PreparedStatement ps, int i) throws Exception {
+                ps.setString(1, key(i));
+                ps.setString(2, "{\"name\":\"entity" + i + "\",\"id\":" + i + 
+                        ",\"aliases\":[\"a" + i + "\",\"b" + i + "\"],\"meta\":{\"score\":" + 
+                        (i / 100.0) + ",\"source\":\"synthetic\"}}");
+              }
+            });
+  }
+  
+  /**
+   * Create a MapDB file with a map "map" from each key to a string value.
+   * 
+   * @param file the file to create, must not exist
+   * @param nKeys the number of keys
+   */
+  public static void createMapdb(File file, int nKeys) {
+    DB db = DBMaker.fileDB(file).fileMmapEnable().make();
+    HTreeMap<String, String> map = db.hashMap("map", Serializer.STRING, Serializer.STRING).create();
+    for (int i = 0; i < nKeys; i++) {
+      map.put(key(i), "value" + i);
+    }
+    db.close();
+  }
+  
+}
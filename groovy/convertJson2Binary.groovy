@@ -0,0 +1,92 @@
+@GrabConfig(systemClassLoader=true)
+@Grab("com.h2database#h2;1.3.174")
+@Grab("com.fasterxml.jackson.dataformat#jackson-dataformat-smile;2.8.7")
+@Grab("com.fasterxml.jackson.dataformat#jackson-dataformat-cbor;2.8.7")
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import java.sql.*
+
+// Simple Groovy script to convert a table with a key column and a text JSON
+// column to a new table where the JSON is stored in binary Smile or CBOR
+// format, which can be used with the JdbcJsonLookup PR.
+//
+// The new table gets the same column names as the original, the key column
+// is VARCHAR with a unique index and the JSON column is VARBINARY.
+// The drivers for databases other than H2 must be on the classpath.
+//
+// Usage: convertJson2Binary.groovy jdbcUrl fromTable keyColumn jsonColumn toTable smile|cbor [user [password]]
+
+if(args.size() < 6 || args.size() > 8) {
+  System.err.println("Need six to eight arguments: jdbcUrl fromTable keyColumn jsonColumn toTable format [user [password]]")
+  System.err.println("  toTable will be created and must not already exist")
+  System.err.println("  format is either smile or cbor")
+  System.exit(1)
+}
+
+url = args[0]
+fromTable = args[1]
+keyColumn = args[2]
+jsonColumn = args[3]
+toTable = args[4]
+format = args[5].toLowerCase()
+user = args.size() > 6 ? args[6] : ""
+password = args.size() > 7 ? args[7] : ""
+
+if(format == "smile") {
+  binaryMapper = new ObjectMapper(new SmileFactory())
+} else if(format == "cbor") {
+  binaryMapper = new ObjectMapper(new CBORFactory())
+} else {
+  System.err.println("ERROR: format must be smile or cbor, not "+format)
+  System.exit(1)
+}
+textMapper = new ObjectMapper()
+
+conn = DriverManager.getConnection(url, user, password)
+conn.setAutoCommit(false)
+st = conn.createStatement()
+st.execute("CREATE TABLE "+toTable+" ( "+keyColumn+" VARCHAR NOT NULL, "+jsonColumn+" VARBINARY )")
+st.execute("CREATE UNIQUE INDEX "+toTable+"IndexByKey ON "+toTable+" ( "+keyColumn+" )")
+conn.commit()
+
+// read with a separate connection so that committing the inserts does not
+// close the cursor
+readConn = DriverManager.getConnection(url, user, password)
+readConn.setAutoCommit(false)
+insert = conn.prepareStatement("INSERT INTO "+toTable+" VALUES(?,?)")
+select = readConn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+select.setFetchSize(10000)
+rs = select.executeQuery("SELECT "+keyColumn+", "+jsonColumn+" FROM "+fromTable)
+
+nrows = 0
+textBytes = 0L
+binaryBytes = 0L
+while(rs.next()) {
+  key = rs.getString(1)
+  json = rs.getString(2)
+  insert.setString(1, key)
+  if(json == null || json.isEmpty()) {
+    insert.setBytes(2, null)
+  } else {
+    bytes = binaryMapper.writeValueAsBytes(textMapper.readValue(json, Object.class))
+    textBytes += json.getBytes("UTF-8").length
+    binaryBytes += bytes.length
+    insert.setBytes(2, bytes)
+  }
+  insert.addBatch()
+  nrows++
+  if((nrows % 1000) == 0) {
+    insert.executeBatch()
+    conn.commit()
+  }
+  if((nrows % 100000) == 0) {
+    System.err.println("Rows converted: "+nrows)
+  }
+}
+insert.executeBatch()
+conn.commit()
+rs.close()
+readConn.close()
+conn.close()
+System.err.println("INFO: finished, rows converted: "+nrows+", JSON bytes: "+textBytes+", "+format+" bytes: "+binaryBytes)
@@ -1,5 +1,8 @@
 @Grab("org.mapdb#mapdb;3.0.2")
+// only for GateRuntimeException, which VectorEncoding uses
+@Grab(group="uk.ac.gate", module="gate-core", version="8.5", transitive=false)
 import org.mapdb.*
+import com.jpetrak.gate.jdbclookup.VectorEncoding
 
 // Simple Groovy script to convert an embeddings file in text format
 // to  mapdb file that can be used with the MapdbLookup PR to add
@@ -8,12 +11,24 @@ import org.mapdb.*
 // The mapdb file will contain two hash maps:
 // "config" contains the following entries:
 //   * n: number of columns/dimension of the embedding vectors
-// "word2vec": maps each word (String) to an embedding vector (array of double)
+//   * keySerializer, valueSerializer: the serializers used for the "word2vec"
+//     map, used by MapdbLookup if its keySerializer and valueSerializer 
+//     parameters are AUTO
+//   * valueEncoding: NONE, FLOAT16 or INT8, used by MapdbLookup if its 
+//     valueEncoding parameter is AUTO
+// "word2vec": maps each word (String) to an embedding vector, depending on the
+//   encoding argument an array of double (double, the default), an array of 
+//   float (float32) or a byte array with float16 values or int8 values with
+//   a per-vector float scale (float16, int8), see VectorEncoding in the plugin
 //
 // This script will either create the mapdb file or add to an existing file,
 // if the file already exists and contains embedding then some checks will be made 
 // if the dimensions are compatible.
 //
+// The float16 and int8 encodings are done by VectorEncoding from the plugin,
+// so the plugin jar must be on the classpath, e.g. after building the plugin:
+//   groovy -cp target/jdbclookup-0.3-SNAPSHOT.jar groovy/convertW2V2mdb.groovy ...
+//
 // The script reads from standard input and writes to the file specified as an arguments.
 // The format expected is textual word2vec format:
 // line 1 contains the the number of embedding rows white space and the number of dimensions
@@ -21,12 +36,21 @@ import org.mapdb.*
 
 import groovy.json.*
 
-if(args.size() != 3) {
-  System.err.println("Need exactly three arguments: mapdb-file startSize incrementSize")
+if(args.size() != 3 && args.size() != 4) {
+  System.err.println("Need three or four arguments: mapdb-file startSize incrementSize [encoding]")
   System.err.println("  mapdb-file will be created or updated")
   System.err.println("  statSize and incrementSize can be in the form of 1073741824 or 1048576k or 1024m or 1g")
+  System.err.println("  encoding is one of double (default), float32, float16, int8")
+  System.exit(1)
+}
+
+encoding = args.size() == 4 ? args[3].toLowerCase() : "double"
+if(!(encoding in ["double", "float32", "float16", "int8"])) {
+  System.err.println("ERROR: unknown encoding "+encoding)
   System.exit(1)
 }
+valueSerializerName = [double: "DOUBLE_ARRAY", float32: "FLOAT_ARRAY", float16: "BYTE_ARRAY", int8: "BYTE_ARRAY"][encoding]
+valueEncodingName = [double: "NONE", float32: "NONE", float16: "FLOAT16", int8: "INT8"][encoding]
 
 startSize = args[1]
 incrementSize = args[2]
@@ -65,7 +89,7 @@ db =  DBMaker.
   allocateIncrement(incrementSize).
   make()
 config = db.hashMap("config").createOrOpen();
-map = db.hashMap("word2vec").keySerializer(Serializer.STRING).valueSerializer(Serializer.DOUBLE_ARRAY).createOrOpen();
+map = db.hashMap("word2vec").keySerializer(Serializer.STRING).valueSerializer(Serializer."$valueSerializerName").createOrOpen();
 
 oldDims = null
 
@@ -77,6 +101,13 @@ if(map.size()>0) {
     System.err.println("ERROR: we have embeddings but no config info stored")
     System.exit(1);
   }
+  oldEncoding = config.get("valueEncoding") ?: "NONE"
+  oldSerializer = config.get("valueSerializer") ?: "DOUBLE_ARRAY"
+  if(oldEncoding != valueEncodingName || oldSerializer != valueSerializerName) {
+    db.close()
+    System.err.println("ERROR: existing embeddings are stored as "+oldSerializer+"/"+oldEncoding+", not "+valueSerializerName+"/"+valueEncodingName)
+    System.exit(1);
+  }
 } 
 
 linenr = 0
@@ -113,6 +144,9 @@ System.in.eachLine() { line ->
       }
     }
     config.put("n",hcols)
+    config.put("keySerializer","STRING")
+    config.put("valueSerializer",valueSerializerName)
+    config.put("valueEncoding",valueEncodingName)
     if(kv) {
       // if we had no header need to process the line
       addLine(line,linenr,hcols)
@@ -143,7 +177,15 @@ def addLine(String line, int linenr, int hcols) {
     double[] embvec = new double[numbers.size()]
     //System.err.println("DEBUG numbers="+numbers)
     numbers.eachWithIndex { s,i -> embvec[i] = s.toDouble() }
-    map.put(word,embvec)
+    if(encoding == "double") {
+      map.put(word,embvec)
+    } else if(encoding == "float32") {
+      float[] floatvec = new float[embvec.length]
+      embvec.eachWithIndex { v,i -> floatvec[i] = (float)v }
+      map.put(word,floatvec)
+    } else if(encoding == "float16") {
+      map.put(word,VectorEncoding.FLOAT16.encode(embvec))
+    } else {
+      map.put(word,VectorEncoding.INT8.encode(embvec))
+    }
 }
-
-
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Find the input annotations which are contained in containing annotations
+ * with a single sweep over both sets sorted by offset, instead of one
+ * index query per containing annotation.
+ * <p>
+ * Contained means the same as for gate.Utils.getContainedAnnotations: the
+ * input starts at or after the start and before the end of the container
+ * and ends at or before the end of the container. So a zero length input
+ * at the end of a container and anything in a zero length container is
+ * not contained.
+ *
+ * @author Johann Petrak
+ */
+public class ContainedAnnotations {
+
+  private ContainedAnnotations() {
+  }
+
+  // by start offset, then end offset, then id so the order is always the same
+  private static final Comparator<Annotation> BY_OFFSETS = new Comparator<Annotation>() {
+    @Override
+    public int compare(Annotation a1, Annotation a2) {
+      int c = Long.compare(start(a1), start(a2));
+      if (c == 0) {
+        c = Long.compare(end(a1), end(a2));
+      }
+      if (c == 0) {
+        c = a1.getId().compareTo(a2.getId());
+      }
+      return c;
+    }
+  };
+
+  /**
+   * Get the input annotations contained in any of the containing annotations,
+   * sorted by offset.
+   *
+   * If onceForEachContainer is false, each input annotation is returned only
+   * once, even if it is contained in several overlapping containing
+   * annotations. Otherwise, it is returned once for each containing
+   * annotation it is contained in, grouped by containing annotation.
+   *
+   * @param inputAnns the input annotations
+   * @param containingAnns the containing annotations
+   * @param onceForEachContainer if annotations should be returned once for
+   * each containing annotation
+   * @return the list of contained input annotations
+   */
+  public static List<Annotation> getContained(AnnotationSet inputAnns, AnnotationSet containingAnns,
+          boolean onceForEachContainer) {
+    List<Annotation> inputs = sorted(inputAnns);
+    List<Annotation> containers = sorted(containingAnns);
+    List<Annotation> result = new ArrayList<Annotation>(inputs.size());
+    if (onceForEachContainer) {
+      long[] starts = new long[inputs.size()];
+      for (int i = 0; i < starts.length; i++) {
+        starts[i] = start(inputs.get(i));
+      }
+      for (Annotation container : containers) {
+        long cEnd = end(container);
+        for (int i = firstAtOrAfter(starts, start(container)); i < starts.length && starts[i] < cEnd; i++) {
+          if (end(inputs.get(i)) <= cEnd) {
+            result.add(inputs.get(i));
+          }
+        }
+      }
+    } else {
+      // an input is contained in some container iff the largest end offset
+      // of all the containers starting at or before the input is at or after
+      // the end of the input and after the start of the input
+      int c = 0;
+      long maxEnd = -1;
+      for (Annotation input : inputs) {
+        long iStart = start(input);
+        while (c < containers.size() && start(containers.get(c)) <= iStart) {
+          maxEnd = Math.max(maxEnd, end(containers.get(c)));
+          c++;
+        }
+        if (maxEnd >= end(input) && maxEnd > iStart) {
+          result.add(input);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static List<Annotation> sorted(Collection<Annotation> anns) {
+    List<Annotation> list = new ArrayList<Annotation>(anns);
+    Collections.sort(list, BY_OFFSETS);
+    return list;
+  }
+
+  // index of the first element >= value or starts.length if there is none
+  private static int firstAtOrAfter(long[] starts, long value) {
+    int lo = 0;
+    int hi = starts.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (starts[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static long start(Annotation ann) {
+    return ann.getStartNode().getOffset();
+  }
+
+  private static long end(Annotation ann) {
+    return ann.getEndNode().getOffset();
+  }
+}
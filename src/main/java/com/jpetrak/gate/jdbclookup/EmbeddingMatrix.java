@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.util.GateRuntimeException;
+import java.util.Arrays;
+import java.util.Map;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+
+/**
+ * A read-only matrix of embedding vectors stored as floats in a few large
+ * arrays, with a primitive ObjectIntHashMap from the words to the rows.
+ * This needs 4 bytes per dimension plus the word and about 12 to 24 bytes
+ * per row for the index, instead of a double[] and several map objects per
+ * row.
+ *
+ * Once filled, the matrix can be used by several threads concurrently.
+ *
+ * @author Johann Petrak
+ */
+public class EmbeddingMatrix {
+
+  // the maximum number of floats in one array
+  private static final int MAX_CHUNK = Integer.MAX_VALUE / 2;
+
+  private final int nDims;
+  private final int rowsPerChunk;
+  private final float[][] chunks;
+  private final int capacity;
+  private final ObjectIntHashMap<String> rows;
+  private int nRows = 0;
+
+  /**
+   * Create an empty matrix.
+   *
+   * @param capacity the maximum number of rows
+   * @param nDims the number of dimensions of each vector
+   */
+  public EmbeddingMatrix(int capacity, int nDims) {
+    this.nDims = nDims;
+    rowsPerChunk = Math.max(1, MAX_CHUNK / Math.max(1, nDims));
+    int nChunks = (capacity + rowsPerChunk - 1) / rowsPerChunk;
+    chunks = new float[nChunks][];
+    for (int i = 0; i < nChunks; i++) {
+      int rows = Math.min(rowsPerChunk, capacity - i * rowsPerChunk);
+      chunks[i] = new float[rows * nDims];
+    }
+    this.capacity = capacity;
+    rows = new ObjectIntHashMap<String>(capacity);
+  }
+
+  /**
+   * Create a matrix from a map with float[] or double[] values, or byte[]
+   * values with encoded vectors.
+   *
+   * @param map the map
+   * @param encoding how the values are encoded, NONE if they are not
+   * @return the matrix
+   */
+  public static EmbeddingMatrix fromMap(Map<?, ?> map, VectorEncoding encoding) {
+    int capacity = map.size();
+    EmbeddingMatrix matrix = null;
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      Object val = entry.getValue();
+      if (val instanceof byte[] && encoding != VectorEncoding.NONE && encoding != VectorEncoding.AUTO) {
+        val = encoding.decodeFloats((byte[]) val);
+      }
+      int dims;
+      if (val instanceof float[]) {
+        dims = ((float[]) val).length;
+      } else if (val instanceof double[]) {
+        dims = ((double[]) val).length;
+      } else {
+        throw new GateRuntimeException("Cannot create embedding matrix, value for key " + entry.getKey() +
+                " is not a float or double array but " + (val == null ? null : val.getClass()));
+      }
+      if (matrix == null) {
+        matrix = new EmbeddingMatrix(capacity, dims);
+      }
+      if (val instanceof float[]) {
+        matrix.add(entry.getKey().toString(), (float[]) val);
+      } else {
+        matrix.add(entry.getKey().toString(), (double[]) val);
+      }
+    }
+    return matrix == null ? new EmbeddingMatrix(0, 0) : matrix;
+  }
+
+  /**
+   * Add a vector, or replace the vector for a word which is already in the
+   * matrix.
+   *
+   * @param word the word
+   * @param vector the vector
+   * @return the row
+   */
+  public int add(String word, float[] vector) {
+    int row = newRow(word, vector.length);
+    System.arraycopy(vector, 0, chunks[row / rowsPerChunk], (row % rowsPerChunk) * nDims, nDims);
+    return row;
+  }
+
+  /**
+   * Add a vector, or replace the vector for a word which is already in the
+   * matrix. The values get converted to float.
+   *
+   * @param word the word
+   * @param vector the vector
+   * @return the row
+   */
+  public int add(String word, double[] vector) {
+    int row = newRow(word, vector.length);
+    float[] chunk = chunks[row / rowsPerChunk];
+    int offset = (row % rowsPerChunk) * nDims;
+    for (int i = 0; i < nDims; i++) {
+      chunk[offset + i] = (float) vector[i];
+    }
+    return row;
+  }
+
+  private int newRow(String word, int length) {
+    if (length != nDims) {
+      throw new GateRuntimeException("Vector for " + word + " has " + length + " dimensions, not " + nDims);
+    }
+    int row = rows.getIfAbsent(word, -1);
+    if (row >= 0) {
+      return row;
+    }
+    if (nRows == capacity) {
+      throw new GateRuntimeException("Embedding matrix is full, capacity is " + capacity);
+    }
+    rows.put(word, nRows);
+    return nRows++;
+  }
+
+  /**
+   * Get the row of a word.
+   *
+   * @param word the word
+   * @return the row or -1 if the word is not in the matrix
+   */
+  public int getRow(String word) {
+    return rows.getIfAbsent(word, -1);
+  }
+
+  /**
+   * Get a copy of the vector of a row as floats.
+   *
+   * @param row the row
+   * @return the vector
+   */
+  public float[] getFloats(int row) {
+    int offset = (row % rowsPerChunk) * nDims;
+    return Arrays.copyOfRange(chunks[row / rowsPerChunk], offset, offset + nDims);
+  }
+
+  /**
+   * Get a copy of the vector of a row as doubles.
+   *
+   * @param row the row
+   * @return the vector
+   */
+  public double[] getDoubles(int row) {
+    float[] chunk = chunks[row / rowsPerChunk];
+    int offset = (row % rowsPerChunk) * nDims;
+    double[] vector = new double[nDims];
+    for (int i = 0; i < nDims; i++) {
+      vector[i] = chunk[offset + i];
+    }
+    return vector;
+  }
+
+  public int size() {
+    return nRows;
+  }
+
+  public int getDimensions() {
+    return nDims;
+  }
+
+  /**
+   * The approximate number of bytes used by the vectors and the index,
+   * not counting the words.
+   *
+   * @return the number of bytes
+   */
+  public long getBytes() {
+    // the index has a key and a value array of twice the capacity, with
+    // 4 or 8 bytes per key reference
+    long bytes = 2L * 12L * capacity;
+    for (float[] chunk : chunks) {
+      bytes += 4L * chunk.length;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies looked up values before they are stored as feature values. 
+ * A value which is looked up once per document or kept in the cache is
+ * used for many annotations, so each feature map must get its own copy of
+ * anything mutable, otherwise changing the feature value of one annotation 
+ * would change it for all others with the same key.
+ * <p>
+ * Arrays, Lists, Maps and Dates, including java.sql.Timestamp, are copied,
+ * recursively for Lists, Maps and Object arrays, all other values are 
+ * assumed to be immutable and returned as they are.
+ *
+ * @author Johann Petrak
+ */
+public class FeatureValues {
+
+  private FeatureValues() {
+  }
+
+  /**
+   * Copy a value.
+   *
+   * @param value the value, may be null
+   * @return a copy of the value if it is mutable, the value itself otherwise
+   */
+  public static Object copy(Object value) {
+    if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      List<Object> ret = new ArrayList<Object>(list.size());
+      for (Object element : list) {
+        ret.add(copy(element));
+      }
+      return ret;
+    } else if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      Map<Object, Object> ret = new LinkedHashMap<Object, Object>(map.size() * 4 / 3 + 1);
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        ret.put(entry.getKey(), copy(entry.getValue()));
+      }
+      return ret;
+    } else if (value instanceof double[]) {
+      return ((double[]) value).clone();
+    } else if (value instanceof float[]) {
+      return ((float[]) value).clone();
+    } else if (value instanceof int[]) {
+      return ((int[]) value).clone();
+    } else if (value instanceof long[]) {
+      return ((long[]) value).clone();
+    } else if (value instanceof byte[]) {
+      return ((byte[]) value).clone();
+    } else if (value instanceof Date) {
+      return ((Date) value).clone();
+    } else if (value instanceof Object[]) {
+      Object[] array = ((Object[]) value).clone();
+      for (int i = 0; i < array.length; i++) {
+        array[i] = copy(array[i]);
+      }
+      return array;
+    }
+    return value;
+  }
+
+  /**
+   * Put copies of all the values of a map into a feature map.
+   *
+   * @param target the map to add to
+   * @param values the map with the values to copy
+   */
+  public static void putAllCopies(Map<Object, Object> target, Map<?, ?> values) {
+    for (Map.Entry<?, ?> entry : values.entrySet()) {
+      target.put(entry.getKey(), copy(entry.getValue()));
+    }
+  }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import gate.util.GateRuntimeException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of JDBC connections for one JDBC URL, user and password, shared 
+ * by all PRs and LRs in the JVM which use the same URL, user and password.
+ *
+ * Users of the pool call acquire to get the pool and release when they
+ * do not need it any more, the pool gets closed when the last user
+ * releases it. Connections are borrowed for a unit of work (e.g. a
+ * document) and then returned. Each connection caches the prepared
+ * statements created through it, so the same SQL only gets prepared once
+ * per connection.
+ *
+ * A pool can have a maximum number of open connections, which is set by 
+ * whoever creates it, e.g. a JdbcLR, pools created by PRs have no limit.
+ * Later users can only raise the limit, never lower it, since the other
+ * users of the pool may need as many connections as the limit allows.
+ *
+ * @author Johann Petrak
+ */
+public class JdbcConnectionPool {
+
+  private static final Map<String,JdbcConnectionPool> pools =
+          new HashMap<String,JdbcConnectionPool>();
+
+  private static final int MAX_CACHED_STATEMENTS = 100;
+
+  /**
+   * The default maximum number of open connections for a pool created by 
+   * a JdbcLR.
+   */
+  public static final int DEFAULT_MAX_SIZE = 16;
+
+  private final String key;
+  private final String url;
+  private final String user;
+  private final String password;
+
+  // the settings can be changed by the users of the pool, e.g. a JdbcLR
+  // the lifetime and validation settings are used outside the lock
+  private int maxSize = 0;
+  private volatile long maxLifetimeMillis = 0L;
+  private volatile long validationIdleMillis = 30000L;
+
+  // idle connections, the most recently returned ones at the end
+  private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+  private int nUsers = 0;
+  private int nOpen = 0;
+  private int nActive = 0;
+  private long nCreated = 0;
+  private long nBorrowed = 0;
+  private long nWaits = 0;
+  private long nDiscarded = 0;
+
+  private JdbcConnectionPool(String key, String url, String user, String password, int maxSize) {
+    this.key = key;
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Get the pool for the URL, user and password, creating it without a 
+   * limit on the number of connections if necessary, and register as a 
+   * user of that pool.
+   *
+   * @param url the expanded JDBC URL
+   * @param user the expanded user
+   * @param password the expanded password
+   * @return the pool
+   */
+  public static JdbcConnectionPool acquire(String url, String user, String password) {
+    return acquire(url, user, password, 0);
+  }
+
+  /**
+   * Get the pool for the URL, user and password, creating it if necessary,
+   * and register as a user of that pool. If the pool already exists and 
+   * has a lower limit, the limit gets raised to maxSize, it never gets 
+   * lowered.
+   *
+   * @param url the expanded JDBC URL
+   * @param user the expanded user
+   * @param password the expanded password
+   * @param maxSize maximum number of open connections, 0 or less for no limit
+   * @return the pool
+   */
+  public static JdbcConnectionPool acquire(String url, String user, String password, int maxSize) {
+    // the same user with a different password must not get connections
+    // opened with the other password, only a hash of the password is kept
+    String passwordHash = Hashing.sha256().hashString(password == null ? "" : password, Charsets.UTF_8).toString();
+    String key = url + "\u0000" + user + "\u0000" + passwordHash;
+    synchronized (pools) {
+      JdbcConnectionPool pool = pools.get(key);
+      if (pool == null) {
+        pool = new JdbcConnectionPool(key, url, user, password, Math.max(0, maxSize));
+        pools.put(key, pool);
+      }
+      synchronized (pool) {
+        pool.nUsers++;
+        if (pool.maxSize > 0 && (maxSize <= 0 || maxSize > pool.maxSize)) {
+          pool.maxSize = Math.max(0, maxSize);
+          pool.notifyAll();
+        }
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * Register one more user for a pool already acquired by someone else,
+   * e.g. a PR which uses the pool of a JdbcLR.
+   *
+   * @return this pool
+   */
+  public JdbcConnectionPool acquire() {
+    synchronized (pools) {
+      synchronized (this) {
+        if (nUsers == 0) {
+          throw new GateRuntimeException("Connection pool has already been closed: " + url);
+        }
+        nUsers++;
+      }
+      return this;
+    }
+  }
+
+  /**
+   * Unregister a user of the pool, if this was the last user, all the
+   * connections get closed and the pool is removed.
+   */
+  public void release() {
+    synchronized (pools) {
+      synchronized (this) {
+        nUsers--;
+        if (nUsers > 0) {
+          return;
+        }
+        pools.remove(key);
+        for (PooledConnection pc : idle) {
+          pc.close();
+        }
+        nOpen -= idle.size();
+        idle.clear();
+      }
+    }
+  }
+
+  /**
+   * Borrow a connection from the pool. If the pool has a maximum size and
+   * all connections are in use, this waits until one is returned.
+   * New connections are opened and idle connections are validated without
+   * holding the lock of the pool, so a slow database does not block the
+   * other users of the pool.
+   *
+   * @return the connection, which must be returned with returnConnection
+   */
+  public PooledConnection borrow() {
+    while (true) {
+      PooledConnection pc;
+      synchronized (this) {
+        pc = idle.pollLast();
+        if (pc == null) {
+          if (maxSize > 0 && nOpen >= maxSize) {
+            nWaits++;
+            // log the first wait and then every now and then, so that a
+            // too small limit can be noticed
+            if (nWaits == 1 || nWaits % 1000 == 0) {
+              System.err.println("INFO: all " + maxSize + " connections of the pool for " + url + 
+                      " are in use, waiting for one, waits so far: " + nWaits);
+            }
+            try {
+              wait();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              throw new GateRuntimeException("Interrupted while waiting for a JDBC connection", ex);
+            }
+            continue;
+          }
+          // count the connection we are about to open, so no other thread
+          // opens one beyond the maximum size meanwhile
+          nOpen++;
+        }
+        nActive++;
+      }
+      if (pc == null) {
+        try {
+          pc = new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException ex) {
+          discarded(false);
+          throw new GateRuntimeException("Could not establish JDBC connection for URL: " + url, ex);
+        } catch (RuntimeException ex) {
+          discarded(false);
+          throw ex;
+        }
+        synchronized (this) {
+          nCreated++;
+          nBorrowed++;
+        }
+        return pc;
+      }
+      if (!isUsable(pc)) {
+        pc.close();
+        discarded(true);
+        continue;
+      }
+      synchronized (this) {
+        nBorrowed++;
+      }
+      return pc;
+    }
+  }
+
+  // a connection we counted as open and active is gone
+  private synchronized void discarded(boolean wasOpen) {
+    nOpen--;
+    nActive--;
+    if (wasOpen) {
+      nDiscarded++;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Return a borrowed connection to the pool.
+   *
+   * @param pc the connection
+   */
+  public synchronized void returnConnection(PooledConnection pc) {
+    nActive--;
+    pc.lastUsed = System.currentTimeMillis();
+    if (nUsers <= 0 || isExpired(pc)) {
+      pc.close();
+      nOpen--;
+      nDiscarded++;
+    } else {
+      idle.addLast(pc);
+    }
+    notifyAll();
+  }
+
+  private boolean isExpired(PooledConnection pc) {
+    return maxLifetimeMillis > 0 && System.currentTimeMillis() - pc.created > maxLifetimeMillis;
+  }
+
+  private boolean isUsable(PooledConnection pc) {
+    if (isExpired(pc)) {
+      return false;
+    }
+    if (validationIdleMillis >= 0 && System.currentTimeMillis() - pc.lastUsed > validationIdleMillis) {
+      try {
+        return pc.connection.isValid(5);
+      } catch (SQLException ex) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public synchronized int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Set the maximum time a connection is used before it gets closed and
+   * replaced by a new one, 0 or less for no limit.
+   *
+   * @param seconds the maximum lifetime
+   */
+  public void setMaxLifetime(int seconds) {
+    maxLifetimeMillis = seconds * 1000L;
+  }
+
+  /**
+   * Set after how many seconds of not being used a connection gets validated
+   * before it is handed out again, a negative value disables validation.
+   *
+   * @param seconds the idle time
+   */
+  public void setValidationIdleTime(int seconds) {
+    validationIdleMillis = seconds * 1000L;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public synchronized int getUsers() {
+    return nUsers;
+  }
+
+  public synchronized int getOpen() {
+    return nOpen;
+  }
+
+  public synchronized int getActive() {
+    return nActive;
+  }
+
+  public synchronized int getIdle() {
+    return idle.size();
+  }
+
+  public synchronized long getCreated() {
+    return nCreated;
+  }
+
+  public synchronized long getBorrowed() {
+    return nBorrowed;
+  }
+
+  public synchronized long getWaits() {
+    return nWaits;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "JdbcConnectionPool{url=" + url + ", users=" + nUsers +
+            ", maxSize=" + maxSize + ", open=" + nOpen + ", active=" + nActive +
+            ", idle=" + idle.size() + ", created=" + nCreated +
+            ", borrowed=" + nBorrowed + ", waits=" + nWaits +
+            ", discarded=" + nDiscarded + "}";
+  }
+
+  /**
+   * A connection from the pool together with its cache of prepared
+   * statements. A pooled connection must only be used by one thread at
+   * a time.
+   */
+  public static class PooledConnection {
+    private final Connection connection;
+    private final long created;
+    private long lastUsed;
+    private final LinkedHashMap<String,PreparedStatement> statements =
+            new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+              private static final long serialVersionUID = 1L;
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+                if (size() > MAX_CACHED_STATEMENTS) {
+                  closeStatement(eldest.getValue());
+                  return true;
+                }
+                return false;
+              }
+            };
+
+    private PooledConnection(Connection connection) {
+      this.connection = connection;
+      this.created = System.currentTimeMillis();
+      this.lastUsed = created;
+    }
+
+    public Connection getConnection() {
+      return connection;
+    }
+
+    /**
+     * Get the prepared statement for the SQL, preparing it only if this
+     * has not already been done for this connection.
+     *
+     * @param sql the SQL
+     * @return the prepared statement
+     * @throws SQLException if the statement cannot be prepared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement st = statements.get(sql);
+      if (st == null) {
+        st = connection.prepareStatement(sql);
+        statements.put(sql, st);
+      }
+      return st;
+    }
+
+    private void close() {
+      for (PreparedStatement st : statements.values()) {
+        closeStatement(st);
+      }
+      statements.clear();
+      try {
+        connection.close();
+      } catch (SQLException ex) {
+        // ignore, we do not use the connection any more anyway
+      }
+    }
+
+    private static void closeStatement(PreparedStatement st) {
+      try {
+        st.close();
+      } catch (SQLException ex) {
+        // ignore
+      }
+    }
+  }
+}
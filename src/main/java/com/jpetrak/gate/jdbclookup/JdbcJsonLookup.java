@@ -20,23 +20,35 @@
 
 package com.jpetrak.gate.jdbclookup;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import gate.Annotation;
 import gate.AnnotationSet;
 import gate.Document;
 import gate.FeatureMap;
+import gate.Controller;
 import gate.Resource;
+import gate.creole.ExecutionException;
 import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
 import gate.util.GateRuntimeException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.apache.log4j.Logger;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import gate.Factory;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -59,6 +71,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  * for each element of the list, and the features are set according to the 
  * map the element represents.
  * 
+ * The JSON can also be stored in binary form, Smile or CBOR, in a binary
+ * column (e.g. BLOB or VARBINARY). By default, the format is detected from
+ * the column type and the first bytes of the value.
+ * 
+ * If jsonFields is set, only the listed fields are kept from each map. The
+ * JSON is then decoded with a streaming parser which skips everything else
+ * instead of building the whole data structure first.
+ * 
  * NOTE: for now this expects to get only one database row at most for each key! If 
  * there is more than one row, only the first one is used!!
  * 
@@ -87,9 +107,41 @@ public class JdbcJsonLookup extends JdbcLookupBase
     return processingMode;
   }
   
+  protected List<String> jsonFields = null;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If not empty, only keep these fields of each JSON map: field names or JSON pointers like /a/b, the feature name is the last part of the pointer")
+  public void setJsonFields(List<String> fields) {
+    jsonFields = fields;
+  }
+  public List<String> getJsonFields() {
+    return jsonFields;
+  }
   
+  protected JsonFormat jsonFormat = JsonFormat.AUTO;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The format of the JSON column, AUTO detects text JSON, Smile or CBOR in binary columns",
+          defaultValue = "AUTO")
+  public void setJsonFormat(JsonFormat format) {
+    jsonFormat = format;
+  }
+  public JsonFormat getJsonFormat() {
+    return jsonFormat;
+  }
   
   private ObjectMapper mapper = new ObjectMapper();
+  private final SmileFactory smileFactory = new SmileFactory();
+  private final CBORFactory cborFactory = new CBORFactory();
+  
+  // if the JSON column is a binary column, determined from the metadata
+  // of the first result, null if not known yet
+  private volatile Boolean binaryColumn = null;
+  
+  // the fields to keep as a tree of field names, null if all fields are kept
+  private FieldNode projection = null;
 
   private static AtomicInteger dupNumber;
 
@@ -109,115 +161,259 @@ public class JdbcJsonLookup extends JdbcLookupBase
   }
 
   @Override
-  public void doLookup(Document doc, Annotation ann, AnnotationSet outputAS) {
-    // first get the key: either the content of some feature of the 
-    // underlying document text, if the feature name is empty
-    FeatureMap fm = ann.getFeatures();
-    String key = "";
-    if (keyFeature.isEmpty()) {
-      key = gate.Utils.stringFor(doc, ann);
-    } else {
-      Object val = fm.get(keyFeature);
-      if (val != null) {
-        key = val.toString();
+  public void controllerExecutionStarted(Controller cntrlr) throws ExecutionException {
+    binaryColumn = null;
+    projection = null;
+    if (getJsonFields() != null && !getJsonFields().isEmpty()) {
+      // fails for fields which would not give one feature each
+      FieldNode fields = new FieldNode();
+      for (String field : getJsonFields()) {
+        fields.addField(field);
       }
+      projection = fields;
+    }
+    super.controllerExecutionStarted(cntrlr);
+  }
+  
+  @Override
+  protected String getDecodingSignature() {
+    return projection == null ? "" : getJsonFields().toString();
+  }
+
+  @Override
+  protected Object decodeRow(ResultSet rs, int firstColumn) throws SQLException {
+    if (binaryColumn == null) {
+      binaryColumn = isBinaryType(rs.getMetaData().getColumnType(firstColumn));
     }
-    // Now we should have our key ... if it is not empty, lets use it
-    if (!key.isEmpty()) {
-      // look up the key in the database
-      String json = (String) getJsonForKey(key);
-      int listId;
-      if (json != null && !json.isEmpty()) {
-        Object arrayOrMap = null;
-        try {
-          // parse the JSON into a Java object
-          arrayOrMap = mapper.readValue(json, Object.class);
-        } catch (Exception ex) {
-          throw new GateRuntimeException("Could not parse JSON: " + json, ex);
+    JsonFormat format = getJsonFormat() == null ? JsonFormat.AUTO : getJsonFormat();
+    JsonParser parser;
+    String what;
+    try {
+      if (format == JsonFormat.TEXT || (format == JsonFormat.AUTO && !binaryColumn)) {
+        String json = rs.getString(firstColumn);
+        if (json == null || json.isEmpty()) {
+          return null;
+        }
+        parser = mapper.getFactory().createParser(json);
+        what = json;
+      } else {
+        byte[] bytes = rs.getBytes(firstColumn);
+        if (bytes == null || bytes.length == 0) {
+          return null;
         }
-        if (processingMode.equals(ProcessingMode.AddAnnotations)) {
-          ArrayList<Integer> theIds = new ArrayList<Integer>();
-          if (arrayOrMap instanceof Map) {
-            theIds.add(addLookup(ann, (Map) arrayOrMap, outputAS, outputType, fm));
+        JsonFactory factory = getBinaryFactory(format, bytes);
+        parser = factory.createParser(bytes);
+        what = bytes.length + " bytes of " + factory.getFormatName();
+      }
+    } catch (java.io.IOException ex) {
+      throw new GateRuntimeException("Could not create JSON parser", ex);
+    }
+    try {
+      if (projection != null) {
+        return decodeProjected(parser);
+      } else {
+        // parse the JSON into a Java object
+        parser.nextToken();
+        return mapper.readValue(parser, Object.class);
+      }
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Could not parse JSON: " + what, ex);
+    } finally {
+      try {
+        parser.close();
+      } catch (java.io.IOException ex) {
+        // ignore
+      }
+    }
+  }
+  
+  private static boolean isBinaryType(int type) {
+    return type == Types.BINARY || type == Types.VARBINARY || 
+            type == Types.LONGVARBINARY || type == Types.BLOB;
+  }
+  
+  // Smile data always starts with the header ":)\n", text JSON stored as
+  // bytes starts with a map or array after optional whitespace, anything 
+  // else in a binary column is taken to be CBOR
+  private JsonFactory getBinaryFactory(JsonFormat format, byte[] bytes) {
+    if (format == JsonFormat.SMILE) {
+      return smileFactory;
+    } else if (format == JsonFormat.CBOR) {
+      return cborFactory;
+    } else if (bytes.length >= 3 && bytes[0] == ':' && bytes[1] == ')' && bytes[2] == '\n') {
+      return smileFactory;
+    } else if (isTextJson(bytes)) {
+      return mapper.getFactory();
+    } else {
+      return cborFactory;
+    }
+  }
+  
+  private static boolean isTextJson(byte[] bytes) {
+    for (byte b : bytes) {
+      if (b == '{' || b == '[') {
+        return true;
+      } else if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+        return false;
+      }
+    }
+    return false;
+  }
+  
+  @Override
+  protected void applyRows(Document doc, Annotation ann, List<Object> rows, AnnotationSet outputAS) {
+    // NOTE: we only ever use the first row
+    FeatureMap fm = ann.getFeatures();
+    Object arrayOrMap = rows.get(0);
+    int listId;
+    if (processingMode.equals(ProcessingMode.AddAnnotations)) {
+      ArrayList<Integer> theIds = new ArrayList<Integer>();
+      if (arrayOrMap instanceof Map) {
+        theIds.add(addLookup(ann, (Map) arrayOrMap, outputAS, outputType, fm));
+      } else {
+        List<Object> theList = (List<Object>) arrayOrMap;
+        for (Object member : theList) {
+          // all the members must be Maps!
+          if (member instanceof Map) {
+            theIds.add(addLookup(ann, (Map) member, outputAS, outputType, fm));
           } else {
-            ArrayList<Object> theList = (ArrayList<Object>) arrayOrMap;
-            for (Object member : theList) {
-              // all the members must be Maps!
-              if (member instanceof Map) {
-                theIds.add(addLookup(ann, (Map) member, outputAS, outputType, fm));
-              } else {
-                throw new GateRuntimeException("Odd JSON array does not contain just maps: " + json);
-              }
-            }
-          }
-          if (!listType.isEmpty()) {
-            FeatureMap fmList = Factory.newFeatureMap();
-            fmList.putAll(fm); // inherit the original Lookup annotation features
-            fmList.put("ids",theIds);
-            //fmList.put("debugJdbcLookup",fm);
-            listId = gate.Utils.addAnn(outputAS, ann, listType, fmList);
-            // add the id of the list annotation to the feature map of each candidate
-            // as feature "llId" 
-            for(int id : theIds) {
-              Annotation cand = outputAS.get(id);
-              cand.getFeatures().put("llId",listId);
-            }
+            throw new GateRuntimeException("Odd JSON array does not contain just maps: " + arrayOrMap);
           }
+        }
+      }
+      if (!listType.isEmpty()) {
+        FeatureMap fmList = Factory.newFeatureMap();
+        fmList.putAll(fm); // inherit the original Lookup annotation features
+        fmList.put("ids",theIds);
+        //fmList.put("debugJdbcLookup",fm);
+        listId = gate.Utils.addAnn(outputAS, ann, listType, fmList);
+        // add the id of the list annotation to the feature map of each candidate
+        // as feature "llId" 
+        for(int id : theIds) {
+          Annotation cand = outputAS.get(id);
+          cand.getFeatures().put("llId",listId);
+        }
+      }
+    } else {
+      if (arrayOrMap instanceof List) {
+        List arr = (List) arrayOrMap;
+        if (!arr.isEmpty()) {
+          arrayOrMap = arr.get(0);
         } else {
-          if (arrayOrMap instanceof List) {
-            ArrayList arr = (ArrayList) arrayOrMap;
-            if (!arr.isEmpty()) {
-              arrayOrMap = arr.get(0);
-            } else {
-              arrayOrMap = null;
-            }
-          }
-          if (arrayOrMap != null) {
-            Map map = (Map) arrayOrMap;
-            if (processingMode.equals(ProcessingMode.AddFeatures)) {
-              FeatureMap newfm = gate.Factory.newFeatureMap();
-              newfm.putAll(map);
-              newfm.putAll(fm);
-              ann.setFeatures(newfm);
-            } else {
-              fm.putAll(map);
-              ann.setFeatures(fm);
-            }
-          }
+          arrayOrMap = null;
+        }
+      }
+      if (arrayOrMap != null) {
+        Map map = (Map) arrayOrMap;
+        if (processingMode.equals(ProcessingMode.AddFeatures)) {
+          FeatureMap newfm = gate.Factory.newFeatureMap();
+          FeatureValues.putAllCopies(newfm, map);
+          newfm.putAll(fm);
+          ann.setFeatures(newfm);
+        } else {
+          FeatureValues.putAllCopies(fm, map);
+          ann.setFeatures(fm);
         }
       }
     }
   }
 
-  protected String getJsonForKey(String key) {
-    try {
-      stSelect.setString(1,key);
-    } catch (SQLException ex) {
-      throw new GateRuntimeException("Could not set query parameter to '"+key+"'",ex);
+  // Decode a JSON map or array of maps, keeping only the fields in the
+  // projection and skipping all other values without decoding them.
+  private Object decodeProjected(JsonParser parser) throws java.io.IOException {
+    JsonToken token = parser.nextToken();
+    if (token == JsonToken.START_OBJECT) {
+      return readProjectedObject(parser);
+    } else if (token == JsonToken.START_ARRAY) {
+      List<Object> list = new ArrayList<Object>();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+          list.add(readProjectedObject(parser));
+        } else {
+          list.add(mapper.readValue(parser, Object.class));
+        }
+      }
+      return list;
+    } else if (token == null || token == JsonToken.VALUE_NULL) {
+      return null;
+    } else {
+      return mapper.readValue(parser, Object.class);
     }
-    ResultSet rs = null;
-    try {
-      rs = stSelect.executeQuery();
-    } catch (SQLException ex) {
-      throw new GateRuntimeException("Error executing query for "+key,ex);
+  }
+  
+  // the fields go straight into a feature map, which is what applyRows
+  // needs in the end anyway
+  private FeatureMap readProjectedObject(JsonParser parser) throws java.io.IOException {
+    FeatureMap result = Factory.newFeatureMap();
+    readProjectedFields(parser, projection, result);
+    return result;
+  }
+  
+  // the parser is on the START_OBJECT token of the object to read
+  private void readProjectedFields(JsonParser parser, FieldNode node, FeatureMap result) 
+          throws java.io.IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      FieldNode child = node.children.get(parser.getCurrentName());
+      JsonToken token = parser.nextToken();
+      if (child == null) {
+        parser.skipChildren();
+      } else if (child.featureName != null) {
+        result.put(child.featureName, mapper.readValue(parser, Object.class));
+      } else if (token == JsonToken.START_OBJECT) {
+        readProjectedFields(parser, child, result);
+      } else {
+        parser.skipChildren();
+      }
     }
-    boolean haveResult = false;
-    try {
-      haveResult = rs.next();
-    } catch(SQLException ex) {
-      throw new GateRuntimeException("Error checking for result rows",ex);
+  }
+  
+  /**
+   * A node in the tree of fields to keep. A node which has a feature name
+   * is kept with all its content, otherwise only the fields for its children 
+   * are kept.
+   */
+  private static class FieldNode {
+    final Map<String, FieldNode> children = new HashMap<String, FieldNode>();
+    String featureName = null;
+    // the feature names used so far, only in the root node
+    final Set<String> featureNames = new HashSet<String>();
+    
+    // Add a field name or JSON pointer. Pointers can only select fields of
+    // nested maps, not elements of arrays.
+    void addField(String field) {
+      boolean pointer = field.startsWith("/");
+      String[] parts = pointer ? field.substring(1).split("/", -1) : new String[] { field };
+      FieldNode node = this;
+      String name = null;
+      for (String part : parts) {
+        name = pointer ? part.replace("~1", "/").replace("~0", "~") : part;
+        if (pointer && (name.equals("-") || name.matches("[0-9]+"))) {
+          throw new GateRuntimeException("jsonFields: array indices are not supported in " + field);
+        }
+        if (node.featureName != null) {
+          throw new GateRuntimeException("jsonFields: " + field + " is inside a field which is already kept");
+        }
+        node = node.getChild(name);
+      }
+      if (node.featureName != null || !node.children.isEmpty()) {
+        throw new GateRuntimeException("jsonFields: " + field + " overlaps with another field");
+      }
+      if (!featureNames.add(name)) {
+        throw new GateRuntimeException("jsonFields: more than one field would create feature " + name);
+      }
+      node.featureName = name;
     }
-    String ret = "";
-    if(haveResult) {
-      try {
-        ret = rs.getString(1);
-      } catch (SQLException ex) {
-        throw new GateRuntimeException("Could not get field number 1 from result row",ex);
+    
+    FieldNode getChild(String name) {
+      FieldNode child = children.get(name);
+      if (child == null) {
+        child = new FieldNode();
+        children.put(name, child);
       }
+      return child;
     }
-    return ret;
   }
-  
+
   protected int addLookup(Annotation ann, Map theMap, AnnotationSet outputAS, String outputType, FeatureMap parentFeatures) {
     // create a new annotation in the output annotation set
     // and set the features from the map
@@ -227,11 +423,20 @@ public class JdbcJsonLookup extends JdbcLookupBase
     if(parentFeatures != null) {
       fm.putAll(parentFeatures);      
     }
-    fm.putAll(theMap);
+    // the map may come from the cache or be used for other annotations 
+    // with the same key, so nested values must not be shared
+    FeatureValues.putAllCopies(fm, theMap);
     return gate.Utils.addAnn(outputAS, ann, outputType, fm);
   }
 
 
+  public enum JsonFormat {
+    AUTO,
+    TEXT,
+    SMILE,
+    CBOR
+  }
+
   public enum ProcessingMode {
     AddFeatures,
     UpdateFeatures,
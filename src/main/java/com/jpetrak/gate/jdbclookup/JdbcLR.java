@@ -34,8 +34,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -111,7 +109,45 @@ public class JdbcLR extends AbstractLanguageResource {
     return dbDirectoryUrl;
   }
   
+  protected Integer maxPoolSize = JdbcConnectionPool.DEFAULT_MAX_SIZE;
+  @Optional
+  @CreoleParameter(
+          comment = "Maximum number of connections in the pool shared by everything using this URL and user, 0 for no limit. Only raises the limit of an existing pool, never lowers it",
+          defaultValue = "16")
+  public void setMaxPoolSize(Integer n) {
+    maxPoolSize = n;
+  }
+  public Integer getMaxPoolSize() {
+    return maxPoolSize;
+  }
+  
+  protected Integer maxConnectionLifetime = 0;
+  @Optional
+  @CreoleParameter(
+          comment = "Number of seconds after which a pooled connection gets replaced, 0 for never",
+          defaultValue = "0")
+  public void setMaxConnectionLifetime(Integer seconds) {
+    maxConnectionLifetime = seconds;
+  }
+  public Integer getMaxConnectionLifetime() {
+    return maxConnectionLifetime;
+  }
+  
+  protected Integer connectionValidationIdleTime = 30;
+  @Optional
+  @CreoleParameter(
+          comment = "Number of seconds a pooled connection can be idle before it gets validated when used again, negative to never validate",
+          defaultValue = "30")
+  public void setConnectionValidationIdleTime(Integer seconds) {
+    connectionValidationIdleTime = seconds;
+  }
+  public Integer getConnectionValidationIdleTime() {
+    return connectionValidationIdleTime;
+  }
+  
   protected Connection connection;
+  protected JdbcConnectionPool pool;
+  protected JdbcConnectionPool.PooledConnection pooledConnection;
 
   @Override
   public synchronized Resource init() throws ResourceInstantiationException {
@@ -157,11 +193,22 @@ public class JdbcLR extends AbstractLanguageResource {
         gate.Utils.replaceVariablesInString(jdbcPassword, dbdirectoryMap, this);
       
       //System.out.println("Using JDBC URL: "+expandedUrlString);
+      pool = JdbcConnectionPool.acquire(expandedUrlString, expandedUser, expandedPassword,
+              getMaxPoolSize() == null ? 0 : getMaxPoolSize());
+      if (getMaxConnectionLifetime() != null) {
+        pool.setMaxLifetime(getMaxConnectionLifetime());
+      }
+      if (getConnectionValidationIdleTime() != null) {
+        pool.setValidationIdleTime(getConnectionValidationIdleTime());
+      }
       connection = null;
+      // make sure we can actually connect
       try {
-        connection = DriverManager.getConnection(expandedUrlString, expandedUser, expandedPassword);
-      } catch(SQLException ex) {
-        throw new GateRuntimeException("Could not establish JDBC connection for URL: "+expandedUrlString,ex);
+        pool.returnConnection(pool.borrow());
+      } catch(GateRuntimeException ex) {
+        pool.release();
+        pool = null;
+        throw ex;
       }
   }
   
@@ -172,19 +219,43 @@ public class JdbcLR extends AbstractLanguageResource {
     shutdownConnection();
   }
 
-  private void shutdownConnection() {
-    try {
-      if(connection != null && connection.isValid(1)) {
-        connection.close();
-      }
-    } catch (SQLException ex) {
-      throw new GateRuntimeException("Error when disconnecting JDBC connection",ex);
+  protected synchronized void shutdownConnection() {
+    if (pooledConnection != null) {
+      pool.returnConnection(pooledConnection);
+      pooledConnection = null;
+      connection = null;
+    }
+    if (pool != null) {
+      pool.release();
+      pool = null;
     }
   }
  
   // API methods
   
-  public Connection getConnection() { return connection; }
+  /**
+   * A connection for the exclusive use of whoever uses this LR. This is 
+   * borrowed from the pool when first requested and only returned when
+   * the LR gets closed. Code which may get run by several threads should
+   * instead borrow a connection from the pool for each unit of work.
+   * 
+   * @return the connection
+   */
+  public synchronized Connection getConnection() { 
+    if (connection == null && pool != null) {
+      pooledConnection = pool.borrow();
+      connection = pooledConnection.getConnection();
+    }
+    return connection; 
+  }
+  /**
+   * The JVM-wide pool of connections for the URL and user of this LR.
+   * This can be used by the lookup PRs as their source of connections and
+   * to monitor the pool.
+   * 
+   * @return the connection pool
+   */
+  public JdbcConnectionPool getPool() { return pool; }
   public String getExpandedUrlString() { return expandedUrlString; }
   
 }
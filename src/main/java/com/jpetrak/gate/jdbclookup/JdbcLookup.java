@@ -73,8 +73,51 @@ public class JdbcLookup  extends JdbcLookupBase {
     return nameMappings;
   }
   
-
+  protected Boolean preload = false;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If the whole table should be loaded into memory when processing starts, so lookups do not need the database",
+          defaultValue = "false")
+  public void setPreload(Boolean flag) {
+    preload = flag;
+  }
+  public Boolean getPreload() {
+    return preload;
+  }
   
+  // The preload query must return the key as the first column, followed by 
+  // the same columns as the sqlQuery.
+  protected String preloadSqlQuery = "SELECT <<keyfieldname>>, <<columnnames>> FROM <<tablename>>";
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The SQL to use for preloading, must return the key as first column, followed by the columns of the sqlQuery",
+          defaultValue = "SELECT <<keyfieldname>>, <<columnnames>> FROM <<tablename>>")
+  public void setPreloadSqlQuery(String q) {
+    preloadSqlQuery = q;
+  }
+  public String getPreloadSqlQuery() {
+    return preloadSqlQuery;
+  }
+  
+  protected Integer preloadFetchSize = 10000;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The number of rows to fetch at once when preloading",
+          defaultValue = "10000")
+  public void setPreloadFetchSize(Integer n) {
+    preloadFetchSize = n;
+  }
+  public Integer getPreloadFetchSize() {
+    return preloadFetchSize;
+  }
+  
+  // the preloaded table if preloading is enabled, shared by all duplicates
+  protected PreloadedTable preloaded = null;
+  
+  private static final Object preloadSyncObject = new Object();
   
   @Override
   public Resource init() throws ResourceInstantiationException {
@@ -82,153 +125,183 @@ public class JdbcLookup  extends JdbcLookupBase {
     return this;
   }
   
-  private ResultSetMetaData rsmd = null;
-  private List<Object> columnValues = null;
-  private int columnCount = 0;
-  
-  
-  // This is used for caching the result columns from the db query
-  List<String> resultColumns = null;
+  // The result columns of the db query with the feature names and types
+  // from our name mappings, created for the first row we get.
+  private volatile ResultColumns resultColumns = null;
   
-  // This is used for caching the feature names for the columns
-  List<String> resultFeatures = null;
+  // The column names and feature names and types for the columns.
+  private static class ResultColumns {
+    final List<String> columns;
+    final List<String> features;
+    final List<String> types;
+    ResultColumns(List<String> columns, List<String> features, List<String> types) {
+      this.columns = columns;
+      this.features = features;
+      this.types = types;
+    }
+  }
   
-  // This is used for caching the types for the columns
-  List<String> resultTypes = null;
+  // The column names of the db query, shared by all duplicates: rows which
+  // a duplicate gets from the shared cache may all have been decoded by
+  // another duplicate.
+  private static class QueryColumns {
+    final String sql;
+    final List<String> columns;
+    QueryColumns(String sql, List<String> columns) {
+      this.sql = sql;
+      this.columns = columns;
+    }
+  }
    
   @Override
-  public void doLookup(Document doc, Annotation ann, AnnotationSet outputAS) {
-    //System.out.println("doLookup for "+ann);
-    FeatureMap fm = ann.getFeatures();
-    String key = "";
-    if (keyFeature.isEmpty()) {
-      key = gate.Utils.stringFor(doc, ann);
-    } else {
-      Object val = fm.get(keyFeature);
-      if (val != null) {
-        key = val.toString();
-      }
+  protected Object decodeRow(ResultSet rs, int firstColumn) throws SQLException {
+    // if we still do not have our caches create them
+    ResultColumns rc = resultColumns;
+    if (rc == null) {
+      rc = initResultColumns(rs.getMetaData(), firstColumn);
     }
-    // Now we should have our key ... if it is not empty, lets use it
-    if (!key.isEmpty()) {
-      // query the db and create the result set
-      // go through all the results in the result set and act according to
-      // the processing mode
+    int columnCount = rc.columns.size();
+    List<Object> columnValues = new ArrayList<Object>(columnCount);
+    for(int i=0; i<columnCount; i++) {
+      // get the value of the column 
+      Object value = null;
       try {
-        //System.out.println("Lookup up "+key);
-        stSelect.setString(1,key);
+        value = rs.getObject(firstColumn+i);
       } catch (SQLException ex) {
-        throw new GateRuntimeException("Could not set query parameter to '"+key+"'",ex);
+        throw new GateRuntimeException("Could not get value for column "+(firstColumn+i),ex);
       }
-      ResultSet rs = null;
+      columnValues.add(value);
+    }
+    //System.out.println("Got column values: "+columnValues);
+    return columnValues;
+  }
+  
+  private synchronized ResultColumns initResultColumns(ResultSetMetaData rsmd, int firstColumn) {
+    if (resultColumns != null) {
+      return resultColumns;
+    }
+    List<String> columns = new ArrayList<String>();
+    int nrColumns = 0;
+    try {
+      nrColumns = rsmd.getColumnCount() - firstColumn + 1;
+      //System.out.println("Column count is "+columnCount);
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not get column count", ex);
+    }
+    for (int i = firstColumn; i < firstColumn + nrColumns; i++) {
+      String columnName = "";
       try {
-        rs = stSelect.executeQuery();
+        columnName = rsmd.getColumnName(i);
       } catch (SQLException ex) {
-        throw new GateRuntimeException("Error executing query for "+key,ex);
+        throw new GateRuntimeException("Could not get column name", ex);
       }
-      
-      
-      // TODO: cache the metadata since it should be the same for all results
-      // instead of keeping rsmd around, store the column names in a list
-      
-      // if we still do not have our caches create them
-      if (resultColumns == null) {
-        try {
-          // get the result metadata so we know the column names
-          rsmd = rs.getMetaData();
-        } catch (SQLException ex) {
-          throw new GateRuntimeException("Could not get result set metadata", ex);
-        }
-        resultColumns = new ArrayList<String>();
-        try {
-          columnCount = rsmd.getColumnCount();
-          //System.out.println("Column count is "+columnCount);
-        } catch (SQLException ex) {
-          throw new GateRuntimeException("Could not get column count", ex);
-        }
-        for (int i = 1; i <= columnCount; i++) {
-          String columnName = "";
-          try {
-            columnName = rsmd.getColumnName(i);
-          } catch (SQLException ex) {
-            throw new GateRuntimeException("Could not get column name", ex);
-          }
-          resultColumns.add(columnName);
-        }
-        //System.out.println("Got column names: "+columnNames);
-        // Now is also a good time to cache the column name mappings
-        resultFeatures = new ArrayList<String>(resultColumns.size());
-        resultTypes = new ArrayList<String>(resultColumns.size());
-        for(int k=0; k<resultColumns.size(); k++) {
-          String column = resultColumns.get(k);
-          String mapping = (String)nameMappings.get(column);
-          if(mapping == null) {
-            resultFeatures.add(column);
-            resultTypes.add("");
-          } else {
-            // first check if the mapping has a type added
-            // for now the only thing supported is |s2adouble!!
-            String name = mapping;
-            String type = "";
-            if (mapping.endsWith("|s2adouble")) {
-              type = "s2adouble";
-              name = mapping.substring(0,mapping.length()-"|s2adouble".length());
-            } else if(mapping.endsWith("|s2ldouble")) {
-              type = "s2ldouble";
-              name = mapping.substring(0,mapping.length()-"|s2ldouble".length());
-            }
-            resultFeatures.add(name);
-            resultTypes.add(type);
-          }
+      columns.add(columnName);
+    }
+    //System.out.println("Got column names: "+columnNames);
+    sharedData.put("queryColumns", new QueryColumns(selectSql, columns));
+    return initResultColumns(columns);
+  }
+  
+  // Get the result columns for rows we did not decode ourselves, i.e. rows
+  // we only got from the cache.
+  private ResultColumns getResultColumns() {
+    ResultColumns rc = resultColumns;
+    if (rc != null) {
+      return rc;
+    }
+    QueryColumns qc = (QueryColumns)sharedData.get("queryColumns");
+    if (qc == null || !qc.sql.equals(selectSql)) {
+      throw new GateRuntimeException("No column names known for the rows of query "+selectSql);
+    }
+    return initResultColumns(qc.columns);
+  }
+  
+  private synchronized ResultColumns initResultColumns(List<String> columns) {
+    // Now is also a good time to cache the column name mappings
+    List<String> features = new ArrayList<String>(columns.size());
+    List<String> types = new ArrayList<String>(columns.size());
+    for(int k=0; k<columns.size(); k++) {
+      String column = columns.get(k);
+      String mapping = (String)nameMappings.get(column);
+      if(mapping == null) {
+        features.add(column);
+        types.add("");
+      } else {
+        // first check if the mapping has a type added
+        // for now the only thing supported is |s2adouble!!
+        String name = mapping;
+        String type = "";
+        if (mapping.endsWith("|s2adouble")) {
+          type = "s2adouble";
+          name = mapping.substring(0,mapping.length()-"|s2adouble".length());
+        } else if(mapping.endsWith("|s2ldouble")) {
+          type = "s2ldouble";
+          name = mapping.substring(0,mapping.length()-"|s2ldouble".length());
         }
+        features.add(name);
+        types.add(type);
       }
-      
-      ///
-      
-      int nrRows = 0;
-      while(getNextRow(rs)) {
-        nrRows++;
-        columnValues = new ArrayList<Object>();
-        for(int i=1; i<=columnCount; i++) {
-          // get the value of the column 
-          Object value = null;
-          try {
-            value = rs.getObject(i);
-          } catch (SQLException ex) {
-            throw new GateRuntimeException("Could not get value for column "+i,ex);
-          }
-          columnValues.add(value);
-        }
-        //System.out.println("Got column values: "+columnValues);
-          
-        if(getProcessingMode().equals(ProcessingMode.AddFeaturesFromFirst) ||
-           getProcessingMode().equals(ProcessingMode.UpdateFeatures)) {
-          // just set the features of the current annotation from the 
-          // values from each column in the result set
-          
-          setFeaturesFromColumns(fm, columnValues);
-          
-          // if we just wanted the values from the first row, exit this loop
-          if(getProcessingMode().equals(ProcessingMode.AddFeaturesFromFirst)) {
-            break;
-          }
-        } else if (getProcessingMode().equals(ProcessingMode.AddAnnotations)) {
-          // create a new annotation for the value list
-          FeatureMap newfm = Factory.newFeatureMap();
-          setFeaturesFromColumns(newfm, columnValues);
-          gate.Utils.addAnn(outputAS, ann, getOutputAnnotationType(), newfm);
-          
+    }
+    resultColumns = new ResultColumns(columns, features, types);
+    return resultColumns;
+  }
+  
+  @Override
+  protected List<Object> lookupRows(String key) {
+    if (preloaded != null) {
+      List<Object> rows = preloaded.getRows(key, wantsAllRows());
+      if (rows != null) {
+        return rows;
+      }
+      // the table has several keys which only differ in case, accents or
+      // trailing spaces, only the database knows which of them match
+    }
+    return super.lookupRows(key);
+  }
+  
+  @Override
+  protected boolean needsConnection() {
+    return preloaded == null;
+  }
+  
+  @Override
+  protected boolean wantsAllRows() {
+    return !getProcessingMode().equals(ProcessingMode.AddFeaturesFromFirst);
+  }
+  
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void applyRows(Document doc, Annotation ann, List<Object> rows, AnnotationSet outputAS) {
+    FeatureMap fm = ann.getFeatures();
+    for(Object row : rows) {
+      List<Object> columnValues = (List<Object>)row;
+      if(getProcessingMode().equals(ProcessingMode.AddFeaturesFromFirst) ||
+         getProcessingMode().equals(ProcessingMode.UpdateFeatures)) {
+        // just set the features of the current annotation from the 
+        // values from each column in the result set
+        
+        setFeaturesFromColumns(fm, columnValues);
+        
+        // if we just wanted the values from the first row, exit this loop
+        if(getProcessingMode().equals(ProcessingMode.AddFeaturesFromFirst)) {
+          break;
         }
-      } // while getNextRow(rs)
-      //System.out.println("Number rows we got: "+nrRows);
-    } // if key is not empty
+      } else if (getProcessingMode().equals(ProcessingMode.AddAnnotations)) {
+        // create a new annotation for the value list
+        FeatureMap newfm = Factory.newFeatureMap();
+        setFeaturesFromColumns(newfm, columnValues);
+        gate.Utils.addAnn(outputAS, ann, getOutputAnnotationType(), newfm);
+        
+      }
+    } 
   }  
 
   
   protected void setFeaturesFromColumns(FeatureMap fm, List<Object> colValues) {
+    ResultColumns rc = getResultColumns();
     for(int i=0; i<colValues.size(); i++) {
-      String type = resultTypes.get(i);
-      String fname = resultFeatures.get(i);
+      String type = rc.types.get(i);
+      String fname = rc.features.get(i);
       Object value = colValues.get(i);
       if("s2adouble".equals(type)) {
         double[] doubles;
@@ -256,29 +329,20 @@ public class JdbcLookup  extends JdbcLookupBase {
           //System.err.println(els);
           String[] elss = els.split(",\\s+");
           doubles = new ArrayList<Double>(elss.length);
-          for(int k=0; k<doubles.size(); k++) {
+          for(int k=0; k<elss.length; k++) {
             doubles.add(Double.parseDouble(elss[k]));
           }
         }
         //System.err.println("fn="+fname+", d="+doubles);
         fm.put(fname,doubles);
       } else {
-        fm.put(fname,colValues.get(i));
+        // the row may be shared by all annotations with the same key, the
+        // cache and the preloaded table, so mutable values get copied
+        fm.put(fname,FeatureValues.copy(value));
       }
     }
   }
   
-  boolean getNextRow(ResultSet rs) {
-    boolean haveNext = false;
-    try {
-      haveNext = rs.next();
-    } catch(SQLException ex) {
-      throw new GateRuntimeException("Error getting a row: ",ex);
-    }
-    return haveNext;
-  }
-  
-  
   public enum ProcessingMode {
     AddFeaturesFromFirst,
     UpdateFeatures,
@@ -290,7 +354,48 @@ public class JdbcLookup  extends JdbcLookupBase {
     if(nameMappings == null) {
       nameMappings = Factory.newFeatureMap();
     }
+    // the mappings or the query may have changed since the last run, the 
+    // feature names and types get created again from the column names
+    resultColumns = null;
     prepareStatement(cntrlr);
+    preloaded = null;
+    if (getPreload() != null && getPreload()) {
+      preload(cntrlr);
+      initResultColumns(preloaded.getColumnNames());
+    }
+  }
+  
+  // Load the table or use the one already loaded by another duplicate if
+  // it was loaded with the same query.
+  private void preload(Controller cntrlr) {
+    String sql = gate.Utils.replaceVariablesInString(getPreloadSqlQuery(), this, cntrlr);
+    synchronized (preloadSyncObject) {
+      if (sql.equals(sharedData.get("preloadedSql"))) {
+        preloaded = (PreloadedTable)sharedData.get("preloaded");
+        return;
+      }
+      sharedData.remove("preloaded");
+      System.err.println("INFO: preloading rows for PR " + getName() + " using query " + sql);
+      long startTime = gate.util.Benchmark.startPoint();
+      borrowConnection();
+      try {
+        preloaded = PreloadedTable.load(connection, sql,
+                getPreloadFetchSize() == null ? 10000 : getPreloadFetchSize());
+      } finally {
+        returnConnection();
+      }
+      benchmarkCheckpoint(startTime, "__JdbcPreload", null);
+      System.err.println("INFO: preloaded rows for PR " + getName() + ": " + preloaded);
+      sharedData.put("preloaded", preloaded);
+      sharedData.put("preloadedSql", sql);
+    }
+  }
+
+  @Override
+  public void reInit() throws ResourceInstantiationException {
+    sharedData.remove("preloaded");
+    sharedData.remove("preloadedSql");
+    super.reInit();
   }
 
   
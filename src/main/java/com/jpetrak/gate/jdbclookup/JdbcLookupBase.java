@@ -32,23 +32,44 @@ import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
+import gate.creole.metadata.Sharable;
+import gate.util.Benchmark;
+import gate.util.Benchmarkable;
 import gate.util.GateRuntimeException;
 import java.io.File;
 import java.net.URL;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 
-// TODO: only re-prepare the statement if the effective SQL would have changed
-// from what we already have!
-// To do this, remember the last effective SQL and compare to what we would 
-// get now and only re-prepare/re-remember if different!
-
-
 /**
  * Common code for both the JdbcLookup and JdbcJsonLookup PRs
  * 
@@ -56,7 +77,7 @@ import org.apache.log4j.Logger;
  */
 public class JdbcLookupBase 
   extends AbstractLanguageAnalyser 
-  implements ControllerAwarePR
+  implements ControllerAwarePR, Benchmarkable
 {
 
   protected String inputASName = "";
@@ -101,6 +122,20 @@ public class JdbcLookupBase
   }
   protected String containingType = "";
 
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If an input annotation in several overlapping containing annotations should be processed once for each of them",
+          defaultValue = "false")
+  public void setOncePerContainingAnnotation(Boolean flag) {
+    oncePerContainingAnnotation = flag;
+  }
+
+  public Boolean getOncePerContainingAnnotation() {
+    return oncePerContainingAnnotation;
+  }
+  protected Boolean oncePerContainingAnnotation = false;
+
   @RunTime
   @Optional
   @CreoleParameter(
@@ -214,6 +249,17 @@ public class JdbcLookupBase
     return jdbcPassword;
   }
   
+  protected JdbcLR jdbcLR = null;
+  @Optional
+  @CreoleParameter(
+          comment = "If specified, use the connection pool of this JdbcLR and ignore the JDBC parameters of this PR")
+  public void setJdbcLR(JdbcLR lr) {
+    jdbcLR = lr;
+  }
+  public JdbcLR getJdbcLR() {
+    return jdbcLR;
+  }
+  
   protected URL dbDirectoryUrl = null;
   {
     try {
@@ -244,10 +290,237 @@ public class JdbcLookupBase
     sqlQuery = q;
   }
   
+  protected BatchMode batchMode = BatchMode.NONE;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If and how to look up all the keys of a document in chunked multi-key queries",
+          defaultValue = "NONE")
+  public void setBatchMode(BatchMode mode) {
+    batchMode = mode;
+  }
+  public BatchMode getBatchMode() {
+    return batchMode;
+  }
+  
+  // The batch query must return the key as the first column, followed by 
+  // the same columns as the sqlQuery. The placeholder !!KEYS!! gets replaced
+  // by as many "?" as the batch size for IN_LIST, and by a single "?" 
+  // for the ANY_ARRAY and H2_TABLE modes. Keys for which the returned keys
+  // do not tell which rows belong to them, e.g. because of a case-insensitive
+  // collation, are looked up again with the sqlQuery.
+  protected String batchSqlQuery = "SELECT <<keyfieldname>>, <<columnnames>> FROM <<tablename>> WHERE <<keyfieldname>> IN (!!KEYS!!)";
+  public String getBatchSqlQuery() {
+    return batchSqlQuery;
+  }
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The SQL to use in batch mode, must return the key as first column and contain !!KEYS!! where the keys go",
+          defaultValue = "SELECT <<keyfieldname>>, <<columnnames>> FROM <<tablename>> WHERE <<keyfieldname>> IN (!!KEYS!!)")
+  public void setBatchSqlQuery(String q) {
+    batchSqlQuery = q;
+  }
+  
+  protected Integer batchSize = 500;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Maximum number of keys to look up with one batch query",
+          defaultValue = "500")
+  public void setBatchSize(Integer n) {
+    batchSize = n;
+  }
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+  
+  
+  protected Integer asyncLookups = 0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Maximum number of lookups of a document to run concurrently in the background, 0 to run them one after the other",
+          defaultValue = "0")
+  public void setAsyncLookups(Integer n) {
+    asyncLookups = n;
+  }
+  public Integer getAsyncLookups() {
+    return asyncLookups;
+  }
+  
+  protected Integer parallelThreshold = 0;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Minimum number of input annotations for which a document's keys are looked up in parallel chunks, 0 to never do this",
+          defaultValue = "0")
+  public void setParallelThreshold(Integer n) {
+    parallelThreshold = n;
+  }
+  public Integer getParallelThreshold() {
+    return parallelThreshold;
+  }
+  
+  protected Integer parallelChunkSize = 5000;
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Maximum number of distinct keys in each chunk looked up in parallel, each chunk uses its own connection",
+          defaultValue = "5000")
+  public void setParallelChunkSize(Integer n) {
+    parallelChunkSize = n;
+  }
+  public Integer getParallelChunkSize() {
+    return parallelChunkSize;
+  }
+  
+  protected Integer cacheSize = 0;
+  @Optional
+  @CreoleParameter(
+          comment = "Maximum number of keys to cache the results for, shared by all duplicates, 0 to disable caching",
+          defaultValue = "0")
+  public void setCacheSize(Integer n) {
+    cacheSize = n;
+  }
+  public Integer getCacheSize() {
+    return cacheSize;
+  }
+  
+  protected Integer cacheTimeToLive = 0;
+  @Optional
+  @CreoleParameter(
+          comment = "Number of seconds after which a cached result expires, 0 for never",
+          defaultValue = "0")
+  public void setCacheTimeToLive(Integer seconds) {
+    cacheTimeToLive = seconds;
+  }
+  public Integer getCacheTimeToLive() {
+    return cacheTimeToLive;
+  }
+  
+  protected Boolean cacheMisses = true;
+  @Optional
+  @CreoleParameter(
+          comment = "If keys for which nothing was found should be cached too",
+          defaultValue = "true")
+  public void setCacheMisses(Boolean flag) {
+    cacheMisses = flag;
+  }
+  public Boolean getCacheMisses() {
+    return cacheMisses;
+  }
+  
+  protected String keyFilterQuery = "";
+  @Optional
+  @CreoleParameter(
+          comment = "If not empty, a query returning all keys, e.g. SELECT key FROM table, used to build a filter which avoids queries for keys not in the table",
+          defaultValue = "")
+  public void setKeyFilterQuery(String q) {
+    keyFilterQuery = q;
+  }
+  public String getKeyFilterQuery() {
+    return keyFilterQuery;
+  }
+  
+  protected Double keyFilterFalsePositiveRate = 0.01;
+  @Optional
+  @CreoleParameter(
+          comment = "The false positive rate of the key filter",
+          defaultValue = "0.01")
+  public void setKeyFilterFalsePositiveRate(Double rate) {
+    keyFilterFalsePositiveRate = rate;
+  }
+  public Double getKeyFilterFalsePositiveRate() {
+    return keyFilterFalsePositiveRate;
+  }
+  
+  protected URL keyFilterFileUrl = null;
+  @Optional
+  @CreoleParameter(
+          comment = "Where to save the key filter, if not specified, a file in the database directory. The filter is rebuilt when the number of keys changes, if keyFilterCheckRows is true, delete the file to force a rebuild.")
+  public void setKeyFilterFileUrl(URL u) {
+    keyFilterFileUrl = u;
+  }
+  public URL getKeyFilterFileUrl() {
+    return keyFilterFileUrl;
+  }
+  
+  protected Boolean keyFilterCheckRows = true;
+  @Optional
+  @CreoleParameter(
+          comment = "If the rows returned by the key filter query should be counted when loading a saved filter, to rebuild it if the number changed. Turn off if counting is too slow, then delete the file to force a rebuild.",
+          defaultValue = "true")
+  public void setKeyFilterCheckRows(Boolean flag) {
+    keyFilterCheckRows = flag;
+  }
+  public Boolean getKeyFilterCheckRows() {
+    return keyFilterCheckRows;
+  }
+  
+  // The shared data and the duplicate counter are shared between all 
+  // duplicates of the PR, same as for the AbstractDocumentProcessor.
+  protected AtomicInteger nDuplicates = null;
+  @Sharable
+  public void setNDuplicates(AtomicInteger n) {
+    nDuplicates = n;
+  }
+  public AtomicInteger getNDuplicates() {
+    return nDuplicates;
+  }
+  
+  protected ConcurrentHashMap<String,Object> sharedData = null;
+  @Sharable
+  public void setSharedData(ConcurrentHashMap<String,Object> v) {
+    sharedData = v;
+  }
+  public ConcurrentHashMap<String,Object> getSharedData() {
+    return sharedData;
+  }
+  
+  protected int duplicateId = 0;
+  private boolean haveDuplicateId = false;
+  
+  private static final Object syncObject = new Object();
   
-  protected Logger logger;
+  // the pool for parallel lookups within a document, shared by all PRs 
+  private static ForkJoinPool parallelPool = null;
+  
+  // Time spent in the phases of processing a document, summed over all 
+  // threads used for the document. Only measured if benchmarking is enabled.
+  private boolean benchmarking = false;
+  private final AtomicLong connectNanos = new AtomicLong();
+  private final AtomicLong fetchNanos = new AtomicLong();
+  private final AtomicLong decodeNanos = new AtomicLong();
+  private final AtomicLong annotateNanos = new AtomicLong();
+  
+  // number of keys and distinct keys per document summed over all documents
+  // processed since the controller started
+  private long nKeysTotal = 0;
+  private long nDistinctKeysTotal = 0;
+  
+  // lookup counts and latencies, shared by all duplicates of the PR and
+  // exposed as an MBean
+  protected LookupMetrics metrics;
+  
+  // the keys and results of the current document, for the flight recorder
+  private int docKeys = 0;
+  private int docDistinctKeys = 0;
+  private final AtomicInteger docHits = new AtomicInteger();
+  private final AtomicLong docRows = new AtomicLong();
+  
+  protected Logger logger = Logger.getLogger(this.getClass().getName());
+  protected LookupCache cache;
+  protected KeyFilter keyFilter;
+  // The connection and the statements are only set while a document is
+  // being processed, they are borrowed from the pool for each document.
+  protected JdbcConnectionPool pool;
+  protected JdbcConnectionPool.PooledConnection pooledConnection;
   protected PreparedStatement stSelect;
+  protected PreparedStatement stBatch;
   protected Connection connection;
+  protected String selectSql;
+  protected String batchSql;
 
   @Override
   public synchronized Resource init() throws ResourceInstantiationException {
@@ -259,54 +532,212 @@ public class JdbcLookupBase
       throw new ResourceInstantiationException("SQL query must be specified");
     }
     // TODO: check all other init parms
+    synchronized (syncObject) {
+      if (getNDuplicates() == null) {
+        setNDuplicates(new AtomicInteger(0));
+        setSharedData(new ConcurrentHashMap<String,Object>());
+        duplicateId = 0;
+      } else if (!haveDuplicateId) {
+        duplicateId = getNDuplicates().addAndGet(1);
+      }
+      haveDuplicateId = true;
+      cache = null;
+      if (getCacheSize() != null && getCacheSize() > 0) {
+        cache = (LookupCache)sharedData.get("cache");
+        if (cache == null) {
+          cache = new LookupCache(getCacheSize(), 
+                  getCacheTimeToLive() == null ? 0 : getCacheTimeToLive(),
+                  getCacheMisses() == null || getCacheMisses());
+          sharedData.put("cache", cache);
+        }
+      }
+      metrics = (LookupMetrics)sharedData.get("metrics");
+      if (metrics == null) {
+        metrics = new LookupMetrics(this.getClass().getSimpleName(), getName());
+        metrics.register();
+        sharedData.put("metrics", metrics);
+      }
+    }
+    long connectStart = Benchmark.startPoint();
     establishConnection();
+    benchmarkCheckpoint(connectStart, "__JdbcConnect", null);
+    keyFilter = null;
+    if (getKeyFilterQuery() != null && !getKeyFilterQuery().isEmpty()) {
+      keyFilter = getSharedKeyFilter();
+    }
     return this;
   }
   
+  // The first duplicate to get here loads or builds the key filter, the 
+  // others wait for it. Only duplicates of this PR wait for each other.
+  private KeyFilter getSharedKeyFilter() {
+    FutureTask<KeyFilter> task = new FutureTask<KeyFilter>(new Callable<KeyFilter>() {
+      @Override
+      public KeyFilter call() {
+        String query = gate.Utils.replaceVariablesInString(getKeyFilterQuery(), JdbcLookupBase.this);
+        borrowConnection();
+        try {
+          return KeyFilter.loadOrBuild(getKeyFilterFile(query), connection, query,
+                  getKeyFilterFalsePositiveRate() == null ? 0.01 : getKeyFilterFalsePositiveRate(),
+                  getKeyFilterCheckRows() == null || getKeyFilterCheckRows());
+        } finally {
+          returnConnection();
+        }
+      }
+    });
+    @SuppressWarnings("unchecked")
+    Future<KeyFilter> shared = (Future<KeyFilter>)sharedData.putIfAbsent("keyFilter", task);
+    if (shared == null) {
+      shared = task;
+      task.run();
+    }
+    try {
+      return shared.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GateRuntimeException("Interrupted while waiting for the key filter", ex);
+    } catch (java.util.concurrent.ExecutionException ex) {
+      // let the next init try again
+      sharedData.remove("keyFilter", shared);
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      }
+      throw new GateRuntimeException("Could not create the key filter", ex.getCause());
+    }
+  }
+  
+  private File getKeyFilterFile(String query) {
+    if (getKeyFilterFileUrl() != null) {
+      return gate.util.Files.fileFromURL(getKeyFilterFileUrl());
+    }
+    // by default, use a file next to the database which is specific to the
+    // query and database used
+    String dbdirectory = new File(getDbDirectoryUrl().getPath()).getAbsolutePath();
+    String id = Integer.toHexString((getJdbcUrl() + "\n" + query).hashCode());
+    return new File(dbdirectory, "keyfilter-" + id + ".bloom");
+  }
+  
   private void establishConnection() {
+    if (getJdbcLR() != null) {
+      if (getJdbcLR().getPool() == null) {
+        throw new GateRuntimeException("The JdbcLR has no connection pool, maybe it was already closed");
+      }
+      pool = getJdbcLR().getPool().acquire();
+      return;
+    }
     try {
       Class.forName(jdbcDriver);
     } catch (ClassNotFoundException ex) {
       throw new GateRuntimeException("Could not load JDBC driver " + jdbcDriver, ex);
     }
+    // expand any variables in the url
+    // First we have to create a map and put the relpath in there so it
+    // can get replaced too
+    //
+    String dbdirectory = "";
+    if(getDbDirectoryUrl().getProtocol().equals("file")) {
+      dbdirectory = getDbDirectoryUrl().getPath();
+      dbdirectory = new File(dbdirectory).getAbsolutePath();
+    } else {
+      throw new GateRuntimeException("The database directory URL is not a file URL");
+    }
+    Map<String,String> dbdirectoryMap = new HashMap<String,String>();
+    dbdirectoryMap.put("dbdirectory", dbdirectory);
+
+    String expandedUrl = 
+      gate.Utils.replaceVariablesInString(jdbcUrl, dbdirectoryMap, this);
+    String expandedUser = 
+      gate.Utils.replaceVariablesInString(jdbcUser, dbdirectoryMap, this);
+    String expandedPassword = 
+      gate.Utils.replaceVariablesInString(jdbcPassword, dbdirectoryMap, this);
+
+    System.err.println("INFO: using JDBC URL " + expandedUrl + " for PR " + getName());
+    pool = JdbcConnectionPool.acquire(expandedUrl, expandedUser, expandedPassword);
+    // make sure we can actually connect
     try {
-      // expand any variables in the url
-      // First we have to create a map and put the relpath in there so it
-      // can get replaced too
-      //
-      System.out.println("Relpath URL is: "+getDbDirectoryUrl());
-      String dbdirectory = "";
-      if(getDbDirectoryUrl().getProtocol().equals("file")) {
-        dbdirectory = getDbDirectoryUrl().getPath();
-        dbdirectory = new File(dbdirectory).getAbsolutePath();
-      } else {
-        throw new GateRuntimeException("The database directory URL is not a file URL");
-      }
-      Map<String,String> dbdirectoryMap = new HashMap<String,String>();
-      dbdirectoryMap.put("dbdirectory", dbdirectory);
-      
-      String expandedUrl = 
-        gate.Utils.replaceVariablesInString(jdbcUrl, dbdirectoryMap, this);
-      String expandedUser = 
-        gate.Utils.replaceVariablesInString(jdbcUser, dbdirectoryMap, this);
-      String expandedPassword = 
-        gate.Utils.replaceVariablesInString(jdbcPassword, dbdirectoryMap, this);
-      
-      System.out.println("Using JDBC URL: "+expandedUrl);
-      connection = DriverManager.getConnection(expandedUrl, expandedUser, expandedPassword);
+      borrowConnection();
+      returnConnection();
+    } catch (GateRuntimeException ex) {
+      pool.release();
+      pool = null;
+      throw ex;
+    }
+  }
+  
+  /**
+   * Borrow a connection from the pool and get the prepared statements for
+   * it. This sets the connection, stSelect and stBatch fields until 
+   * returnConnection is called.
+   */
+  protected void borrowConnection() {
+    pooledConnection = borrowFromPool();
+    connection = pooledConnection.getConnection();
+    try {
+      stSelect = selectSql == null ? null : pooledConnection.prepare(selectSql);
     } catch (SQLException ex) {
-      throw new GateRuntimeException("Could not establish JDBC connection",ex);
+      returnConnection();
+      throw new GateRuntimeException("Could not prepare query statement:\n"+selectSql,ex);
+    }
+    try {
+      stBatch = batchSql == null ? null : pooledConnection.prepare(batchSql);
+    } catch (SQLException ex) {
+      returnConnection();
+      throw new GateRuntimeException("Could not prepare batch query statement:\n"+batchSql,ex);
+    }
+  }
+  
+  /**
+   * Return the borrowed connection to the pool.
+   */
+  protected void returnConnection() {
+    if (pooledConnection != null) {
+      pool.returnConnection(pooledConnection);
+      pooledConnection = null;
+      connection = null;
+      stSelect = null;
+      stBatch = null;
     }
   }
   
   protected void prepareStatement(Controller controller) {
+    long startTime = Benchmark.startPoint();
     String sql = getSqlQuery();
     sql = gate.Utils.replaceVariablesInString(sql, this, controller);
-    try {
-      // System.out.println("Final SQL used is "+sql);
-      stSelect = connection.prepareStatement(sql);      
-    } catch (SQLException ex) {
-      throw new GateRuntimeException("Could not prepare query statement:\n"+sql,ex);
+    // System.out.println("Final SQL used is "+sql);
+    selectSql = sql;
+    batchSql = null;
+    synchronized (this) {
+      nKeysTotal = 0;
+      nDistinctKeysTotal = 0;
+    }
+    if(getBatchMode() != null && getBatchMode() != BatchMode.NONE) {
+      if(getBatchSize() == null || getBatchSize() < 1) {
+        throw new GateRuntimeException("batchSize must be at least 1");
+      }
+      String placeholders = "?";
+      if(getBatchMode() == BatchMode.IN_LIST) {
+        StringBuilder sb = new StringBuilder("?");
+        for(int i=1; i<getBatchSize(); i++) {
+          sb.append(",?");
+        }
+        placeholders = sb.toString();
+      }
+      String bsql = getBatchSqlQuery();
+      if(bsql == null || !bsql.contains("!!KEYS!!")) {
+        throw new GateRuntimeException("batchSqlQuery must contain the !!KEYS!! placeholder");
+      }
+      bsql = gate.Utils.replaceVariablesInString(bsql, this, controller);
+      batchSql = bsql.replace("!!KEYS!!", placeholders);
+    }
+    // prepare the statements now so we find any problems before processing
+    // the first document, the pooled connection keeps them for later
+    borrowConnection();
+    returnConnection();
+    benchmarkCheckpoint(startTime, "__JdbcPrepare", null);
+    if (cache != null) {
+      // cached rows from a different query or for a different number of rows
+      // per key cannot be used any more
+      cache.checkSignature(sql + "\n" + wantsAllRows() + "\n" + getDecodingSignature());
     }
   }
   
@@ -314,21 +745,25 @@ public class JdbcLookupBase
   @Override
   public void cleanup() {
     shutdownConnection();
+    if (metrics != null && duplicateId == 0) {
+      metrics.unregister();
+    }
   }
 
   @Override
   public void reInit() throws ResourceInstantiationException {
     shutdownConnection();
+    // the cache and key filter parameters may have changed
+    sharedData.remove("cache");
+    sharedData.remove("keyFilter");
     init();
   }
   
   private void shutdownConnection() {
-    try {
-      if(connection != null && connection.isValid(1)) {
-        connection.close();
-      }
-    } catch (SQLException ex) {
-      throw new GateRuntimeException("Error when disconnecting JDBC connection",ex);
+    returnConnection();
+    if (pool != null) {
+      pool.release();
+      pool = null;
     }
   }
  
@@ -342,6 +777,17 @@ public class JdbcLookupBase
     if (theDocument == null) {
       throw new ExecutionException("No document to process!");
     }
+    long startTime = Benchmark.startPoint();
+    Object event = LookupEvents.beginDocumentLookup();
+    benchmarking = Benchmark.isBenchmarkingEnabled();
+    docKeys = 0;
+    docDistinctKeys = 0;
+    docHits.set(0);
+    docRows.set(0);
+    connectNanos.set(0);
+    fetchNanos.set(0);
+    decodeNanos.set(0);
+    annotateNanos.set(0);
 
     AnnotationSet inputAS = null;
     if (inputASName == null
@@ -367,36 +813,881 @@ public class JdbcLookupBase
 
     AnnotationSet outputAS = document.getAnnotations(outputASName);
 
-    fireStatusChanged("BdbJsonLookup: performing look-up in " + theDocument.getName() + "...");
-
+    // collect the input annotations to process, in the order in which we 
+    // process them
+    List<Annotation> toProcess = new ArrayList<Annotation>(inputAnns.size());
     if (containingAnns == null) {
       // go through all input annotations 
-      for (Annotation ann : inputAnns) {
-        doLookup(theDocument, ann, outputAS);
-        if(isInterrupted()) {
-          throw new ExecutionInterruptedException("JdbcJsonLookup has been interrupted");
-        }
-      }
+      toProcess.addAll(inputAnns);
     } else {
-      // go through the input annotations contained in the contianing annotations
-      for (Annotation containingAnn : containingAnns) {
-        AnnotationSet containedAnns = gate.Utils.getContainedAnnotations(inputAnns, containingAnn);
-        for (Annotation ann : containedAnns) {
-          doLookup(theDocument, ann, outputAS);
-          if(isInterrupted()) { 
-            throw new ExecutionInterruptedException("JdbcJsonLookup has been interrupted");
-          }
-        }
+      // go through the input annotations contained in the containing annotations
+      toProcess.addAll(ContainedAnnotations.getContained(inputAnns, containingAnns,
+              getOncePerContainingAnnotation() != null && getOncePerContainingAnnotation()));
+    }
+
+    fireStatusChanged("BdbJsonLookup: performing look-up in " + theDocument.getName() + "...");
+
+    // asynchronous and parallel lookups borrow their own connections
+    boolean parallel = isParallel(toProcess.size());
+    if (needsConnection() && !isAsync() && !parallel) {
+      borrowConnection();
+    }
+    try {
+      if (parallel) {
+        doParallelLookup(theDocument, toProcess, outputAS);
+      } else {
+        lookupAll(theDocument, toProcess, outputAS);
       }
+    } finally {
+      returnConnection();
+    }
+    
+    if (benchmarking) {
+      Map<Object, Object> features = new HashMap<Object, Object>();
+      features.put(Benchmark.DOCUMENT_NAME_FEATURE, theDocument.getName());
+      benchmarkCheckpointNanos(connectNanos.get(), "__JdbcConnect", features);
+      benchmarkCheckpointNanos(fetchNanos.get() - decodeNanos.get(), "__JdbcQuery", features);
+      benchmarkCheckpointNanos(decodeNanos.get(), "__JdbcDecode", features);
+      benchmarkCheckpointNanos(annotateNanos.get(), "__JdbcAnnotate", features);
+      benchmarkCheckpoint(startTime, "__JdbcLookup", features);
     }
+    LookupEvents.commitDocumentLookup(event, getName(), theDocument.getName(),
+            docKeys, docDistinctKeys, docHits.get(), docRows.get());
 
     fireProcessFinished();
     fireStatusChanged("BdbJsonLookup: look-up complete!");
 
   }
+  
+  private void lookupAll(Document theDocument, List<Annotation> toProcess, AnnotationSet outputAS) 
+          throws ExecutionInterruptedException {
+    if (isAsync()) {
+      doAsyncLookup(theDocument, toProcess, outputAS);
+    } else if (stBatch == null) {
+      // each distinct key of the document is only looked up once
+      Map<String, List<Object>> rowsByKey = new HashMap<String, List<Object>>();
+      int nKeys = 0;
+      for (Annotation ann : toProcess) {
+        String key = getKey(theDocument, ann);
+        if (!key.isEmpty()) {
+          nKeys++;
+          List<Object> rows = rowsByKey.get(key);
+          if (rows == null) {
+            long startNanos = System.nanoTime();
+            rows = lookupRows(key);
+            recordLookup(System.nanoTime() - startNanos, rows);
+            rowsByKey.put(key, rows);
+          }
+          if (!rows.isEmpty()) {
+            applyRowsTimed(theDocument, ann, rows, outputAS);
+          }
+        }
+        if(isInterrupted()) {
+          throw new ExecutionInterruptedException("JdbcJsonLookup has been interrupted");
+        }
+      }
+      recordKeys(theDocument, nKeys, rowsByKey.size());
+    } else {
+      doBatchLookup(theDocument, toProcess, outputAS);
+    }
+  }
 
+  /**
+   * Look up the key for a single annotation and update the document from
+   * the result rows.
+   * 
+   * @param doc the document
+   * @param ann the input annotation
+   * @param outputAS the output annotation set
+   */
   public void doLookup(Document doc, Annotation ann, AnnotationSet outputAS) {  
-    throw new GateRuntimeException("Must not invoked JdbcLookupBase.doLookup directly");
+    String key = getKey(doc, ann);
+    if (!key.isEmpty()) {
+      long startNanos = System.nanoTime();
+      List<Object> rows = lookupRows(key);
+      recordLookup(System.nanoTime() - startNanos, rows);
+      if (!rows.isEmpty()) {
+        applyRowsTimed(doc, ann, rows, outputAS);
+      }
+    }
+  }
+  
+  /**
+   * Look up the keys of the annotations in the background, with at most 
+   * asyncLookups queries running at the same time, each with its own 
+   * connection. The document is updated from the results on the calling
+   * thread, in the same order as the annotations.
+   * 
+   * @param doc the document
+   * @param anns the input annotations in processing order
+   * @param outputAS the output annotation set
+   * @throws ExecutionInterruptedException if the PR got interrupted
+   */
+  protected void doAsyncLookup(Document doc, List<Annotation> anns, AnnotationSet outputAS) 
+          throws ExecutionInterruptedException {
+    ExecutorService executor = getAsyncExecutor();
+    // one permit for each query which may run, released when the query is done
+    final Semaphore queries = new Semaphore(getAsyncLookups());
+    // the results for the annotations not applied yet, in annotation order
+    ArrayDeque<Future<List<Object>>> inFlight = new ArrayDeque<Future<List<Object>>>();
+    // each distinct key of the document is only looked up once
+    Map<String, Future<List<Object>>> resultByKey = new HashMap<String, Future<List<Object>>>();
+    Future<List<Object>> noRows = CompletableFuture.completedFuture((List<Object>)new ArrayList<Object>(0));
+    int next = 0;
+    int nKeys = 0;
+    try {
+      for (Annotation ann : anns) {
+        final String key = getKey(doc, ann);
+        Future<List<Object>> result = key.isEmpty() ? noRows : resultByKey.get(key);
+        if (result == null) {
+          long startNanos = System.nanoTime();
+          List<Object> rows = lookupKnownRows(key);
+          if (rows != null) {
+            recordLookup(System.nanoTime() - startNanos, rows);
+            result = CompletableFuture.completedFuture(rows);
+          } else {
+            // while the maximum number of queries is running, apply the 
+            // results we are waiting for anyway
+            while (!queries.tryAcquire()) {
+              if (inFlight.isEmpty()) {
+                queries.acquireUninterruptibly();
+                break;
+              }
+              applyAsyncResult(doc, anns.get(next++), inFlight.removeFirst(), outputAS);
+            }
+            result = executor.submit(new Callable<List<Object>>() {
+              @Override
+              public List<Object> call() {
+                try {
+                  return fetchRowsWithOwnConnection(key);
+                } finally {
+                  queries.release();
+                }
+              }
+            });
+          }
+          resultByKey.put(key, result);
+        }
+        if (!key.isEmpty()) {
+          nKeys++;
+        }
+        inFlight.addLast(result);
+        while (!inFlight.isEmpty() && inFlight.peekFirst().isDone()) {
+          applyAsyncResult(doc, anns.get(next++), inFlight.removeFirst(), outputAS);
+        }
+      }
+      while (!inFlight.isEmpty()) {
+        applyAsyncResult(doc, anns.get(next++), inFlight.removeFirst(), outputAS);
+      }
+      recordKeys(doc, nKeys, resultByKey.size());
+    } finally {
+      for (Future<List<Object>> f : inFlight) {
+        f.cancel(false);
+      }
+    }
+  }
+  
+  private void applyAsyncResult(Document doc, Annotation ann, Future<List<Object>> result, 
+          AnnotationSet outputAS) throws ExecutionInterruptedException {
+    List<Object> rows;
+    try {
+      rows = result.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionInterruptedException("Interrupted while waiting for a lookup result");
+    } catch (java.util.concurrent.ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      }
+      throw new GateRuntimeException("Error during asynchronous lookup", ex.getCause());
+    }
+    if (!rows.isEmpty()) {
+      applyRowsTimed(doc, ann, rows, outputAS);
+    }
+    if(isInterrupted()) {
+      throw new ExecutionInterruptedException("JdbcJsonLookup has been interrupted");
+    }
+  }
+  
+  private List<Object> fetchRowsWithOwnConnection(String key) {
+    long startNanos = System.nanoTime();
+    List<Object> rows = queryWithOwnConnection(key);
+    if (cache != null) {
+      cache.put(key, rows);
+    }
+    recordLookup(System.nanoTime() - startNanos, rows);
+    return rows;
+  }
+  
+  // run the single key query with a connection borrowed just for this
+  private List<Object> queryWithOwnConnection(String key) {
+    JdbcConnectionPool.PooledConnection pc = borrowFromPool();
+    try {
+      PreparedStatement st;
+      try {
+        st = pc.prepare(selectSql);
+      } catch (SQLException ex) {
+        throw new GateRuntimeException("Could not prepare query statement:\n"+selectSql,ex);
+      }
+      return fetchRows(st, key);
+    } finally {
+      pool.returnConnection(pc);
+    }
+  }
+  
+  private boolean isAsync() {
+    // batch lookups and lookups which do not need the database are always
+    // done synchronously
+    return getAsyncLookups() != null && getAsyncLookups() > 0 && 
+            batchSql == null && needsConnection();
+  }
+  
+  // The executor for the asynchronous lookups of this PR and its duplicates.
+  // Use virtual threads if the JVM has them (Java 21 or later), otherwise
+  // daemon threads which are created as needed and end when idle. How many
+  // queries run at the same time is limited by each PR, not by the executor.
+  private ExecutorService getAsyncExecutor() {
+    ExecutorService executor = (ExecutorService)sharedData.get("asyncExecutor");
+    if (executor != null) {
+      return executor;
+    }
+    try {
+      Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      executor = (ExecutorService)m.invoke(null);
+    } catch (Exception ex) {
+      final String prefix = "JdbcLookup-async-" + getName() + "-";
+      executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+              new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private int nr = 0;
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, prefix + (nr++));
+                  t.setDaemon(true);
+                  return t;
+                }
+              });
+    }
+    ExecutorService shared = (ExecutorService)sharedData.putIfAbsent("asyncExecutor", executor);
+    if (shared != null) {
+      executor.shutdown();
+      return shared;
+    }
+    System.err.println("INFO: using " + 
+            (executor instanceof ThreadPoolExecutor ? "a pool of threads" : "virtual threads") +
+            " for asynchronous lookups of PR " + getName());
+    return executor;
+  }
+  
+  /**
+   * Look up the distinct keys of the annotations in chunks which are 
+   * processed concurrently, each with its own connection. The keys are
+   * split in halves until a chunk has at most parallelChunkSize keys, so
+   * the number of annotations does not matter for the chunks, only the 
+   * number of distinct keys. Once all keys are resolved, the document is
+   * updated from the results on the calling thread, in the order of the
+   * annotations.
+   * 
+   * @param doc the document
+   * @param anns the input annotations in processing order
+   * @param outputAS the output annotation set
+   * @throws ExecutionInterruptedException if the PR got interrupted
+   */
+  @SuppressWarnings("unchecked")
+  protected void doParallelLookup(Document doc, List<Annotation> anns, AnnotationSet outputAS) 
+          throws ExecutionInterruptedException {
+    // each distinct key of the document is only looked up once
+    List<String> annKeys = new ArrayList<String>(anns.size());
+    Map<String, Integer> keyIndex = new LinkedHashMap<String, Integer>();
+    int nKeys = 0;
+    for (Annotation ann : anns) {
+      String key = getKey(doc, ann);
+      annKeys.add(key);
+      if (!key.isEmpty()) {
+        nKeys++;
+        if (!keyIndex.containsKey(key)) {
+          keyIndex.put(key, keyIndex.size());
+        }
+      }
+    }
+    String[] keys = keyIndex.keySet().toArray(new String[keyIndex.size()]);
+    Object[] results = new Object[keys.length];
+    int chunkSize = getParallelChunkSize() == null || getParallelChunkSize() < 1 ? 5000 : getParallelChunkSize();
+    getParallelPool().invoke(new ResolveChunkTask(keys, results, 0, keys.length, chunkSize));
+    for (int i = 0; i < anns.size(); i++) {
+      Integer k = keyIndex.get(annKeys.get(i));
+      List<Object> rows = k == null ? null : (List<Object>)results[k];
+      if (rows != null && !rows.isEmpty()) {
+        applyRowsTimed(doc, anns.get(i), rows, outputAS);
+      }
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("JdbcJsonLookup has been interrupted");
+      }
+    }
+    recordKeys(doc, nKeys, keys.length);
+  }
+  
+  private boolean isParallel(int nAnns) {
+    return getParallelThreshold() != null && getParallelThreshold() > 0 &&
+            nAnns >= getParallelThreshold() && needsConnection();
+  }
+  
+  private static synchronized ForkJoinPool getParallelPool() {
+    if (parallelPool == null) {
+      parallelPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return parallelPool;
+  }
+  
+  // Resolve the keys in the range [from,to) and store the rows for each key
+  // at the same index in results, splitting the range until it is no larger
+  // than the chunk size.
+  private class ResolveChunkTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final String[] keys;
+    private final Object[] results;
+    private final int from;
+    private final int to;
+    private final int chunkSize;
+    
+    ResolveChunkTask(String[] keys, Object[] results, int from, int to, int chunkSize) {
+      this.keys = keys;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.chunkSize = chunkSize;
+    }
+    
+    @Override
+    protected void compute() {
+      if (to - from <= chunkSize) {
+        resolveChunk(keys, results, from, to);
+      } else {
+        int middle = from + (to - from) / 2;
+        invokeAll(new ResolveChunkTask(keys, results, from, middle, chunkSize),
+                new ResolveChunkTask(keys, results, middle, to, chunkSize));
+      }
+    }
+  }
+  
+  private void resolveChunk(String[] keys, Object[] results, int from, int to) {
+    JdbcConnectionPool.PooledConnection pc = borrowFromPool();
+    try {
+      if (batchSql == null) {
+        PreparedStatement st = pc.prepare(selectSql);
+        for (int i = from; i < to; i++) {
+          if (keys[i].isEmpty()) {
+            continue;
+          }
+          long startNanos = System.nanoTime();
+          List<Object> rows = lookupKnownRows(keys[i]);
+          if (rows == null) {
+            rows = fetchRows(st, keys[i]);
+            if (cache != null) {
+              cache.put(keys[i], rows);
+            }
+          }
+          recordLookup(System.nanoTime() - startNanos, rows);
+          results[i] = rows;
+        }
+      } else {
+        PreparedStatement st = pc.prepare(batchSql);
+        PreparedStatement stSingle = pc.prepare(selectSql);
+        Set<String> distinctKeys = new LinkedHashSet<String>();
+        for (int i = from; i < to; i++) {
+          if (!keys[i].isEmpty()) {
+            distinctKeys.add(keys[i]);
+          }
+        }
+        long startNanos = System.nanoTime();
+        Map<String, List<Object>> rowsByKey = lookupRowsBatched(distinctKeys, stSingle, st, pc.getConnection());
+        recordBatch(System.nanoTime() - startNanos, distinctKeys, rowsByKey);
+        for (int i = from; i < to; i++) {
+          results[i] = rowsByKey.get(keys[i]);
+        }
+      }
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not prepare query statement", ex);
+    } finally {
+      pool.returnConnection(pc);
+    }
+  }
+  
+  /**
+   * Look up all the distinct keys of the given annotations with as few
+   * batch queries as possible and then update the document from the result
+   * rows for each annotation.
+   * 
+   * @param doc the document
+   * @param anns the input annotations in processing order
+   * @param outputAS the output annotation set
+   * @throws ExecutionInterruptedException if the PR got interrupted
+   */
+  protected void doBatchLookup(Document doc, List<Annotation> anns, AnnotationSet outputAS) 
+          throws ExecutionInterruptedException {
+    List<String> annKeys = new ArrayList<String>(anns.size());
+    Set<String> distinctKeys = new LinkedHashSet<String>();
+    for (Annotation ann : anns) {
+      String key = getKey(doc, ann);
+      annKeys.add(key);
+      if (!key.isEmpty()) {
+        distinctKeys.add(key);
+      }
+    }
+    long startNanos = System.nanoTime();
+    Map<String, List<Object>> rowsByKey = lookupRowsBatched(distinctKeys);
+    recordBatch(System.nanoTime() - startNanos, distinctKeys, rowsByKey);
+    int nKeys = 0;
+    for (int i = 0; i < anns.size(); i++) {
+      if (!annKeys.get(i).isEmpty()) {
+        nKeys++;
+      }
+      List<Object> rows = rowsByKey.get(annKeys.get(i));
+      if (rows != null && !rows.isEmpty()) {
+        applyRowsTimed(doc, anns.get(i), rows, outputAS);
+      }
+      if(isInterrupted()) {
+        throw new ExecutionInterruptedException("JdbcJsonLookup has been interrupted");
+      }
+    }
+    recordKeys(doc, nKeys, distinctKeys.size());
+  }
+  
+  /**
+   * Record how many keys a document had and how many of them were distinct.
+   * 
+   * @param doc the document
+   * @param nKeys the number of non-empty keys
+   * @param nDistinct the number of distinct keys
+   */
+  protected void recordKeys(Document doc, int nKeys, int nDistinct) {
+    docKeys = nKeys;
+    docDistinctKeys = nDistinct;
+    if (logger.isDebugEnabled()) {
+      logger.debug("Keys in document " + doc.getName() + ": " + nKeys + ", distinct: " + nDistinct +
+              ", dedup ratio: " + (nDistinct == 0 ? 1.0 : (double)nKeys / nDistinct));
+    }
+    synchronized (this) {
+      nKeysTotal += nKeys;
+      nDistinctKeysTotal += nDistinct;
+    }
+  }
+  
+  // record the metrics for the keys looked up with batch queries
+  private void recordBatch(long nanos, Collection<String> keys, Map<String, List<Object>> rowsByKey) {
+    metrics.recordBatch(nanos);
+    for (String key : keys) {
+      List<Object> rows = rowsByKey.get(key);
+      int nRows = rows == null ? 0 : rows.size();
+      metrics.recordKey(nRows);
+      recordRows(nRows);
+    }
+  }
+  
+  // record the metrics for a key looked up on its own
+  private void recordLookup(long nanos, List<Object> rows) {
+    metrics.recordLookup(nanos, rows.size());
+    recordRows(rows.size());
+  }
+  
+  private void recordRows(int nRows) {
+    if (nRows > 0) {
+      docHits.incrementAndGet();
+      docRows.addAndGet(nRows);
+    }
+  }
+  
+  /**
+   * Get the key for an annotation: either the value of the key feature or 
+   * the document text covered by the annotation if no key feature is set.
+   * 
+   * @param doc the document
+   * @param ann the annotation
+   * @return the key, the empty string if there is no key
+   */
+  protected String getKey(Document doc, Annotation ann) {
+    String key = "";
+    if (keyFeature == null || keyFeature.isEmpty()) {
+      key = gate.Utils.stringFor(doc, ann);
+    } else {
+      Object val = ann.getFeatures().get(keyFeature);
+      if (val != null) {
+        key = val.toString();
+      }
+    }
+    return key;
+  }
+  
+  /**
+   * Get the decoded rows for a key from the cache, if we have one, or 
+   * the database.
+   * 
+   * @param key the key
+   * @return the list of decoded rows, empty if nothing was found
+   */
+  protected List<Object> lookupRows(String key) {
+    List<Object> rows = lookupKnownRows(key);
+    if (rows != null) {
+      return rows;
+    }
+    rows = fetchRows(key);
+    if (cache != null) {
+      cache.put(key, rows);
+    }
+    return rows;
+  }
+  
+  /**
+   * Get the rows for a key if they are known without a query: from the 
+   * cache or because the key filter rejects the key.
+   * 
+   * @param key the key
+   * @return the list of decoded rows or null if the database must be queried
+   */
+  protected List<Object> lookupKnownRows(String key) {
+    if (keyFilter != null && !keyFilter.mightContain(key)) {
+      return new ArrayList<Object>(0);
+    }
+    if (cache != null) {
+      return cache.get(key);
+    }
+    return null;
+  }
+  
+  /**
+   * Get the decoded rows for all the keys, using the cache, if we have one,
+   * and the batch query for all keys not in the cache.
+   * 
+   * @param keys the distinct keys to look up
+   * @return a map from each key found to its decoded rows
+   */
+  protected Map<String, List<Object>> lookupRowsBatched(Collection<String> keys) {
+    return lookupRowsBatched(keys, stSelect, stBatch, connection);
+  }
+  
+  /**
+   * Get the decoded rows for all the keys, using the given batch statement
+   * and connection for the keys not in the cache.
+   * 
+   * @param keys the distinct keys to look up
+   * @param stSelect the prepared single key query, for keys the batch
+   * query cannot resolve
+   * @param stBatch the prepared batch query
+   * @param connection the connection the batch query was prepared for
+   * @return a map from each key found to its decoded rows
+   */
+  protected Map<String, List<Object>> lookupRowsBatched(Collection<String> keys, 
+          PreparedStatement stSelect, PreparedStatement stBatch, Connection connection) {
+    if (keyFilter != null) {
+      List<String> filtered = new ArrayList<String>(keys.size());
+      for (String key : keys) {
+        if (keyFilter.mightContain(key)) {
+          filtered.add(key);
+        }
+      }
+      keys = filtered;
+    }
+    if (cache == null) {
+      return fetchRowsBatched(keys, stSelect, stBatch, connection);
+    }
+    Map<String, List<Object>> rowsByKey = new HashMap<String, List<Object>>();
+    List<String> toFetch = new ArrayList<String>();
+    for (String key : keys) {
+      List<Object> rows = cache.get(key);
+      if (rows == null) {
+        toFetch.add(key);
+      } else {
+        rowsByKey.put(key, rows);
+      }
+    }
+    Map<String, List<Object>> fetched = fetchRowsBatched(toFetch, stSelect, stBatch, connection);
+    for (String key : toFetch) {
+      List<Object> rows = fetched.get(key);
+      if (rows == null) {
+        rows = new ArrayList<Object>(0);
+      }
+      cache.put(key, rows);
+      rowsByKey.put(key, rows);
+    }
+    return rowsByKey;
+  }
+  
+  /**
+   * Run the single key query for the key and return the decoded rows.
+   * 
+   * @param key the key
+   * @return the list of decoded rows, empty if nothing was found
+   */
+  protected List<Object> fetchRows(String key) {
+    if (stSelect == null) {
+      // we did not borrow a connection for the document because we usually
+      // do not need one, e.g. because everything got preloaded
+      return queryWithOwnConnection(key);
+    }
+    return fetchRows(stSelect, key);
+  }
+  
+  /**
+   * Run the single key query for the key with the given statement and 
+   * return the decoded rows.
+   * 
+   * @param stSelect the prepared single key query 
+   * @param key the key
+   * @return the list of decoded rows, empty if nothing was found
+   */
+  protected List<Object> fetchRows(PreparedStatement stSelect, String key) {
+    try {
+      stSelect.setString(1,key);
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not set query parameter to '"+key+"'",ex);
+    }
+    List<Object> rows = new ArrayList<Object>(1);
+    ResultSet rs = null;
+    long startNanos = benchmarking ? System.nanoTime() : 0L;
+    try {
+      rs = stSelect.executeQuery();
+      while(rs.next()) {
+        Object row = decodeRowTimed(rs, 1);
+        if (row != null) {
+          rows.add(row);
+          if (!wantsAllRows()) {
+            break;
+          }
+        }
+      }
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Error executing query for "+key,ex);
+    } finally {
+      closeResultSet(rs);
+      if (benchmarking) {
+        fetchNanos.addAndGet(System.nanoTime() - startNanos);
+      }
+    }
+    return rows;
+  }
+  
+  /**
+   * Look up the keys in chunks of at most batchSize keys using the batch
+   * query and return the decoded rows for each key that was found.
+   * 
+   * @param keys the distinct keys to look up
+   * @return a map from each key found to its decoded rows
+   */
+  protected Map<String, List<Object>> fetchRowsBatched(Collection<String> keys) {
+    return fetchRowsBatched(keys, stSelect, stBatch, connection);
+  }
+  
+  /**
+   * Look up the keys in chunks of at most batchSize keys using the given
+   * batch statement and connection.
+   * 
+   * @param keys the distinct keys to look up
+   * @param stSelect the prepared single key query, for keys the batch
+   * query cannot resolve
+   * @param stBatch the prepared batch query
+   * @param connection the connection the batch query was prepared for
+   * @return a map from each key found to its decoded rows
+   */
+  protected Map<String, List<Object>> fetchRowsBatched(Collection<String> keys, 
+          PreparedStatement stSelect, PreparedStatement stBatch, Connection connection) {
+    Map<String, List<Object>> rowsByKey = new HashMap<String, List<Object>>();
+    String[] chunk = new String[getBatchSize()];
+    int n = 0;
+    for (String key : keys) {
+      chunk[n++] = key;
+      if (n == chunk.length) {
+        fetchChunk(chunk, n, rowsByKey, stSelect, stBatch, connection);
+        n = 0;
+      }
+    }
+    if (n > 0) {
+      fetchChunk(chunk, n, rowsByKey, stSelect, stBatch, connection);
+    }
+    return rowsByKey;
+  }
+  
+  private void fetchChunk(String[] chunk, int n, Map<String, List<Object>> rowsByKey,
+          PreparedStatement stSelect, PreparedStatement stBatch, Connection connection) {
+    // the rows for each key as returned by the query
+    Map<String, List<Object>> rowsByReturnedKey = new HashMap<String, List<Object>>();
+    ResultSet rs = null;
+    long startNanos = benchmarking ? System.nanoTime() : 0L;
+    try {
+      if (getBatchMode() == BatchMode.IN_LIST) {
+        // the statement always has batchSize placeholders, so we repeat the 
+        // last key for a partial chunk, which does not change the result
+        for (int i = 0; i < chunk.length; i++) {
+          stBatch.setString(i+1, chunk[i < n ? i : n-1]);
+        }
+      } else if (getBatchMode() == BatchMode.ANY_ARRAY) {
+        stBatch.setArray(1, connection.createArrayOf("VARCHAR", Arrays.copyOf(chunk, n)));
+      } else {
+        stBatch.setObject(1, Arrays.copyOf(chunk, n));
+      }
+      rs = stBatch.executeQuery();
+      while(rs.next()) {
+        String key = rs.getString(1);
+        if (key == null) {
+          continue;
+        }
+        List<Object> rows = rowsByReturnedKey.get(key);
+        if (rows == null) {
+          rows = new ArrayList<Object>(1);
+          rowsByReturnedKey.put(key, rows);
+        } else if (!rows.isEmpty() && !wantsAllRows()) {
+          continue;
+        }
+        Object row = decodeRowTimed(rs, 2);
+        if (row != null) {
+          rows.add(row);
+        }
+      }
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Error executing batch query for "+n+" keys, first key is "+chunk[0],ex);
+    } finally {
+      closeResultSet(rs);
+      if (benchmarking) {
+        fetchNanos.addAndGet(System.nanoTime() - startNanos);
+      }
+    }
+    assignReturnedRows(chunk, n, rowsByReturnedKey, rowsByKey, stSelect);
+  }
+  
+  // Assign the rows returned by a batch query to the requested keys. The 
+  // database compares the keys using the collation of the key column, so
+  // rows can come back with a key spelled differently from the requested
+  // key, e.g. in another case or with trailing spaces. The rows are only
+  // assigned to a key if they were returned for exactly that key and no 
+  // other returned key could match it too, all other keys which could 
+  // match some returned key are looked up again with the single key query,
+  // so the result is always the same as without batching.
+  private void assignReturnedRows(String[] chunk, int n, Map<String, List<Object>> rowsByReturnedKey,
+          Map<String, List<Object>> rowsByKey, PreparedStatement stSelect) {
+    if (rowsByReturnedKey.isEmpty()) {
+      return;
+    }
+    // normalized key to the returned key, or to AMBIGUOUS if several 
+    // returned keys have the same normalized key
+    Map<String, String> returnedByNormalized = new HashMap<String, String>(rowsByReturnedKey.size() * 2);
+    for (String returned : rowsByReturnedKey.keySet()) {
+      String normalized = KeyNormalizer.normalize(returned);
+      if (returnedByNormalized.put(normalized, returned) != null) {
+        returnedByNormalized.put(normalized, AMBIGUOUS);
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      String key = chunk[i];
+      String returned = returnedByNormalized.get(KeyNormalizer.normalize(key));
+      if (returned == null) {
+        continue;
+      }
+      if (returned.equals(key)) {
+        rowsByKey.put(key, rowsByReturnedKey.get(key));
+      } else {
+        List<Object> rows = fetchRows(stSelect, key);
+        if (!rows.isEmpty()) {
+          rowsByKey.put(key, rows);
+        }
+      }
+    }
+  }
+  
+  // never equal to a key returned by the database
+  private static final String AMBIGUOUS = new String("");
+  
+  protected void closeResultSet(ResultSet rs) {
+    if (rs != null) {
+      try {
+        rs.close();
+      } catch (SQLException ex) {
+        throw new GateRuntimeException("Could not close result set",ex);
+      }
+    }
+  }
+  
+  private JdbcConnectionPool.PooledConnection borrowFromPool() {
+    if (!benchmarking) {
+      return pool.borrow();
+    }
+    long startNanos = System.nanoTime();
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
+    connectNanos.addAndGet(System.nanoTime() - startNanos);
+    return pc;
+  }
+  
+  private Object decodeRowTimed(ResultSet rs, int firstColumn) throws SQLException {
+    if (!benchmarking) {
+      return decodeRow(rs, firstColumn);
+    }
+    long startNanos = System.nanoTime();
+    Object row = decodeRow(rs, firstColumn);
+    decodeNanos.addAndGet(System.nanoTime() - startNanos);
+    return row;
+  }
+  
+  private void applyRowsTimed(Document doc, Annotation ann, List<Object> rows, AnnotationSet outputAS) {
+    if (!benchmarking) {
+      applyRows(doc, ann, rows, outputAS);
+      return;
+    }
+    long startNanos = System.nanoTime();
+    applyRows(doc, ann, rows, outputAS);
+    annotateNanos.addAndGet(System.nanoTime() - startNanos);
+  }
+  
+  /**
+   * Decode the current row of the result set into the representation
+   * used by applyRows. The columns to decode start at firstColumn, the 
+   * columns before that (e.g. the key returned by a batch query) are ignored.
+   * 
+   * @param rs the result set, positioned on the row to decode
+   * @param firstColumn the (1-based) index of the first column to decode
+   * @return the decoded row, or null if the row should be ignored
+   * @throws SQLException if a column cannot be read
+   */
+  protected Object decodeRow(ResultSet rs, int firstColumn) throws SQLException {
+    throw new GateRuntimeException("Must not invoked JdbcLookupBase.decodeRow directly");
+  }
+  
+  /**
+   * Anything apart from the query which influences what decodeRow returns,
+   * cached rows are discarded when this changes.
+   * 
+   * @return the signature of the decoding settings
+   */
+  protected String getDecodingSignature() {
+    return "";
+  }
+  
+  /**
+   * If a connection is needed for processing a document. This can be 
+   * overridden by a subclass which can do all lookups without the database.
+   * 
+   * @return true if a connection should get borrowed for each document
+   */
+  protected boolean needsConnection() {
+    return true;
+  }
+  
+  /**
+   * If all result rows for a key are needed or just the first one.
+   * 
+   * @return true if all rows should get decoded
+   */
+  protected boolean wantsAllRows() {
+    return false;
+  }
+  
+  /**
+   * Update the document for an annotation from the decoded rows found for
+   * its key.
+   * 
+   * @param doc the document
+   * @param ann the input annotation
+   * @param rows the decoded rows, never empty
+   * @param outputAS the output annotation set
+   */
+  protected void applyRows(Document doc, Annotation ann, List<Object> rows, AnnotationSet outputAS) {
+    throw new GateRuntimeException("Must not invoked JdbcLookupBase.applyRows directly");
   }
 
   @Override
@@ -406,7 +1697,23 @@ public class JdbcLookupBase
 
   @Override
   public void controllerExecutionFinished(Controller cntrlr) throws ExecutionException {
-    // nothing to do here
+    synchronized (this) {
+      System.err.println("INFO: keys looked up by PR " + getName() + ": " + nKeysTotal + 
+              ", distinct per document: " + nDistinctKeysTotal + ", dedup ratio: " + 
+              (nDistinctKeysTotal == 0 ? 1.0 : (double)nKeysTotal / nDistinctKeysTotal));
+    }
+    if (cache != null && duplicateId == 0) {
+      System.err.println("INFO: result cache of PR " + getName() + ": " + cache);
+    }
+    if (keyFilter != null && duplicateId == 0) {
+      System.err.println("INFO: key filter of PR " + getName() + ": " + keyFilter);
+    }
+    if (pool != null && duplicateId == 0) {
+      System.err.println("INFO: connection pool of PR " + getName() + ": " + pool);
+    }
+    if (metrics != null && duplicateId == 0) {
+      System.err.println("INFO: lookup metrics of PR " + getName() + ": " + metrics.getSummary());
+    }
   }
 
   @Override
@@ -414,4 +1721,46 @@ public class JdbcLookupBase
     // nothing to do here
   }
   
+  protected void benchmarkCheckpoint(long startTime, String name, Map<Object, Object> features) {
+    if (Benchmark.isBenchmarkingEnabled()) {
+      Benchmark.checkPointWithDuration(
+              Benchmark.startPoint() - startTime,
+              Benchmark.createBenchmarkId(name, this.getBenchmarkId()),
+              this, features);
+    }
+  }
+  
+  // record a duration summed up in nanoseconds, the checkpoint is in milliseconds
+  private void benchmarkCheckpointNanos(long nanos, String name, Map<Object, Object> features) {
+    Benchmark.checkPointWithDuration(
+            nanos / 1000000L,
+            Benchmark.createBenchmarkId(name, this.getBenchmarkId()),
+            this, features);
+  }
+  
+  @Override
+  public String getBenchmarkId() {
+    return benchmarkId;
+  }
+
+  @Override
+  public void setBenchmarkId(String string) {
+    benchmarkId = string;
+  }
+  private String benchmarkId = this.getName();
+  
+  /**
+   * How the keys get passed to the batch query: IN_LIST uses a list of 
+   * batchSize parameters, ANY_ARRAY passes a single SQL array parameter
+   * (e.g. for PostgreSQL: WHERE key = ANY(!!KEYS!!)) and H2_TABLE passes 
+   * a single Object[] parameter 
+   * (e.g. for H2: WHERE key IN (SELECT X FROM TABLE(X VARCHAR = !!KEYS!!))).
+   */
+  public enum BatchMode {
+    NONE,
+    IN_LIST,
+    ANY_ARRAY,
+    H2_TABLE
+  }
+  
 }
@@ -23,6 +23,8 @@ package com.jpetrak.gate.jdbclookup;
 import gate.Resource;
 import gate.util.GateRuntimeException;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Some useful utility methods for use in JAPE etc.
@@ -53,6 +55,27 @@ public class JdbcLookupUtils {
       throw new GateRuntimeException("Resource is not a JdbcString2StringLR");
     }
   }
+  public static Map<String,String> getAll(Resource lr, Collection<String> keys) {
+    if(lr instanceof JdbcString2StringLR) {
+      return ((JdbcString2StringLR)lr).getAll(keys);
+    } else {
+      throw new GateRuntimeException("Resource is not a JdbcString2StringLR");
+    }
+  }
+  public static Set<String> getExistingKeys(Resource lr, Collection<String> keys) {
+    if(lr instanceof JdbcString2StringLR) {
+      return ((JdbcString2StringLR)lr).getExistingKeys(keys);
+    } else {
+      throw new GateRuntimeException("Resource is not a JdbcString2StringLR");
+    }
+  }
+  public static void putAll(Resource lr, Map<String,String> map) {
+    if(lr instanceof JdbcString2StringLR) {
+      ((JdbcString2StringLR)lr).putAll(map);
+    } else {
+      throw new GateRuntimeException("Resource is not a JdbcString2StringLR");
+    }
+  }
   public static void removeAll(Resource lr, Collection<String> keys) {
     if(lr instanceof JdbcString2StringLR) {
       ((JdbcString2StringLR)lr).removeAll(keys);
@@ -29,12 +29,42 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Language Resource that represents a JDBC table for storing string key/value
  * pairs.
  *
+ * All methods can be used concurrently by several threads: each call 
+ * borrows a connection from the connection pool and uses the statements
+ * prepared for that connection.
+ *
+ * In write-behind mode, puts and removes are only collected in memory and
+ * written to the table in batches, in one transaction for every 
+ * writeBehindBatchSize operations or every writeBehindFlushInterval 
+ * milliseconds, whatever comes first, and when the LR gets closed. Reads
+ * of keys with pending operations are answered from memory. Pending 
+ * operations are lost if the JVM terminates before the LR gets closed.
+ *
+ * The bulk methods getAll, getExistingKeys, putAll and removeAll process
+ * a whole collection of keys with one query or batch for every 
+ * BULK_CHUNK_SIZE keys instead of one query per key.
+ *
  * CAUTION: this has only ever been tested with H2 and probably does not work
  * out of the box with other JDBC databases!
  *
@@ -118,10 +148,86 @@ public class JdbcString2StringLR extends JdbcLR {
   }
   protected String valueColumnName = "value";
   
+  @Optional
+  @CreoleParameter(
+          comment = "If puts and removes should be buffered in memory and written in batches",
+          defaultValue = "false")
+  public void setWriteBehind(Boolean flag) {
+    writeBehind = flag;
+  }
+  public Boolean getWriteBehind() {
+    return writeBehind;
+  }
+  protected Boolean writeBehind = false;
+  
+  @Optional
+  @CreoleParameter(
+          comment = "In write-behind mode, the number of pending operations which causes a flush",
+          defaultValue = "1000")
+  public void setWriteBehindBatchSize(Integer n) {
+    writeBehindBatchSize = n;
+  }
+  public Integer getWriteBehindBatchSize() {
+    return writeBehindBatchSize;
+  }
+  protected Integer writeBehindBatchSize = 1000;
+  
+  @Optional
+  @CreoleParameter(
+          comment = "In write-behind mode, the maximum number of milliseconds between flushes",
+          defaultValue = "1000")
+  public void setWriteBehindFlushInterval(Integer ms) {
+    writeBehindFlushInterval = ms;
+  }
+  public Integer getWriteBehindFlushInterval() {
+    return writeBehindFlushInterval;
+  }
+  protected Integer writeBehindFlushInterval = 1000;
+  
+  // In write-behind mode this contains the latest pending operation for 
+  // each key: either the value to put, NULL_VALUE to put null or REMOVED.
+  // While a flush is running, the operations being written are in flushing.
+  private static final Object REMOVED = new Object();
+  private static final Object NULL_VALUE = new Object();
+  private final Object pendingLock = new Object();
+  private final Object flushLock = new Object();
+  private Map<String,Object> pending = new LinkedHashMap<String,Object>();
+  private Map<String,Object> flushing = null;
+  private volatile ScheduledExecutorService flusher = null;
+  
+  // flush statistics, guarded by flushLock
+  private long nFlushes = 0;
+  private long nFlushedOps = 0;
+  private int maxBatchSize = 0;
+  private long totalFlushNanos = 0;
+  private long maxFlushNanos = 0;
+  
+  // lookup and update counts and latencies, exposed as an MBean
+  private LookupMetrics metrics;
+  
   @Override
   public synchronized Resource init() throws ResourceInstantiationException {
     super.init();
     establishTable();
+    if (metrics == null) {
+      metrics = new LookupMetrics("JdbcString2StringLR", getName());
+      metrics.register();
+    }
+    if (isWriteBehind()) {
+      if (readOnly) {
+        throw new ResourceInstantiationException("Write-behind makes no sense for a read-only String2String store");
+      }
+      int interval = getWriteBehindFlushInterval() == null ? 1000 : getWriteBehindFlushInterval();
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "JdbcString2StringLR-flusher-" + getActualTableName());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      flusher.scheduleWithFixedDelay(flushTask, interval, interval, TimeUnit.MILLISECONDS);
+    }
     getSql = getSqlTempl.replaceAll("!!TBL!!", getActualTableName());
     getSql = getSql.replaceAll("!!KEY!!", getTheKeyColumnName());
     getSql = getSql.replaceAll("!!VALUE!!", getTheValueColumnName());
@@ -131,28 +237,43 @@ public class JdbcString2StringLR extends JdbcLR {
     putSql = putSql.replaceAll("!!KEY!!", getTheKeyColumnName());
     deleteSql = deleteSqlTempl.replaceAll("!!TBL!!", getActualTableName());
     deleteSql = deleteSql.replaceAll("!!KEY!!", getTheKeyColumnName());
+    StringBuilder params = new StringBuilder();
+    for (int i = 0; i < BULK_CHUNK_SIZE; i++) {
+      params.append(i == 0 ? "?" : ",?");
+    }
+    getAllSql = getAllSqlTempl.replaceAll("!!TBL!!", getActualTableName());
+    getAllSql = getAllSql.replaceAll("!!KEY!!", getTheKeyColumnName());
+    getAllSql = getAllSql.replaceAll("!!VALUE!!", getTheValueColumnName());
+    getAllSql = getAllSql.replaceAll("!!KEYS!!", params.toString());
+    getExistingKeysSql = getExistingKeysSqlTempl.replaceAll("!!TBL!!", getActualTableName());
+    getExistingKeysSql = getExistingKeysSql.replaceAll("!!KEY!!", getTheKeyColumnName());
+    getExistingKeysSql = getExistingKeysSql.replaceAll("!!KEYS!!", params.toString());
     return this;
   }
 
   protected void establishTable() {
-    PreparedStatement prSt = null;
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
+    try {
+      establishTable(pc.getConnection());
+    } finally {
+      pool.returnConnection(pc);
+    }
+  }
+  
+  private void establishTable(Connection connection) {
+    Statement st = null;
     // check if we can access the table
     final String selectOne = "SELECT * FROM !!TBL!! LIMIT 1";
     boolean maynothavetable = false;
     Exception theException = null;
     try {
-      prSt = connection.prepareStatement(selectOne.replaceAll("!!TBL!!", getActualTableName()));
-    } catch (SQLException ex) {
-      theException = ex;
-      maynothavetable = true;
-    }
-    try {
-      if (!maynothavetable) {
-        prSt.execute();
-      }
+      st = connection.createStatement();
+      st.execute(selectOne.replaceAll("!!TBL!!", getActualTableName()));
     } catch (SQLException ex) {
       theException = ex;
       maynothavetable = true;
+    } finally {
+      closeStatement(st);
     }
     if (maynothavetable) {
       // if our LR is read-only, this is an error, throw an exception
@@ -163,51 +284,235 @@ public class JdbcString2StringLR extends JdbcLR {
       final String createTable = "CREATE TABLE !!TBL!! ( `key` VARCHAR NOT NULL, `value` VARCHAR )";
       final String createIndex = "CREATE UNIQUE INDEX !!IDX!! ON !!TBL!! ( `key`  )";
       try {
-        prSt = connection.prepareStatement(createTable.replaceAll("!!TBL!!", getActualTableName()));
+        st = connection.createStatement();
       } catch (SQLException ex) {
         shutdownConnection();
-        throw new GateRuntimeException("Could not prepare create table statement", ex);
+        throw new GateRuntimeException("Could not create statement", ex);
       }
       try {
-        prSt.execute();
+        st.execute(createTable.replaceAll("!!TBL!!", getActualTableName()));
       } catch (SQLException ex) {
+        closeStatement(st);
         shutdownConnection();
         throw new GateRuntimeException("Could not execute create table statement", ex);
       }
       try {
-        prSt = connection.prepareStatement(createIndex.replaceAll("!!TBL!!", getActualTableName()).replaceAll("!!IDX!!", getActualTableName() + "IndexByKey"));
+        st.execute(createIndex.replaceAll("!!TBL!!", getActualTableName()).replaceAll("!!IDX!!", getActualTableName() + "IndexByKey"));
       } catch (SQLException ex) {
         shutdownConnection();
-        throw new GateRuntimeException("Could not prepare create index statement", ex);
+        throw new GateRuntimeException("Could not execute create index statement", ex);
+      } finally {
+        closeStatement(st);
       }
+    }
+  }
+  
+  private static void closeStatement(Statement st) {
+    if (st != null) {
       try {
-        prSt.execute();
+        st.close();
       } catch (SQLException ex) {
-        shutdownConnection();
-        throw new GateRuntimeException("Could not execute create index statement", ex);
+        // ignore
+      }
+    }
+  }
+  
+  private static void closeResultSet(ResultSet rs) {
+    if (rs != null) {
+      try {
+        rs.close();
+      } catch (SQLException ex) {
+        // ignore
       }
     }
   }
 
   @Override
   public void cleanup() {
-    super.cleanup();
+    try {
+      if (flusher != null) {
+        flusher.shutdown();
+        try {
+          flusher.awaitTermination(60, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        flusher = null;
+        flush();
+        System.err.println("INFO: write-behind statistics for " + getActualTableName() + ": " + getWriteBehindStatistics());
+      }
+    } finally {
+      if (metrics != null) {
+        System.err.println("INFO: lookup metrics for " + getActualTableName() + ": " + metrics.getSummary());
+        metrics.unregister();
+        metrics = null;
+      }
+      super.cleanup();
+    }
   }
-
-  private void shutdownConnection() {
+  
+  private boolean isWriteBehind() {
+    return writeBehind != null && writeBehind;
+  }
+  
+  // returns the pending operation for the key or null if there is none
+  private Object getPending(String key) {
+    synchronized (pendingLock) {
+      Object op = pending.get(key);
+      if (op == null && flushing != null) {
+        op = flushing.get(key);
+      }
+      return op;
+    }
+  }
+  
+  // A full batch gets flushed by the flusher thread right away, so that a
+  // failing flush is reported like any other flush instead of failing the
+  // operation which has been accepted already.
+  private void addPending(String key, Object op) {
+    boolean full;
+    synchronized (pendingLock) {
+      pending.put(key, op);
+      full = pending.size() >= (getWriteBehindBatchSize() == null ? 1000 : getWriteBehindBatchSize());
+    }
+    ScheduledExecutorService f = flusher;
+    if (full && f != null && flushRequested.compareAndSet(false, true)) {
+      try {
+        f.execute(flushTask);
+      } catch (RejectedExecutionException ex) {
+        // we are being cleaned up, which flushes everything anyway
+        flushRequested.set(false);
+      }
+    }
+  }
+  
+  // set while an immediate flush is waiting for the flusher thread
+  private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+  
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushRequested.set(false);
+      try {
+        flush();
+      } catch (Exception ex) {
+        System.err.println("ERROR: write-behind flush failed, will retry");
+        ex.printStackTrace(System.err);
+      }
+    }
+  };
+  
+  /**
+   * In write-behind mode, write all pending operations to the table now.
+   * This does nothing if write-behind mode is not enabled.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      Map<String,Object> toFlush;
+      synchronized (pendingLock) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        toFlush = pending;
+        flushing = toFlush;
+        pending = new LinkedHashMap<String,Object>();
+      }
+      long startTime = System.nanoTime();
+      try {
+        writeBatch(toFlush);
+      } catch (RuntimeException ex) {
+        // keep the operations which have not been superseded in the meantime
+        synchronized (pendingLock) {
+          for (Map.Entry<String,Object> e : toFlush.entrySet()) {
+            if (!pending.containsKey(e.getKey())) {
+              pending.put(e.getKey(), e.getValue());
+            }
+          }
+          flushing = null;
+        }
+        throw ex;
+      }
+      long nanos = System.nanoTime() - startTime;
+      synchronized (pendingLock) {
+        flushing = null;
+      }
+      nFlushes++;
+      nFlushedOps += toFlush.size();
+      maxBatchSize = Math.max(maxBatchSize, toFlush.size());
+      totalFlushNanos += nanos;
+      maxFlushNanos = Math.max(maxFlushNanos, nanos);
+    }
+  }
+  
+  private void writeBatch(Map<String,Object> ops) {
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
+    Connection conn = pc.getConnection();
     try {
-      if (connection != null && connection.isValid(1)) {
-        connection.close();
+      conn.setAutoCommit(false);
+      PreparedStatement putSt = pc.prepare(putSql);
+      PreparedStatement deleteSt = pc.prepare(deleteSql);
+      int nPuts = 0;
+      int nDeletes = 0;
+      for (Map.Entry<String,Object> e : ops.entrySet()) {
+        Object op = e.getValue();
+        if (op == REMOVED) {
+          deleteSt.setString(1, e.getKey());
+          deleteSt.addBatch();
+          nDeletes++;
+          if (nDeletes % BULK_CHUNK_SIZE == 0) {
+            deleteSt.executeBatch();
+          }
+        } else {
+          putSt.setString(1, e.getKey());
+          putSt.setString(2, op == NULL_VALUE ? null : (String)op);
+          putSt.addBatch();
+          nPuts++;
+          if (nPuts % BULK_CHUNK_SIZE == 0) {
+            putSt.executeBatch();
+          }
+        }
+      }
+      if (nPuts % BULK_CHUNK_SIZE != 0) {
+        putSt.executeBatch();
+      }
+      if (nDeletes % BULK_CHUNK_SIZE != 0) {
+        deleteSt.executeBatch();
       }
+      conn.commit();
     } catch (SQLException ex) {
-      throw new GateRuntimeException("Error when disconnecting JDBC connection", ex);
+      try {
+        conn.rollback();
+      } catch (SQLException ex2) {
+        // ignore, we report the original exception
+      }
+      throw new GateRuntimeException("Could not write batch of "+ops.size()+" operations to Jdbc String2String store", ex);
+    } finally {
+      try {
+        conn.setAutoCommit(true);
+      } catch (SQLException ex) {
+        // ignore
+      }
+      pool.returnConnection(pc);
+    }
+  }
+  
+  /**
+   * Statistics about the flushes done in write-behind mode: number of 
+   * flushes, batch sizes and flush latency.
+   * 
+   * @return the statistics as a string
+   */
+  public String getWriteBehindStatistics() {
+    synchronized (flushLock) {
+      return "flushes=" + nFlushes + ", operations=" + nFlushedOps +
+              ", avgBatchSize=" + (nFlushes == 0 ? 0 : nFlushedOps / nFlushes) +
+              ", maxBatchSize=" + maxBatchSize +
+              ", avgFlushMs=" + (nFlushes == 0 ? 0.0 : totalFlushNanos / 1000000.0 / nFlushes) +
+              ", maxFlushMs=" + maxFlushNanos / 1000000.0;
     }
   }
 
   // API methods
-  public Connection getConnection() {
-    return connection;
-  }
   private static final String getSqlTempl = "SELECT !!VALUE!! FROM !!TBL!! WHERE `!!KEY!!` = ?";
   private static final String containsSqlTempl = "SELECT 1 FROM !!TBL!! WHERE `!!KEY!!` = ? LIMIT 1";
   private static final String putSqlTempl = "MERGE INTO !!TBL!! KEY(`!!KEY!!`) VALUES(?,?)";
@@ -218,11 +523,25 @@ public class JdbcString2StringLR extends JdbcLR {
   // between a non-existing key or a key that has the value "null" stored, 
   // both return null. 
   public String get(String key) {
-    PreparedStatement prSt;
+    long startNanos = System.nanoTime();
+    String value = doGet(key);
+    metrics.recordLookup(System.nanoTime() - startNanos, value == null ? 0 : 1);
+    return value;
+  }
+  
+  private String doGet(String key) {
+    if (isWriteBehind()) {
+      Object op = getPending(key);
+      if (op != null) {
+        return op == REMOVED || op == NULL_VALUE ? null : (String)op;
+      }
+    }
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
+    ResultSet rs = null;
     try {
-      prSt = connection.prepareStatement(getSql);
+      PreparedStatement prSt = pc.prepare(getSql);
       prSt.setString(1, key);
-      ResultSet rs = prSt.executeQuery();
+      rs = prSt.executeQuery();
       if (rs.next()) {
         return rs.getString(1);
       } else {
@@ -230,18 +549,35 @@ public class JdbcString2StringLR extends JdbcLR {
       }
     } catch (Exception ex) {
       ex.printStackTrace(System.err);
-      throw new GateRuntimeException("Could not update Jdbc String2String store", ex);
+      throw new GateRuntimeException("Could not read from Jdbc String2String store", ex);
+    } finally {
+      closeResultSet(rs);
+      pool.returnConnection(pc);
     }
   }
   // explicitly check if a key is in the key/value store
   String containsSql;
 
   public boolean contains(String key) {
-    PreparedStatement prSt;
+    long startNanos = System.nanoTime();
+    boolean found = doContains(key);
+    metrics.recordLookup(System.nanoTime() - startNanos, found ? 1 : 0);
+    return found;
+  }
+  
+  private boolean doContains(String key) {
+    if (isWriteBehind()) {
+      Object op = getPending(key);
+      if (op != null) {
+        return op != REMOVED;
+      }
+    }
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
+    ResultSet rs = null;
     try {
-      prSt = connection.prepareStatement(containsSql);
+      PreparedStatement prSt = pc.prepare(containsSql);
       prSt.setString(1, key);
-      ResultSet rs = prSt.executeQuery();
+      rs = prSt.executeQuery();
       if (rs.next()) {
         return true;
       } else {
@@ -249,7 +585,10 @@ public class JdbcString2StringLR extends JdbcLR {
       }
     } catch (Exception ex) {
       ex.printStackTrace(System.err);
-      throw new GateRuntimeException("Could not update Jdbc String2String store", ex);
+      throw new GateRuntimeException("Could not read from Jdbc String2String store", ex);
+    } finally {
+      closeResultSet(rs);
+      pool.returnConnection(pc);
     }
   }
   String putSql;
@@ -257,44 +596,248 @@ public class JdbcString2StringLR extends JdbcLR {
 // is just here so we may be able to return an "old" value later if we want
 // or need to without changing the interface.
   public String put(String key, String value) {
-    PreparedStatement prSt;
     if (readOnly) {
       throw new GateRuntimeException("Update not allowed for a read-only String2String store");
     }
+    long startNanos = System.nanoTime();
+    if (isWriteBehind()) {
+      addPending(key, value == null ? NULL_VALUE : value);
+      metrics.recordUpdate(System.nanoTime() - startNanos);
+      return null;
+    }
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
     try {
-      prSt = connection.prepareStatement(putSql);
+      PreparedStatement prSt = pc.prepare(putSql);
       prSt.setString(1, key);
       prSt.setString(2, value);
       prSt.execute();
     } catch (Exception ex) {
       ex.printStackTrace(System.err);
       throw new GateRuntimeException("Could not update Jdbc String2String store", ex);
+    } finally {
+      pool.returnConnection(pc);
     }
+    metrics.recordUpdate(System.nanoTime() - startNanos);
     return null;
   }
   String deleteSql;
 // we just return null at the moment!
   public String remove(String key) {
-    PreparedStatement prSt;
     if (readOnly) {
       throw new GateRuntimeException("Delete not allowed for a read-only String2String store");
     }
+    long startNanos = System.nanoTime();
+    if (isWriteBehind()) {
+      addPending(key, REMOVED);
+      metrics.recordUpdate(System.nanoTime() - startNanos);
+      return null;
+    }
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
     try {
-      prSt = connection.prepareStatement(deleteSql);
+      PreparedStatement prSt = pc.prepare(deleteSql);
       prSt.setString(1, key);
       prSt.execute();
     } catch (Exception ex) {
       ex.printStackTrace(System.err);
       throw new GateRuntimeException("Could not delete from Jdbc String2String store", ex);
+    } finally {
+      pool.returnConnection(pc);
     }
+    metrics.recordUpdate(System.nanoTime() - startNanos);
     return null;
   }
 
+  /**
+   * The number of keys used in one query or one JDBC batch by the bulk 
+   * methods.
+   */
+  public static final int BULK_CHUNK_SIZE = 500;
+  private static final String getAllSqlTempl = "SELECT `!!KEY!!`, !!VALUE!! FROM !!TBL!! WHERE `!!KEY!!` IN (!!KEYS!!)";
+  private static final String getExistingKeysSqlTempl = "SELECT `!!KEY!!` FROM !!TBL!! WHERE `!!KEY!!` IN (!!KEYS!!)";
+  String getAllSql;
+  String getExistingKeysSql;
+  
+  /**
+   * Get the values for all the given keys.
+   * 
+   * @param keys the keys to look up
+   * @return a map from each key that is in the store to its value, keys which
+   * are not in the store are not in the map
+   */
+  public Map<String,String> getAll(Collection<String> keys) {
+    long startNanos = System.nanoTime();
+    Map<String,String> result = new HashMap<String,String>();
+    readAll(keys, true, result);
+    recordBatch(System.nanoTime() - startNanos, keys, result);
+    return result;
+  }
+  
+  /**
+   * Check which of the given keys are in the store.
+   * 
+   * @param keys the keys to check
+   * @return the set of those keys which are in the store
+   */
+  public Set<String> getExistingKeys(Collection<String> keys) {
+    long startNanos = System.nanoTime();
+    Map<String,String> result = new HashMap<String,String>();
+    readAll(keys, false, result);
+    recordBatch(System.nanoTime() - startNanos, keys, result);
+    return new HashSet<String>(result.keySet());
+  }
+  
+  /**
+   * Store all the key/value pairs from the map. Without write-behind this
+   * is done in a single transaction.
+   * 
+   * @param map the key/value pairs to store
+   */
+  public void putAll(Map<String,String> map) {
+    if (readOnly) {
+      throw new GateRuntimeException("Update not allowed for a read-only String2String store");
+    }
+    long startNanos = System.nanoTime();
+    if (isWriteBehind()) {
+      for (Map.Entry<String,String> e : map.entrySet()) {
+        addPending(e.getKey(), e.getValue() == null ? NULL_VALUE : e.getValue());
+      }
+    } else {
+      Map<String,Object> ops = new LinkedHashMap<String,Object>();
+      for (Map.Entry<String,String> e : map.entrySet()) {
+        ops.put(e.getKey(), e.getValue() == null ? NULL_VALUE : e.getValue());
+      }
+      if (!ops.isEmpty()) {
+        writeBatch(ops);
+      }
+    }
+    metrics.recordUpdate(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Remove all the given keys. Without write-behind this is done in a 
+   * single transaction.
+   * 
+   * @param keys the keys to remove
+   */
   public void removeAll(Iterable<String> keys) {
-    Iterator<String> it = keys.iterator();
-    while(it.hasNext()) {
-      remove(it.next());
+    if (readOnly) {
+      throw new GateRuntimeException("Delete not allowed for a read-only String2String store");
+    }
+    long startNanos = System.nanoTime();
+    if (isWriteBehind()) {
+      for (String key : keys) {
+        addPending(key, REMOVED);
+      }
+    } else {
+      Map<String,Object> ops = new LinkedHashMap<String,Object>();
+      for (String key : keys) {
+        ops.put(key, REMOVED);
+      }
+      if (!ops.isEmpty()) {
+        writeBatch(ops);
+      }
+    }
+    metrics.recordUpdate(System.nanoTime() - startNanos);
+  }
+  
+  private void recordBatch(long nanos, Collection<String> keys, Map<String,String> result) {
+    metrics.recordBatch(nanos);
+    for (String key : keys) {
+      metrics.recordKey(result.containsKey(key) ? 1 : 0);
+    }
+  }
+  
+  // Look up all the keys and put the key/value for each key found into the
+  // result map. If withValues is false, only the keys are retrieved and the 
+  // values in the map are all null.
+  // The database may return a key in a different spelling than the one 
+  // requested, e.g. with a case-insensitive collation, so rows are only
+  // used directly for a requested key which equals the returned key, 
+  // other keys which may match the same row are looked up on their own
+  // like in get and contains. 
+  private void readAll(Collection<String> keys, boolean withValues, Map<String,String> result) {
+    List<String> toQuery = new ArrayList<String>(keys.size());
+    for (String key : new LinkedHashSet<String>(keys)) {
+      Object op = isWriteBehind() ? getPending(key) : null;
+      if (op == null) {
+        toQuery.add(key);
+      } else if (op != REMOVED) {
+        result.put(key, op == NULL_VALUE ? null : (String)op);
+      }
+    }
+    if (toQuery.isEmpty()) {
+      return;
+    }
+    JdbcConnectionPool.PooledConnection pc = pool.borrow();
+    ResultSet rs = null;
+    try {
+      PreparedStatement prSt = pc.prepare(withValues ? getAllSql : getExistingKeysSql);
+      for (int from = 0; from < toQuery.size(); from += BULK_CHUNK_SIZE) {
+        int to = Math.min(from + BULK_CHUNK_SIZE, toQuery.size());
+        // the last chunk is padded by repeating its last key
+        for (int i = 0; i < BULK_CHUNK_SIZE; i++) {
+          prSt.setString(i + 1, toQuery.get(Math.min(from + i, to - 1)));
+        }
+        rs = prSt.executeQuery();
+        Map<String,String> byReturnedKey = new HashMap<String,String>();
+        while (rs.next()) {
+          byReturnedKey.put(rs.getString(1), withValues ? rs.getString(2) : null);
+        }
+        closeResultSet(rs);
+        rs = null;
+        assignReturned(pc, toQuery.subList(from, to), byReturnedKey, withValues, result);
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace(System.err);
+      throw new GateRuntimeException("Could not read from Jdbc String2String store", ex);
+    } finally {
+      closeResultSet(rs);
+      pool.returnConnection(pc);
     }
   }
   
+  private void assignReturned(JdbcConnectionPool.PooledConnection pc, List<String> keys, 
+          Map<String,String> byReturnedKey, boolean withValues, Map<String,String> result) 
+          throws SQLException {
+    if (byReturnedKey.isEmpty()) {
+      return;
+    }
+    // normalized key to the returned key, or to AMBIGUOUS if several 
+    // returned keys have the same normalized key
+    Map<String,String> returnedByNormalized = new HashMap<String,String>(byReturnedKey.size() * 2);
+    for (String returned : byReturnedKey.keySet()) {
+      String normalized = KeyNormalizer.normalize(returned);
+      if (returnedByNormalized.put(normalized, returned) != null) {
+        returnedByNormalized.put(normalized, AMBIGUOUS);
+      }
+    }
+    for (String key : keys) {
+      String returned = returnedByNormalized.get(KeyNormalizer.normalize(key));
+      if (returned == null) {
+        continue;
+      }
+      if (returned.equals(key)) {
+        result.put(key, byReturnedKey.get(key));
+      } else {
+        readOne(pc, key, withValues, result);
+      }
+    }
+  }
+  
+  // never equal to a key returned by the database
+  private static final String AMBIGUOUS = new String("");
+  
+  private void readOne(JdbcConnectionPool.PooledConnection pc, String key, boolean withValues, 
+          Map<String,String> result) throws SQLException {
+    PreparedStatement prSt = pc.prepare(withValues ? getSql : containsSql);
+    prSt.setString(1, key);
+    ResultSet rs = prSt.executeQuery();
+    try {
+      if (rs.next()) {
+        result.put(key, withValues ? rs.getString(1) : null);
+      }
+    } finally {
+      closeResultSet(rs);
+    }
+  }
 }
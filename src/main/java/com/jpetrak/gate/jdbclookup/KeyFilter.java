@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import gate.util.GateRuntimeException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Bloom filter over all the keys in a table, used to avoid running
+ * queries for keys which are certainly not in the table.
+ *
+ * The filter is sized from the number of rows the query returns and 
+ * built by streaming the keys into it, then saved to a file, so that 
+ * later runs can just load it from there. The file also stores the query
+ * and the number of rows it returned. When loading, the filter gets 
+ * rebuilt if the query differs and, unless that check is turned off 
+ * because counting the rows is too expensive, if the number of rows 
+ * differs. A change to the table which keeps the number of rows the same
+ * is not noticed, the file must be deleted to get the filter rebuilt in
+ * that case.
+ * <p>
+ * The filter contains the normalized keys (see {@link KeyNormalizer}) so
+ * that it never rejects a key which the database would match with a 
+ * differently spelled key in the table.
+ *
+ * @author Johann Petrak
+ */
+public class KeyFilter {
+
+  // marks a file in the current format, followed by the query, the number
+  // of rows it returned and the filter
+  private static final int FILE_MAGIC = 0x4b464c32;
+
+  // the filter contains a 64 bit hash of each normalized key
+  private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+  private final BloomFilter<Long> filter;
+  private final long sizeInBytes;
+  private final AtomicLong nRejected = new AtomicLong();
+  private final AtomicLong nChecked = new AtomicLong();
+
+  private KeyFilter(BloomFilter<Long> filter, long sizeInBytes) {
+    this.filter = filter;
+    this.sizeInBytes = sizeInBytes;
+  }
+
+  /**
+   * Load the filter from the file if it exists and is up to date, otherwise
+   * build it from the keys returned by the query and save it to the file.
+   * The rows returned by the query are counted to check that the file is
+   * up to date.
+   *
+   * @param file the file to load from or save to
+   * @param connection the connection to use for building the filter
+   * @param keyQuery the query returning all the keys in its first column
+   * @param fpp the wanted false positive probability
+   * @return the filter
+   */
+  public static KeyFilter loadOrBuild(File file, Connection connection, String keyQuery, double fpp) {
+    return loadOrBuild(file, connection, keyQuery, fpp, true);
+  }
+
+  /**
+   * Load the filter from the file if it exists and is up to date, otherwise
+   * build it from the keys returned by the query and save it to the file.
+   *
+   * @param file the file to load from or save to
+   * @param connection the connection to use for building the filter
+   * @param keyQuery the query returning all the keys in its first column
+   * @param fpp the wanted false positive probability
+   * @param checkRows if an existing file should only be used if the query
+   * still returns the same number of rows, otherwise it is used as long as
+   * it was created for the same query
+   * @return the filter
+   */
+  public static KeyFilter loadOrBuild(File file, Connection connection, String keyQuery, double fpp,
+          boolean checkRows) {
+    // the number of rows is needed for the check and for sizing the filter
+    // when building it, but counted at most once
+    long nRowsNow = -1;
+    if (file.exists()) {
+      if (checkRows) {
+        nRowsNow = countRows(connection, keyQuery);
+      } else {
+        System.err.println("INFO: not checking the number of rows for key filter file " + file);
+      }
+      KeyFilter loaded = load(file, keyQuery, nRowsNow);
+      if (loaded != null) {
+        return loaded;
+      }
+    }
+    if (nRowsNow < 0) {
+      nRowsNow = countRows(connection, keyQuery);
+    }
+    System.err.println("INFO: building key filter for " + nRowsNow + " rows using query " + keyQuery);
+    BloomFilter<Long> filter =
+            BloomFilter.create(Funnels.longFunnel(), Math.max(nRowsNow, 1), fpp);
+    long nKeys = 0;
+    long nRows = 0;
+    Statement st = null;
+    ResultSet rs = null;
+    try {
+      st = connection.createStatement();
+      st.setFetchSize(10000);
+      rs = st.executeQuery(keyQuery);
+      while (rs.next()) {
+        nRows++;
+        String key = rs.getString(1);
+        if (key != null) {
+          filter.put(hashKey(key));
+          nKeys++;
+        }
+      }
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not read the keys for the key filter using " + keyQuery, ex);
+    } finally {
+      close(rs, st);
+    }
+    if (nRows > nRowsNow) {
+      System.err.println("INFO: the key filter query returned " + nRows + " rows instead of " + nRowsNow + 
+              ", the false positive rate is " + filter.expectedFpp());
+    }
+    save(file, keyQuery, nRows, filter);
+    System.err.println("INFO: saved key filter for " + nKeys + " keys to " + file);
+    return new KeyFilter(filter, file.length());
+  }
+
+  // Load the filter, or return null if the file is from an older version
+  // or was created for a different query or, unless nRowsNow is negative, 
+  // for a different number of rows.
+  private static KeyFilter load(File file, String keyQuery, long nRowsNow) {
+    System.err.println("INFO: loading key filter from " + file);
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != FILE_MAGIC) {
+        System.err.println("INFO: key filter file " + file + " has an old format, rebuilding");
+        return null;
+      }
+      String query = in.readUTF();
+      long nRows = in.readLong();
+      if (!query.equals(keyQuery)) {
+        System.err.println("INFO: key filter file " + file + " is for a different query, rebuilding");
+        return null;
+      }
+      if (nRowsNow >= 0 && nRows != nRowsNow) {
+        System.err.println("INFO: key filter file " + file + " is for " + nRows + 
+                " rows but the query returns " + nRowsNow + " now, rebuilding");
+        return null;
+      }
+      BloomFilter<Long> filter = BloomFilter.readFrom(in, Funnels.longFunnel());
+      return new KeyFilter(filter, file.length());
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not load key filter from " + file, ex);
+    } finally {
+      close(in);
+    }
+  }
+
+  // Write to a temporary file first and then rename it, so another process
+  // never sees a partially written filter.
+  private static void save(File file, String keyQuery, long nRows, BloomFilter<Long> filter) {
+    File tmp = null;
+    DataOutputStream out = null;
+    try {
+      File dir = file.getAbsoluteFile().getParentFile();
+      tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(FILE_MAGIC);
+      out.writeUTF(keyQuery);
+      out.writeLong(nRows);
+      filter.writeTo(out);
+      out.close();
+      out = null;
+      try {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      tmp = null;
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not save key filter to " + file, ex);
+    } finally {
+      close(out);
+      if (tmp != null) {
+        tmp.delete();
+      }
+    }
+  }
+
+  private static long countRows(Connection connection, String keyQuery) {
+    Statement st = null;
+    ResultSet rs = null;
+    try {
+      st = connection.createStatement();
+      rs = st.executeQuery("SELECT COUNT(*) FROM (" + keyQuery + ") kf_keys");
+      rs.next();
+      return rs.getLong(1);
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not count the keys for the key filter using " + keyQuery, ex);
+    } finally {
+      close(rs, st);
+    }
+  }
+
+  private static long hashKey(String key) {
+    return KEY_HASH.hashString(KeyNormalizer.normalize(key), Charsets.UTF_8).asLong();
+  }
+
+  /**
+   * Check if the key may be in the table.
+   *
+   * @param key the key
+   * @return false if the key is certainly not in the table
+   */
+  public boolean mightContain(String key) {
+    nChecked.incrementAndGet();
+    if (filter.mightContain(hashKey(key))) {
+      return true;
+    }
+    nRejected.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * The estimated probability that mightContain returns true for a key
+   * which is not in the table.
+   *
+   * @return the false positive probability
+   */
+  public double getFalsePositiveRate() {
+    return filter.expectedFpp();
+  }
+
+  /**
+   * The size of the filter in bytes.
+   *
+   * @return size in bytes
+   */
+  public long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /**
+   * The number of queries the filter has avoided so far.
+   *
+   * @return number of rejected keys
+   */
+  public long getQueriesAvoided() {
+    return nRejected.get();
+  }
+
+  @Override
+  public String toString() {
+    return "KeyFilter{falsePositiveRate=" + getFalsePositiveRate() +
+            ", sizeInBytes=" + sizeInBytes +
+            ", checked=" + nChecked.get() +
+            ", queriesAvoided=" + nRejected.get() + "}";
+  }
+
+  private static void close(AutoCloseable... closeables) {
+    for (AutoCloseable c : closeables) {
+      if (c != null) {
+        try {
+          c.close();
+        } catch (Exception ex) {
+          // ignore, nothing we can do
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Normalizes keys so that all keys which a database may treat as equal get
+ * the same normalized key. The database compares keys using the collation
+ * of the key column, which may ignore case, accents or trailing spaces,
+ * e.g. the default collations of MySQL or CHAR columns, so a query for
+ * "abc" can return the row for "ABC ".
+ * <p>
+ * The normalized key folds case, removes accents and trailing spaces. It
+ * is only used to find out which keys could match the same rows, which
+ * keys really match is always decided by the database.
+ *
+ * @author Johann Petrak
+ */
+public class KeyNormalizer {
+
+  private KeyNormalizer() {
+  }
+
+  /**
+   * Normalize a key.
+   *
+   * @param key the key
+   * @return the normalized key, the key itself if there is nothing to change
+   */
+  public static String normalize(String key) {
+    int len = key.length();
+    // most keys are lower case ASCII, which needs no change
+    boolean plain = len == 0 || key.charAt(len - 1) != ' ';
+    for (int i = 0; plain && i < len; i++) {
+      char c = key.charAt(i);
+      plain = c < 128 && (c < 'A' || c > 'Z');
+    }
+    if (plain) {
+      return key;
+    }
+    while (len > 0 && key.charAt(len - 1) == ' ') {
+      len--;
+    }
+    String decomposed = Normalizer.normalize(key.substring(0, len), Normalizer.Form.NFD);
+    StringBuilder sb = new StringBuilder(decomposed.length());
+    for (int i = 0; i < decomposed.length(); i++) {
+      char c = decomposed.charAt(i);
+      if (Character.getType(c) != Character.NON_SPACING_MARK) {
+        sb.append(c);
+      }
+    }
+    return sb.toString().toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size bounded segmented LRU cache from lookup keys to decoded result rows.
+ *
+ * New keys go into the probationary segment, keys which are found again
+ * get promoted to the protected segment, so keys which are only ever seen
+ * once cannot push out the frequent ones. Misses can be cached as an
+ * empty list of rows.
+ * <p>
+ * All methods are synchronized so one instance can be shared between all
+ * duplicates of a PR. The cached rows are shared too and must not get
+ * modified by the caller.
+ *
+ * @author Johann Petrak
+ */
+public class LookupCache {
+
+  private final int capacity;
+  private final int protectedCapacity;
+  private final long ttlNanos;
+  private final boolean cacheMisses;
+
+  // both maps are in access order, so the eldest entry is the least recently used
+  private final LinkedHashMap<String,Entry> probation =
+          new LinkedHashMap<String,Entry>(16, 0.75f, true);
+  private final LinkedHashMap<String,Entry> protectedSegment =
+          new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+  private String signature = null;
+
+  private long nHits = 0;
+  private long nMisses = 0;
+  private long nEvictions = 0;
+
+  /**
+   * Create the cache.
+   *
+   * @param capacity maximum number of keys to keep
+   * @param ttlSeconds number of seconds after which an entry expires, 0 or less for never
+   * @param cacheMisses if keys for which nothing was found should get cached too
+   */
+  public LookupCache(int capacity, int ttlSeconds, boolean cacheMisses) {
+    this.capacity = capacity;
+    this.protectedCapacity = (int)(capacity * 0.8);
+    this.ttlNanos = ttlSeconds > 0 ? ttlSeconds * 1000000000L : 0L;
+    this.cacheMisses = cacheMisses;
+  }
+
+  /**
+   * Make sure the cache only contains entries for the given signature.
+   *
+   * The signature should be anything which influences what gets cached for
+   * a key, e.g. the SQL query. If it differs from the signature of the
+   * current entries, the cache is cleared.
+   *
+   * @param sig the signature
+   */
+  public synchronized void checkSignature(String sig) {
+    if (signature == null || !signature.equals(sig)) {
+      probation.clear();
+      protectedSegment.clear();
+      signature = sig;
+    }
+  }
+
+  /**
+   * Get the cached rows for a key.
+   *
+   * @param key the key
+   * @return the cached rows, an empty list for a cached miss or null if the
+   * key is not in the cache
+   */
+  public synchronized List<Object> get(String key) {
+    Entry entry = protectedSegment.get(key);
+    if (entry != null) {
+      if (isExpired(entry)) {
+        protectedSegment.remove(key);
+      } else {
+        nHits++;
+        return entry.rows;
+      }
+    } else {
+      entry = probation.remove(key);
+      if (entry != null) {
+        if (isExpired(entry)) {
+          entry = null;
+        } else {
+          // seen again: promote and demote the least recently used protected entry
+          // if necessary
+          protectedSegment.put(key, entry);
+          if (protectedSegment.size() > protectedCapacity) {
+            Iterator<Map.Entry<String,Entry>> it = protectedSegment.entrySet().iterator();
+            Map.Entry<String,Entry> eldest = it.next();
+            it.remove();
+            probation.put(eldest.getKey(), eldest.getValue());
+          }
+          nHits++;
+          return entry.rows;
+        }
+      }
+    }
+    nMisses++;
+    return null;
+  }
+
+  /**
+   * Add the rows found for a key.
+   *
+   * @param key the key
+   * @param rows the rows, if empty this is only cached if misses get cached
+   */
+  public synchronized void put(String key, List<Object> rows) {
+    if (rows.isEmpty()) {
+      if (!cacheMisses) {
+        return;
+      }
+      rows = Collections.emptyList();
+    }
+    Entry entry = new Entry(rows, ttlNanos > 0 ? System.nanoTime() : 0L);
+    if (protectedSegment.containsKey(key)) {
+      protectedSegment.put(key, entry);
+      return;
+    }
+    probation.put(key, entry);
+    while (probation.size() + protectedSegment.size() > capacity) {
+      Iterator<Map.Entry<String,Entry>> it =
+              probation.isEmpty() ? protectedSegment.entrySet().iterator() : probation.entrySet().iterator();
+      it.next();
+      it.remove();
+      nEvictions++;
+    }
+  }
+
+  public synchronized int size() {
+    return probation.size() + protectedSegment.size();
+  }
+
+  public synchronized long getHits() {
+    return nHits;
+  }
+
+  public synchronized long getMisses() {
+    return nMisses;
+  }
+
+  public synchronized long getEvictions() {
+    return nEvictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long total = nHits + nMisses;
+    return "LookupCache{size=" + size() + ", capacity=" + capacity +
+            ", hits=" + nHits + ", misses=" + nMisses +
+            ", hitRatio=" + (total == 0 ? 0.0 : (double)nHits / total) +
+            ", evictions=" + nEvictions + "}";
+  }
+
+  private boolean isExpired(Entry entry) {
+    return ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos;
+  }
+
+  private static class Entry {
+    final List<Object> rows;
+    final long created;
+    Entry(List<Object> rows, long created) {
+      this.rows = rows;
+      this.created = created;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.util.GateRuntimeException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emit the Java Flight Recorder events of the lookup PRs.
+ *
+ * The plugin is compiled for Java 8, which has no jdk.jfr, so the events 
+ * cannot be subclasses of jdk.jfr.Event. Instead the event types are
+ * created at runtime with jdk.jfr.EventFactory, all through reflection.
+ * If the JVM does not have JFR, nothing gets recorded.
+ *
+ * The begin methods return null if the JVM does not have JFR or the event
+ * is not enabled in any running recording. The event types are looked up
+ * once, so when nothing is recorded all that happens per document is one
+ * call of EventType.isEnabled, no event object gets created.
+ *
+ * @author Johann Petrak
+ */
+public class LookupEvents {
+
+  private LookupEvents() {
+  }
+
+  /**
+   * Name of the event for the lookups done for one document.
+   */
+  public static final String DOCUMENT_LOOKUP = "com.jpetrak.gate.jdbclookup.DocumentLookup";
+  
+  /**
+   * Name of the event for opening or loading the MapDB file of a 
+   * MapdbLookup PR.
+   */
+  public static final String MAPDB_OPEN = "com.jpetrak.gate.jdbclookup.MapdbOpen";
+
+  private static Method newEvent;
+  private static Method isEnabled;
+  private static Method begin;
+  private static Method end;
+  private static Method shouldCommit;
+  private static Method set;
+  private static Method commit;
+  private static Object documentLookupFactory;
+  private static Object mapdbOpenFactory;
+  // the jdk.jfr.EventType of each factory, to check if it is enabled 
+  // before creating an event
+  private static Object documentLookupType;
+  private static Object mapdbOpenType;
+
+  static {
+    try {
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+      newEvent = factoryClass.getMethod("newEvent");
+      Method getEventType = factoryClass.getMethod("getEventType");
+      isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+      begin = eventClass.getMethod("begin");
+      end = eventClass.getMethod("end");
+      shouldCommit = eventClass.getMethod("shouldCommit");
+      set = eventClass.getMethod("set", int.class, Object.class);
+      commit = eventClass.getMethod("commit");
+      // the field order must match the set calls below
+      documentLookupFactory = createFactory(DOCUMENT_LOOKUP, "Document Lookup",
+              "The lookups done for one document", new Object[][] {
+                { String.class, "processingResource", "Processing Resource", null },
+                { String.class, "document", "Document", null },
+                { int.class, "keys", "Keys", "Number of annotations with a non-empty key" },
+                { int.class, "distinctKeys", "Distinct Keys", null },
+                { int.class, "hits", "Hits", "Number of distinct keys found" },
+                { int.class, "misses", "Misses", "Number of distinct keys not found" },
+                { long.class, "rows", "Rows", "Number of rows or values found for the distinct keys" }
+              });
+      mapdbOpenFactory = createFactory(MAPDB_OPEN, "MapDB Open",
+              "Opening or loading the MapDB file of a MapdbLookup PR", new Object[][] {
+                { String.class, "processingResource", "Processing Resource", null },
+                { String.class, "file", "File", null },
+                { String.class, "mapName", "Map Name", null },
+                { String.class, "loadingMode", "Loading Mode", null }
+              });
+      documentLookupType = getEventType.invoke(documentLookupFactory);
+      mapdbOpenType = getEventType.invoke(mapdbOpenFactory);
+    } catch (Throwable ex) {
+      // no JFR in this JVM
+      documentLookupFactory = null;
+      mapdbOpenFactory = null;
+      documentLookupType = null;
+      mapdbOpenType = null;
+    }
+  }
+
+  // Create the EventFactory for an event type in the category GATE/Lookup
+  // without stack traces. Each field is given as type, name, label and 
+  // description, which may be null.
+  private static Object createFactory(String name, String label, String description,
+          Object[][] fields) throws Exception {
+    Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement")
+            .getConstructor(Class.class, Object.class);
+    Constructor<?> value = Class.forName("jdk.jfr.ValueDescriptor")
+            .getConstructor(Class.class, String.class, List.class);
+    Class<?> labelClass = Class.forName("jdk.jfr.Label");
+    Class<?> descriptionClass = Class.forName("jdk.jfr.Description");
+    List<Object> annotations = new ArrayList<Object>();
+    annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+    annotations.add(annotation.newInstance(labelClass, label));
+    annotations.add(annotation.newInstance(descriptionClass, description));
+    annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "GATE", "Lookup" }));
+    annotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), Boolean.FALSE));
+    List<Object> values = new ArrayList<Object>();
+    for (Object[] field : fields) {
+      List<Object> fieldAnnotations = new ArrayList<Object>();
+      fieldAnnotations.add(annotation.newInstance(labelClass, field[2]));
+      if (field[3] != null) {
+        fieldAnnotations.add(annotation.newInstance(descriptionClass, field[3]));
+      }
+      values.add(value.newInstance(field[0], field[1], fieldAnnotations));
+    }
+    return Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+            .invoke(null, annotations, values);
+  }
+
+  // create and begin an event, null if its type is not enabled
+  private static Object begin(Object factory, Object type) {
+    if (factory == null) {
+      return null;
+    }
+    try {
+      if (!(Boolean) isEnabled.invoke(type)) {
+        return null;
+      }
+      Object event = newEvent.invoke(factory);
+      begin.invoke(event);
+      return event;
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Could not create flight recorder event", ex);
+    }
+  }
+
+  // end the event and commit it with the given field values if it 
+  // should be recorded
+  private static void commit(Object event, Object... values) {
+    try {
+      end.invoke(event);
+      if ((Boolean) shouldCommit.invoke(event)) {
+        for (int i = 0; i < values.length; i++) {
+          set.invoke(event, i, values[i]);
+        }
+        commit.invoke(event);
+      }
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Could not commit flight recorder event", ex);
+    }
+  }
+
+  /**
+   * Start timing the lookups for a document.
+   *
+   * @return the started event or null if it is not recorded
+   */
+  public static Object beginDocumentLookup() {
+    return begin(documentLookupFactory, documentLookupType);
+  }
+
+  /**
+   * End and commit an event returned by beginDocumentLookup.
+   *
+   * @param ev the event, nothing happens if this is null
+   * @param prName the name of the PR
+   * @param docName the name of the document
+   * @param nKeys the number of non-empty keys
+   * @param nDistinct the number of distinct keys
+   * @param nHits the number of distinct keys found
+   * @param nRows the number of rows or values found
+   */
+  public static void commitDocumentLookup(Object ev, String prName, String docName,
+          int nKeys, int nDistinct, int nHits, long nRows) {
+    if (ev != null) {
+      commit(ev, prName, docName, nKeys, nDistinct, nHits, nDistinct - nHits, nRows);
+    }
+  }
+
+  /**
+   * Start timing the opening of a MapDB file.
+   *
+   * @return the started event or null if it is not recorded
+   */
+  public static Object beginMapdbOpen() {
+    return begin(mapdbOpenFactory, mapdbOpenType);
+  }
+
+  /**
+   * End and commit an event returned by beginMapdbOpen.
+   *
+   * @param ev the event, nothing happens if this is null
+   * @param prName the name of the PR
+   * @param file the MapDB file
+   * @param mapName the name of the map
+   * @param loadingMode how the file was opened
+   */
+  public static void commitMapdbOpen(Object ev, String prName, String file,
+          String mapName, String loadingMode) {
+    if (ev != null) {
+      commit(ev, prName, file, mapName, loadingMode);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Lookup metrics of a PR or LR: number of keys looked up and found, rows
+ * per key and latency histograms, shared by all duplicates of a PR.
+ *
+ * All recording methods only update counters and atomic arrays, so they
+ * can be called concurrently and do not allocate anything. The metrics
+ * can be registered as an MBean under
+ * com.jpetrak.gate.jdbclookup:type=(class name),name=(resource name).
+ *
+ * @author Johann Petrak
+ */
+public class LookupMetrics implements LookupMetricsMBean {
+
+  private final String type;
+  private final String name;
+  private ObjectName objectName = null;
+
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder found = new LongAdder();
+  private final LongAdder rows = new LongAdder();
+  private final Histogram rowsPerKey = new Histogram();
+  private final Histogram latency = new Histogram();
+  private final Histogram batchLatency = new Histogram();
+  private final Histogram updateLatency = new Histogram();
+
+  public LookupMetrics(String type, String name) {
+    this.type = type;
+    this.name = name;
+  }
+
+  /**
+   * Record a key looked up on its own.
+   *
+   * @param nanos the time it took
+   * @param nRows the number of rows found
+   */
+  public void recordLookup(long nanos, int nRows) {
+    recordKey(nRows);
+    latency.record(nanos);
+  }
+
+  /**
+   * Record the result for a key looked up as part of a batch.
+   *
+   * @param nRows the number of rows found
+   */
+  public void recordKey(int nRows) {
+    lookups.increment();
+    if (nRows > 0) {
+      found.increment();
+      rows.add(nRows);
+    }
+    rowsPerKey.record(nRows);
+  }
+
+  /**
+   * Record the time for looking up a batch of keys, the keys themselves
+   * must be recorded with recordKey.
+   *
+   * @param nanos the time it took
+   */
+  public void recordBatch(long nanos) {
+    batchLatency.record(nanos);
+  }
+
+  /**
+   * Record an update, e.g. a put or remove.
+   *
+   * @param nanos the time it took
+   */
+  public void recordUpdate(long nanos) {
+    updateLatency.record(nanos);
+  }
+
+  /**
+   * Register the metrics with the platform MBean server. Failure to register
+   * is only logged, since the metrics can still be used without JMX.
+   */
+  public synchronized void register() {
+    if (objectName != null) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      // the name is not always set yet when a resource gets initialized and
+      // several resources can have the same name, so make it unique
+      String base = name == null ? Integer.toHexString(System.identityHashCode(this)) : name;
+      ObjectName on = makeObjectName(base);
+      for (int i = 2; server.isRegistered(on); i++) {
+        on = makeObjectName(base + "#" + i);
+      }
+      server.registerMBean(this, on);
+      objectName = on;
+    } catch (Exception ex) {
+      System.err.println("WARNING: could not register metrics MBean for " + name + ": " + ex);
+    }
+  }
+
+  private ObjectName makeObjectName(String n) throws Exception {
+    return new ObjectName("com.jpetrak.gate.jdbclookup:type=" + type + ",name=" + ObjectName.quote(n));
+  }
+
+  public synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (Exception ex) {
+      // ignore, nothing we can do
+    }
+    objectName = null;
+  }
+
+  @Override
+  public long getLookups() {
+    return lookups.sum();
+  }
+
+  @Override
+  public long getFound() {
+    return found.sum();
+  }
+
+  @Override
+  public double getHitRatio() {
+    long n = lookups.sum();
+    return n == 0 ? 0.0 : (double) found.sum() / n;
+  }
+
+  @Override
+  public long getRows() {
+    return rows.sum();
+  }
+
+  @Override
+  public double getMeanRowsPerKey() {
+    return rowsPerKey.getMean();
+  }
+
+  @Override
+  public long getMaxRowsPerKey() {
+    return rowsPerKey.getMax();
+  }
+
+  @Override
+  public double getMeanLatencyMicros() {
+    return latency.getMean() / 1000.0;
+  }
+
+  @Override
+  public double getLatencyP50Micros() {
+    return latency.getPercentile(0.5) / 1000.0;
+  }
+
+  @Override
+  public double getLatencyP90Micros() {
+    return latency.getPercentile(0.9) / 1000.0;
+  }
+
+  @Override
+  public double getLatencyP99Micros() {
+    return latency.getPercentile(0.99) / 1000.0;
+  }
+
+  @Override
+  public double getLatencyP999Micros() {
+    return latency.getPercentile(0.999) / 1000.0;
+  }
+
+  @Override
+  public double getMaxLatencyMicros() {
+    return latency.getMax() / 1000.0;
+  }
+
+  @Override
+  public long getBatches() {
+    return batchLatency.getCount();
+  }
+
+  @Override
+  public double getMeanBatchLatencyMicros() {
+    return batchLatency.getMean() / 1000.0;
+  }
+
+  @Override
+  public double getBatchLatencyP99Micros() {
+    return batchLatency.getPercentile(0.99) / 1000.0;
+  }
+
+  @Override
+  public long getUpdates() {
+    return updateLatency.getCount();
+  }
+
+  @Override
+  public double getMeanUpdateLatencyMicros() {
+    return updateLatency.getMean() / 1000.0;
+  }
+
+  @Override
+  public double getUpdateLatencyP99Micros() {
+    return updateLatency.getPercentile(0.99) / 1000.0;
+  }
+
+  @Override
+  public String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("lookups=").append(getLookups());
+    sb.append(", found=").append(getFound());
+    sb.append(String.format(", hitRatio=%.3f", getHitRatio()));
+    sb.append(String.format(", meanRowsPerKey=%.2f", getMeanRowsPerKey()));
+    sb.append(", maxRowsPerKey=").append(getMaxRowsPerKey());
+    if (latency.getCount() > 0) {
+      sb.append(String.format(", latencyMicros(mean/p50/p90/p99/p999/max)=%.1f/%.1f/%.1f/%.1f/%.1f/%.1f",
+              getMeanLatencyMicros(), getLatencyP50Micros(), getLatencyP90Micros(),
+              getLatencyP99Micros(), getLatencyP999Micros(), getMaxLatencyMicros()));
+    }
+    if (getBatches() > 0) {
+      sb.append(", batches=").append(getBatches());
+      sb.append(String.format(", batchLatencyMicros(mean/p99)=%.1f/%.1f",
+              getMeanBatchLatencyMicros(), getBatchLatencyP99Micros()));
+    }
+    if (getUpdates() > 0) {
+      sb.append(", updates=").append(getUpdates());
+      sb.append(String.format(", updateLatencyMicros(mean/p99)=%.1f/%.1f",
+              getMeanUpdateLatencyMicros(), getUpdateLatencyP99Micros()));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void reset() {
+    lookups.reset();
+    found.reset();
+    rows.reset();
+    rowsPerKey.reset();
+    latency.reset();
+    batchLatency.reset();
+    updateLatency.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "LookupMetrics{" + getSummary() + "}";
+  }
+
+  /**
+   * A histogram of non-negative values with log-linear buckets, like
+   * HdrHistogram with one significant digit: values below 16 are counted
+   * exactly, larger values in one of 16 sub-buckets per power of two, so
+   * the relative error of the percentiles is at most about 6%.
+   */
+  static class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int N_BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      counts.incrementAndGet(bucketOf(value));
+      count.increment();
+      sum.add(value);
+      long m = max.get();
+      while (value > m && !max.compareAndSet(m, value)) {
+        m = max.get();
+      }
+    }
+
+    static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exp = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return SUB_BUCKETS + (exp - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    // the middle of the range of values counted in the bucket
+    static long valueOf(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exp = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+      long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+      long width = 1L << (exp - SUB_BITS);
+      return ((SUB_BUCKETS + sub) << (exp - SUB_BITS)) + width / 2;
+    }
+
+    long getCount() {
+      return count.sum();
+    }
+
+    long getMax() {
+      return max.get();
+    }
+
+    double getMean() {
+      long n = count.sum();
+      return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    long getPercentile(double p) {
+      long n = count.sum();
+      if (n == 0) {
+        return 0;
+      }
+      // at least one value, so the 0th percentile is the smallest value
+      long target = Math.max(1, (long) Math.ceil(p * n));
+      long seen = 0;
+      for (int i = 0; i < N_BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= target) {
+          return Math.min(valueOf(i), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    void reset() {
+      for (int i = 0; i < N_BUCKETS; i++) {
+        counts.set(i, 0);
+      }
+      count.reset();
+      sum.reset();
+      max.set(0);
+    }
+  }
+}
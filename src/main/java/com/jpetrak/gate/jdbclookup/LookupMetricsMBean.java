@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+/**
+ * The JMX view of the LookupMetrics of a PR or LR. Latencies are in
+ * microseconds.
+ *
+ * @author Johann Petrak
+ */
+public interface LookupMetricsMBean {
+
+  long getLookups();
+
+  long getFound();
+
+  double getHitRatio();
+
+  long getRows();
+
+  double getMeanRowsPerKey();
+
+  long getMaxRowsPerKey();
+
+  double getMeanLatencyMicros();
+
+  double getLatencyP50Micros();
+
+  double getLatencyP90Micros();
+
+  double getLatencyP99Micros();
+
+  double getLatencyP999Micros();
+
+  double getMaxLatencyMicros();
+
+  long getBatches();
+
+  double getMeanBatchLatencyMicros();
+
+  double getBatchLatencyP99Micros();
+
+  long getUpdates();
+
+  double getMeanUpdateLatencyMicros();
+
+  double getUpdateLatencyP99Micros();
+
+  String getSummary();
+
+  void reset();
+}
@@ -26,19 +26,35 @@
 package com.jpetrak.gate.jdbclookup;
 
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import gate.*;
 import gate.api.AbstractDocumentProcessor;
+import gate.creole.ResourceInstantiationException;
 import gate.creole.metadata.*;
 import gate.util.Benchmark;
 import gate.util.Benchmarkable;
 import gate.util.GateRuntimeException;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
 
 
 @CreoleResource(name = "MapdbLookup",
@@ -92,6 +108,20 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
   }
   protected String containingType = "";
 
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "If an input annotation in several overlapping containing annotations should be processed once for each of them",
+          defaultValue = "false")
+  public void setOncePerContainingAnnotation(Boolean flag) {
+    oncePerContainingAnnotation = flag;
+  }
+
+  public Boolean getOncePerContainingAnnotation() {
+    return oncePerContainingAnnotation;
+  }
+  protected Boolean oncePerContainingAnnotation = false;
+
   @RunTime
   @Optional
   @CreoleParameter(
@@ -131,11 +161,73 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
   )
   public void setLoadingMode(LoadingMode val) {
     loadingMode = val;
+    startBackgroundOpen();
   }
   public LoadingMode getLoadingMode() {
     return loadingMode;
   }
 
+  private Integer loadingThreads = 0;
+  @Optional
+  @RunTime
+  @CreoleParameter(
+      comment = "Number of threads for copying the map with COPY2MEMORY, 0 for the number of processors",
+      defaultValue = "0"
+  )
+  public void setLoadingThreads(Integer val) {
+    loadingThreads = val;
+    startBackgroundOpen();
+  }
+  public Integer getLoadingThreads() {
+    return loadingThreads;
+  }
+
+  private Boolean openInBackground = false;
+  /**
+   * If true, the MapDB file gets opened or loaded in a background thread as
+   * soon as the PR has been initialized and the mapDbFileUrl is known, 
+   * instead of when the first document gets processed. Processing the first
+   * document then only waits for whatever is not done yet.
+   * 
+   * @param val flag
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+      comment = "Open or load the MapDB file in the background as soon as possible",
+      defaultValue = "false"
+  )
+  public void setOpenInBackground(Boolean val) {
+    openInBackground = val;
+    startBackgroundOpen();
+  }
+  public Boolean getOpenInBackground() {
+    return openInBackground;
+  }
+
+  private Integer prefetchMB = 0;
+  /**
+   * How many MB of the MapDB file to read before opening it, so that the 
+   * pages are in the OS page cache and the first lookups with MEMORY_MAPPED
+   * or FILE_ONLY do not have to wait for the disk. The file is read from the 
+   * start, 0 reads nothing, -1 the whole file.
+   * 
+   * @param val number of MB
+   */
+  @Optional
+  @RunTime
+  @CreoleParameter(
+      comment = "MB of the MapDB file to read into the OS page cache before opening it, -1 for all",
+      defaultValue = "0"
+  )
+  public void setPrefetchMB(Integer val) {
+    prefetchMB = val;
+    startBackgroundOpen();
+  }
+  public Integer getPrefetchMB() {
+    return prefetchMB;
+  }
+
 
   
   private URL mapDbFileUrl;
@@ -145,6 +237,7 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
   )
   public void setMapDbFileUrl(URL u) {
     mapDbFileUrl = u;
+    startBackgroundOpen();
   }
   public URL getMapDbFileUrl() { return mapDbFileUrl; }
   
@@ -157,9 +250,81 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
   )
   public void setMapName(String v) {
     mapName = v;
+    startBackgroundOpen();
   }
   public String getMapName() { return mapName; }
 
+  private SerializerType keySerializer = SerializerType.AUTO;
+  /**
+   * The serializer of the map keys. MapDB always reads a map with the 
+   * serializers it was created with, so for MEMORY_MAPPED and FILE_ONLY
+   * this must match the serializer recorded in the file. For COPY2MEMORY, 
+   * the in-memory copy of the map gets created with this serializer.
+   * If AUTO, the entry "keySerializer" of the map "config" is used if it 
+   * exists, otherwise the serializer recorded in the file.
+   * 
+   * @param val the key serializer
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The serializer of the map keys, AUTO to get it from the config map or MapDB file",
+          defaultValue = "AUTO"
+  )
+  public void setKeySerializer(SerializerType val) {
+    keySerializer = val;
+    startBackgroundOpen();
+  }
+  public SerializerType getKeySerializer() {
+    return keySerializer;
+  }
+
+  private SerializerType valueSerializer = SerializerType.AUTO;
+  /**
+   * The serializer of the map values, like keySerializer. JSON means that 
+   * the values are stored as strings containing JSON which get converted
+   * to maps, lists etc. when looked up.
+   * 
+   * @param val the value serializer
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The serializer of the map values, AUTO to get it from the config map or MapDB file",
+          defaultValue = "AUTO"
+  )
+  public void setValueSerializer(SerializerType val) {
+    valueSerializer = val;
+    startBackgroundOpen();
+  }
+  public SerializerType getValueSerializer() {
+    return valueSerializer;
+  }
+
+  private VectorEncoding valueEncoding = VectorEncoding.AUTO;
+  /**
+   * How vectors are encoded in the map values. For FLOAT16 and INT8, the 
+   * values are byte arrays which get decoded into a double[] when looked 
+   * up, or into the float matrix for loading mode EMBEDDING_MATRIX.
+   * If AUTO, the entry "valueEncoding" of the map "config" is used if it 
+   * exists, otherwise NONE.
+   * 
+   * @param val the encoding
+   */
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "How vectors are encoded in the map values, AUTO to get it from the config map",
+          defaultValue = "AUTO"
+  )
+  public void setValueEncoding(VectorEncoding val) {
+    valueEncoding = val;
+    startBackgroundOpen();
+  }
+  public VectorEncoding getValueEncoding() {
+    return valueEncoding;
+  }
+
   
   private FeatureMap featureMappings = null;
   /**
@@ -219,10 +384,38 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
 
   ////////////////////// FIELDS
   
+  private boolean initialized = false;
+  // milliseconds to wait before opening in the background
+  private static final long BACKGROUND_OPEN_DELAY = 200;
+  
+  // the opened or loaded map, shared with all PRs in the JVM using the same
+  // file, map and loading mode
+  private MapdbStore store = null;
   private DB db = null;
-  private HTreeMap<String, Object> map = null;
+  private HTreeMap<Object, Object> map = null;
+  // for loading mode EMBEDDING_MATRIX, instead of the map
+  private EmbeddingMatrix matrix = null;
+  // if the matrix vectors should be returned as double[] instead of float[]
+  private boolean matrixDoubles = true;
+  // how to convert the key string for looking it up in the map
+  private SerializerType mapKeyType = SerializerType.STRING;
+  // if the values are JSON strings which need to get parsed
+  private boolean jsonValues = false;
+  // how the values need to get decoded, NONE if not at all
+  private VectorEncoding mapEncoding = VectorEncoding.NONE;
+  private static final ObjectMapper mapper = new ObjectMapper();
   private static final Object syncObject = new Object();
   
+  // marks keys not in the map in the per-document values
+  private static final Object NOT_FOUND = new Object();
+  private static final Logger logger = Logger.getLogger(MapdbLookup.class.getName());
+  private int nKeysInDocument = 0;
+  private int nHitsInDocument = 0;
+  private long nKeysTotal = 0;
+  private long nDistinctKeysTotal = 0;
+  // lookup counts and latencies, shared by all duplicates
+  private LookupMetrics metrics;
+  
   ////////////////////// PROCESSING
   
   @Override
@@ -252,33 +445,47 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
 
     fireStatusChanged("MapdbLookup: performing look-up in " + document.getName() + "...");
 
+    Object event = LookupEvents.beginDocumentLookup();
+    // each distinct key of the document is only looked up once
+    Map<String, Object> docValues = new HashMap<String, Object>();
+    nKeysInDocument = 0;
+    nHitsInDocument = 0;
     if (containingAnns == null) {
       // go through all input annotations 
       for (Annotation ann : inputAnns) {
-        doLookup(document, ann);
+        doLookup(document, ann, docValues);
         if(isInterrupted()) {
           throw new GateRuntimeException("MapdbLookup has been interrupted");
         }
       }
     } else {
       // go through the input annotations contained in the containing annotations
-      for (Annotation containingAnn : containingAnns) {
-        AnnotationSet containedAnns = gate.Utils.getContainedAnnotations(inputAnns, containingAnn);
-        for (Annotation ann : containedAnns) {
-          doLookup(document, ann);
-          if(isInterrupted()) { 
-            throw new GateRuntimeException("MapdbLookup has been interrupted");
-          }
+      List<Annotation> containedAnns = ContainedAnnotations.getContained(inputAnns, containingAnns,
+              getOncePerContainingAnnotation() != null && getOncePerContainingAnnotation());
+      for (Annotation ann : containedAnns) {
+        doLookup(document, ann, docValues);
+        if(isInterrupted()) { 
+          throw new GateRuntimeException("MapdbLookup has been interrupted");
         }
       }
     }
 
+    nKeysTotal += nKeysInDocument;
+    nDistinctKeysTotal += docValues.size();
+    if (logger.isDebugEnabled()) {
+      logger.debug("Keys in document " + document.getName() + ": " + nKeysInDocument + 
+              ", distinct: " + docValues.size() + ", dedup ratio: " +
+              (docValues.isEmpty() ? 1.0 : (double)nKeysInDocument / docValues.size()));
+    }
+    LookupEvents.commitDocumentLookup(event, getName(), document.getName(),
+            nKeysInDocument, docValues.size(), nHitsInDocument, nHitsInDocument);
+
     fireProcessFinished();
     fireStatusChanged("MapdbLookup: look-up complete!");
     return document;
   }
   
-  private void doLookup(Document doc, Annotation ann) {
+  private void doLookup(Document doc, Annotation ann, Map<String, Object> docValues) {
     String key;
     long startTime = Benchmark.startPoint();
     FeatureMap fm = ann.getFeatures();
@@ -288,9 +495,39 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
       key = (String) fm.get(getKeyFeature());
     }
     if (key != null) {
-      Object val = map.get(key);
+      nKeysInDocument++;
+      Object val = docValues.get(key);
+      if (val == null) {
+        long startNanos = System.nanoTime();
+        if (matrix != null) {
+          int row = matrix.getRow(key);
+          val = row < 0 ? null : matrixDoubles ? matrix.getDoubles(row) : matrix.getFloats(row);
+        } else {
+          Object mapKey = toMapKey(key);
+          val = mapKey == null ? null : map.get(mapKey);
+        }
+        if (val != null && jsonValues) {
+          val = parseJson(key, val);
+        } else if (val != null && mapEncoding != VectorEncoding.NONE) {
+          if (!(val instanceof byte[])) {
+            throw new GateRuntimeException("Value for key " + key + " is not a " + mapEncoding + " encoded byte array but " + val.getClass());
+          }
+          val = mapEncoding.decodeDoubles((byte[]) val);
+        }
+        metrics.recordLookup(System.nanoTime() - startNanos, val == null ? 0 : 1);
+        if (val != null) {
+          nHitsInDocument++;
+        }
+        docValues.put(key, val == null ? NOT_FOUND : val);
+      } else if (val == NOT_FOUND) {
+        val = null;
+      }
       if(mappingMode == MappingMode.DIRECT) {
-        fm.put(getValueFeature(), val);
+        // the value is shared by all annotations with this key, each gets
+        // its own copy
+        fm.put(getValueFeature(), FeatureValues.copy(val));
+      } else if(val == null) {
+        // key not found, nothing to map to features
       } else if(mappingMode == MappingMode.MAP_TO_FEATURES) {
         // in this case, val has to be a map!
         if(val instanceof Map) {
@@ -298,7 +535,7 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
           // now if there are any mappings set, use them, otherwise just 
           // add all entries as is to the feature map
           if(getFeatureMappings()==null || getFeatureMappings().isEmpty()) {
-            fm.putAll(valmap);
+            FeatureValues.putAllCopies(fm, valmap);
           } else {
             throw new GateRuntimeException("feature mappings not implemented yet for MAP_TO_FEATURES");
           }
@@ -312,18 +549,28 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
         if(val instanceof List) {
           List<Object> toAdd = (List<Object>)val;
           for(int i=0; i<toAdd.size(); i++) {
-            addMappedElement(fm,toAdd.get(i),i,getFeatureMappings());
+            addMappedElement(fm,FeatureValues.copy(toAdd.get(i)),i,getFeatureMappings());
           }
         } else if(val instanceof double[]) {
           double[] toAdd = (double[])val;
           for(int i=0; i<toAdd.length; i++) {
             addMappedElement(fm,toAdd[i],i,getFeatureMappings());
           }          
+        } else if(val instanceof float[]) {
+          float[] toAdd = (float[])val;
+          for(int i=0; i<toAdd.length; i++) {
+            addMappedElement(fm,toAdd[i],i,getFeatureMappings());
+          }          
         } else if(val instanceof int[]) {
           int[] toAdd = (int[])val;
           for(int i=0; i<toAdd.length; i++) {
             addMappedElement(fm,toAdd[i],i,getFeatureMappings());
           }          
+        } else if(val instanceof long[]) {
+          long[] toAdd = (long[])val;
+          for(int i=0; i<toAdd.length; i++) {
+            addMappedElement(fm,toAdd[i],i,getFeatureMappings());
+          }          
         } else if(val instanceof String[]) {
           String[] toAdd = (String[])val;
           for(int i=0; i<toAdd.length; i++) {
@@ -337,6 +584,34 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
     benchmarkCheckpoint(startTime, "__MapdbLookup");
   }
   
+  // Convert the key string to the type of the map keys, null if that is 
+  // not possible, e.g. a key which is not a number for a LONG key serializer
+  private Object toMapKey(String key) {
+    try {
+      if (mapKeyType == SerializerType.LONG) {
+        return Long.valueOf(key);
+      } else if (mapKeyType == SerializerType.INTEGER) {
+        return Integer.valueOf(key);
+      } else if (mapKeyType == SerializerType.DOUBLE) {
+        return Double.valueOf(key);
+      }
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+    return key;
+  }
+  
+  private Object parseJson(String key, Object val) {
+    if (!(val instanceof String)) {
+      throw new GateRuntimeException("Value for key " + key + " is not a JSON string but " + val.getClass());
+    }
+    try {
+      return mapper.readValue((String) val, Object.class);
+    } catch (IOException ex) {
+      throw new GateRuntimeException("Could not parse JSON value for key " + key, ex);
+    }
+  }
+  
   // Helper function to add sequence elements to a target feature map, optionally
   // using the mappings
   private void addMappedElement(FeatureMap targetFm, Object value, int index, FeatureMap mappings) {
@@ -358,47 +633,423 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
   @Override
   protected void beforeFirstDocument(Controller ctrl) {
     synchronized (syncObject) {
-      db = (DB) sharedData.get("db");
-      if (db != null) {
-        System.err.println("INFO: shared db already opened in duplicate " + duplicateId + " of PR " + this.getName());
-        map = (HTreeMap<String, Object>) sharedData.get("map");
-      } else {
-        long startTime = Benchmark.startPoint();
-        System.err.println("INFO: Opening DB in duplicate " + duplicateId + " of PR " + this.getName());
-        File file = gate.util.Files.fileFromURL(mapDbFileUrl);
-        if (getLoadingMode() == null || getLoadingMode() == LoadingMode.MEMORY_MAPPED) {
-          db = DBMaker.fileDB(file).fileMmapEnable().readOnly().make();
-          map = (HTreeMap<String, Object>) db.hashMap(getMapName()).open();
-        } else if(getLoadingMode() == LoadingMode.FILE_ONLY) {
-          db = DBMaker.fileDB(file).readOnly().make();
-          map = (HTreeMap<String, Object>) db.hashMap(getMapName()).open();
-        } else if(getLoadingMode() == LoadingMode.COPY2MEMORY) {
-          DB tmpdb = DBMaker.fileDB(file).readOnly().make();
-          HTreeMap<String, Object> fmap = (HTreeMap<String, Object>)tmpdb.hashMap(getMapName()).create();
-          db = DBMaker.memoryDB().make();
-          map = (HTreeMap<String, Object>)db.hashMap(getMapName()).create();
-          map.putAll(fmap);
-          tmpdb.close();
+      metrics = (LookupMetrics) sharedData.get("metrics");
+      if (metrics == null) {
+        metrics = new LookupMetrics("MapdbLookup", getName());
+        metrics.register();
+        sharedData.put("metrics", metrics);
+      }
+    }
+    acquireStore();
+    if (store.getUsers() > 1) {
+      System.err.println("INFO: using shared MapDB store in duplicate " + duplicateId + " of PR " + this.getName() +
+              ", users: " + store.getUsers());
+    }
+    // opens the store in this thread, unless it is already being opened or 
+    // has been opened
+    store.open();
+    db = store.db;
+    map = store.map;
+    matrix = store.matrix;
+    if (matrix != null) {
+      matrixDoubles = store.matrixDoubles;
+    } else {
+      mapKeyType = SerializerType.of(db, map.getKeySerializer());
+    }
+    jsonValues = store.jsonValues;
+    mapEncoding = store.encoding;
+  }
+  
+  // Open the MapDB file, or load it into memory, according to the parameters
+  private void openStore(MapdbStore store) {
+    long startTime = Benchmark.startPoint();
+    Object event = LookupEvents.beginMapdbOpen();
+    System.err.println("INFO: Opening DB in duplicate " + duplicateId + " of PR " + this.getName());
+    File file = gate.util.Files.fileFromURL(mapDbFileUrl);
+    if (getPrefetchMB() != null && getPrefetchMB() != 0) {
+      prefetch(file, getPrefetchMB() < 0 ? Long.MAX_VALUE : getPrefetchMB() * 1048576L);
+    }
+    DB db = null;
+    HTreeMap<Object, Object> map = null;
+    EmbeddingMatrix matrix = null;
+    boolean matrixDoubles = true;
+    SerializerType keyType;
+    SerializerType valueType;
+    VectorEncoding encoding;
+    if (getLoadingMode() == null || getLoadingMode() == LoadingMode.MEMORY_MAPPED) {
+      db = DBMaker.fileDB(file).fileMmapEnable().readOnly().make();
+      encoding = resolveEncoding(db);
+      map = (HTreeMap<Object, Object>) db.hashMap(getMapName()).open();
+      keyType = resolveSerializer(db, "keySerializer", getKeySerializer());
+      valueType = resolveSerializer(db, "valueSerializer", getValueSerializer());
+      checkSerializer(db, map.getKeySerializer(), keyType, "key");
+      checkSerializer(db, map.getValueSerializer(), valueType, "value");
+    } else if(getLoadingMode() == LoadingMode.FILE_ONLY) {
+      db = DBMaker.fileDB(file).readOnly().make();
+      encoding = resolveEncoding(db);
+      map = (HTreeMap<Object, Object>) db.hashMap(getMapName()).open();
+      keyType = resolveSerializer(db, "keySerializer", getKeySerializer());
+      valueType = resolveSerializer(db, "valueSerializer", getValueSerializer());
+      checkSerializer(db, map.getKeySerializer(), keyType, "key");
+      checkSerializer(db, map.getValueSerializer(), valueType, "value");
+    } else if(getLoadingMode() == LoadingMode.EMBEDDING_MATRIX) {
+      DB tmpdb = DBMaker.fileDB(file).fileMmapEnable().readOnly().make();
+      HTreeMap<Object, Object> fmap = (HTreeMap<Object, Object>)tmpdb.hashMap(getMapName()).open();
+      keyType = SerializerType.STRING;
+      valueType = resolveSerializer(tmpdb, "valueSerializer", getValueSerializer());
+      if (valueType == SerializerType.AUTO) {
+        valueType = SerializerType.of(tmpdb, fmap.getValueSerializer());
+      }
+      encoding = resolveEncoding(tmpdb);
+      matrix = EmbeddingMatrix.fromMap(fmap, encoding);
+      tmpdb.close();
+      System.err.println("INFO: loaded embedding matrix with " + matrix.size() + " rows, " + matrix.getDimensions() + 
+              " dimensions, " + (matrix.getBytes() >> 20) + " MB");
+      matrixDoubles = valueType != SerializerType.FLOAT_ARRAY;
+    } else {
+      // memory mapped, because reads from a plain file are synchronized
+      DB tmpdb = DBMaker.fileDB(file).fileMmapEnable().readOnly().make();
+      HTreeMap<Object, Object> fmap = (HTreeMap<Object, Object>)tmpdb.hashMap(getMapName()).open();
+      keyType = resolveSerializer(tmpdb, "keySerializer", getKeySerializer());
+      valueType = resolveSerializer(tmpdb, "valueSerializer", getValueSerializer());
+      encoding = resolveEncoding(tmpdb);
+      int nThreads = getLoadingThreads() == null || getLoadingThreads() < 1 ?
+              Runtime.getRuntime().availableProcessors() : getLoadingThreads();
+      long size = fmap.sizeLong();
+      // at least as many segments as threads, and enough levels of the 
+      // index tree for about one entry per leaf
+      int segments = 8;
+      while (segments < nThreads && segments < 64) {
+        segments *= 2;
+      }
+      int levels = 4;
+      while (levels < 6 && segments * Math.pow(16, levels) < size) {
+        levels++;
+      }
+      db = DBMaker.memoryDB().concurrencyScale(segments).make();
+      // the copy gets the specific serializers if known, so that lookups
+      // do not have to go through the generic default serializer
+      map = db.hashMap(getMapName(), 
+              copySerializer(db, tmpdb, fmap.getKeySerializer(), keyType),
+              copySerializer(db, tmpdb, fmap.getValueSerializer(), valueType))
+              .layout(segments, 16, levels).create();
+      long copyStart = System.currentTimeMillis();
+      try {
+        if (nThreads == 1) {
+          copySerial(fmap, map, size);
+        } else {
+          copyParallel(fmap, map, size, nThreads);
+        }
+      } catch (ClassCastException ex) {
+        throw new GateRuntimeException("MapDB map " + getMapName() + " has keys or values which cannot be stored with serializers " +
+                keyType + "/" + valueType, ex);
+      }
+      tmpdb.close();
+      System.err.println("INFO: copied " + size + " entries to memory with " + nThreads + " threads in " + 
+              (System.currentTimeMillis() - copyStart) + " ms");
+    }
+    if (map != null) {
+      System.err.println("INFO: MapDB map " + getMapName() + " key serializer: " + SerializerType.of(db, map.getKeySerializer()) + 
+              ", value serializer: " + (valueType == SerializerType.JSON ? valueType : SerializerType.of(db, map.getValueSerializer())) +
+              ", value encoding: " + encoding);
+    }
+    benchmarkCheckpoint(startTime, "__LoadMapdb");
+    LookupEvents.commitMapdbOpen(event, getName(), file.getPath(), getMapName(),
+            String.valueOf(getLoadingMode() == null ? LoadingMode.MEMORY_MAPPED : getLoadingMode()));
+    store.db = db;
+    store.map = map;
+    store.matrix = matrix;
+    store.matrixDoubles = matrixDoubles;
+    store.jsonValues = valueType == SerializerType.JSON;
+    // the matrix already contains the decoded vectors
+    store.encoding = matrix == null ? encoding : VectorEncoding.NONE;
+  }
+  
+  // The parameters which determine what gets opened, the file is identified
+  // by its canonical path so that different URLs for the same file share 
+  // the store
+  private String getStoreKey() {
+    File file = gate.util.Files.fileFromURL(mapDbFileUrl);
+    String path;
+    try {
+      path = file.getCanonicalPath();
+    } catch (IOException ex) {
+      path = file.getAbsolutePath();
+    }
+    return path + "|" + getMapName() + "|" + 
+            (getLoadingMode() == null ? LoadingMode.MEMORY_MAPPED : getLoadingMode()) + "|" + 
+            getKeySerializer() + "|" + getValueSerializer() + "|" + getValueEncoding();
+  }
+  
+  // Make sure this PR is a user of the store for the current parameters,
+  // releasing the store it used before if the parameters have changed or
+  // it could not be opened, so that opening gets tried again. If the old
+  // store is still being opened in the background, this waits until that 
+  // is done and the store is closed again.
+  private void acquireStore() {
+    String key = getStoreKey();
+    if (store != null && store.getKey().equals(key) && !store.isFailed()) {
+      return;
+    }
+    if (store != null) {
+      store.releaseAndWait();
+    }
+    store = MapdbStore.acquire(key, new MapdbStore.Opener() {
+      @Override
+      public void open(MapdbStore s) {
+        openStore(s);
+      }
+    });
+  }
+  
+  // Start opening the store in a background thread, if requested and the
+  // file is known. This gets called when the PR is initialized and whenever
+  // one of the parameters used for opening gets set, since when an 
+  // application is restored, runtime parameters get set one by one after
+  // initialization. The thread waits a little before it starts, so that a
+  // store which has not started opening yet can be released without being
+  // opened if another parameter gets set right afterwards.
+  private void startBackgroundOpen() {
+    if (!initialized || duplicateId != 0 || 
+            openInBackground == null || !openInBackground || mapDbFileUrl == null) {
+      return;
+    }
+    acquireStore();
+    store.openInBackground(BACKGROUND_OPEN_DELAY, "MapdbLookup-open-" + getName());
+  }
+  
+  // Read up to maxBytes of the file sequentially, so that its pages get 
+  // into the OS page cache
+  private static void prefetch(File file, long maxBytes) {
+    long startTime = System.currentTimeMillis();
+    long nBytes = 0;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+      int n;
+      while (nBytes < maxBytes && (n = channel.read(buffer)) > 0) {
+        nBytes += n;
+        buffer.clear();
+      }
+    } catch (IOException ex) {
+      System.err.println("WARNING: could not prefetch " + file + ": " + ex);
+      return;
+    }
+    System.err.println("INFO: prefetched " + (nBytes >> 20) + " MB of " + file + " in " +
+            (System.currentTimeMillis() - startTime) + " ms");
+  }
+  
+  // the encoding to use: the parameter if it is not AUTO, otherwise the 
+  // one from the config map, if there is one there, otherwise NONE
+  private VectorEncoding resolveEncoding(DB fromDb) {
+    if (getValueEncoding() != null && getValueEncoding() != VectorEncoding.AUTO) {
+      return getValueEncoding();
+    }
+    if (fromDb.exists("config")) {
+      Object name = fromDb.hashMap("config").open().get("valueEncoding");
+      if (name != null) {
+        try {
+          return VectorEncoding.valueOf(name.toString());
+        } catch (IllegalArgumentException ex) {
+          throw new GateRuntimeException("Unknown valueEncoding in the config map of the MapDB file: " + name);
+        }
+      }
+    }
+    return VectorEncoding.NONE;
+  }
+  
+  private static final int COPY_BATCH_SIZE = 1000;
+
+  // Copy the map entry by entry in this thread
+  private void copySerial(HTreeMap<Object, Object> from, HTreeMap<Object, Object> to, long size) {
+    long nKeys = 0;
+    int lastPercent = -1;
+    for (Object e : from.entrySet()) {
+      Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+      to.put(entry.getKey(), entry.getValue());
+      nKeys++;
+      if (nKeys % COPY_BATCH_SIZE == 0) {
+        lastPercent = copyProgress(nKeys, size, lastPercent);
+        if (isInterrupted()) {
+          throw new GateRuntimeException("MapdbLookup has been interrupted");
+        }
+      }
+    }
+    copyProgress(size, size, lastPercent);
+  }
+
+  // Report the progress of copying the map if the percentage changed, 
+  // return the percentage reported last. Only progress is reported, 
+  // loading is part of initialising or running the PR, so that is what
+  // finishes the process.
+  private int copyProgress(long nKeys, long size, int lastPercent) {
+    int percent = size == 0 ? 100 : (int) Math.min(100, 100 * nKeys / size);
+    if (percent != lastPercent) {
+      fireProgressChanged(percent);
+    }
+    return percent;
+  }
+
+  // Copy the map with this thread reading the keys and a pool of threads 
+  // getting the values for batches of keys and putting them into the copy:
+  // copying is mostly deserializing and serializing keys and values, and
+  // reading just the keys is cheap, since the values are stored separately.
+  private void copyParallel(final HTreeMap<Object, Object> from, final HTreeMap<Object, Object> to, 
+          long size, int nThreads) {
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+      private int nr = 0;
+      @Override
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "MapdbLookup-load-" + (nr++));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    // limit the batches waiting, so the keys read ahead do not use too much memory
+    final Semaphore batches = new Semaphore(4 * nThreads);
+    final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+    long nKeys = 0;
+    int lastPercent = -1;
+    try {
+      List<Object> batch = new ArrayList<Object>(COPY_BATCH_SIZE);
+      for (Object key : from.keySet()) {
+        batch.add(key);
+        nKeys++;
+        if (batch.size() == COPY_BATCH_SIZE) {
+          submitBatch(pool, batches, error, from, to, batch);
+          batch = new ArrayList<Object>(COPY_BATCH_SIZE);
+          // the keys read so far, the batches still being copied are 
+          // limited by the semaphore
+          lastPercent = copyProgress(nKeys, size, lastPercent);
+          if (error.get() != null || isInterrupted()) {
+            break;
+          }
+        }
+      }
+      if (!batch.isEmpty()) {
+        submitBatch(pool, batches, error, from, to, batch);
+      }
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      throw new GateRuntimeException("Interrupted while copying the MapDB map", ex);
+    } finally {
+      pool.shutdownNow();
+    }
+    if (error.get() != null) {
+      throw error.get();
+    }
+    if (isInterrupted()) {
+      throw new GateRuntimeException("MapdbLookup has been interrupted");
+    }
+    copyProgress(size, size, lastPercent);
+  }
+  
+  private static void submitBatch(ExecutorService pool, final Semaphore batches, 
+          final AtomicReference<RuntimeException> error, 
+          final HTreeMap<Object, Object> from, final HTreeMap<Object, Object> to, 
+          final List<Object> batch) throws InterruptedException {
+    batches.acquire();
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (error.get() == null) {
+            for (Object key : batch) {
+              Object val = from.get(key);
+              if (val != null) {
+                to.put(key, val);
+              }
+            }
+          }
+        } catch (RuntimeException ex) {
+          error.compareAndSet(null, ex);
+        } finally {
+          batches.release();
+        }
+      }
+    });
+  }
+  
+  // The serializer to use: the parameter if it is not AUTO, otherwise 
+  // the one from the config map, if there is one there, otherwise AUTO
+  private SerializerType resolveSerializer(DB fromDb, String configKey, SerializerType param) {
+    if (param != null && param != SerializerType.AUTO) {
+      return param;
+    }
+    if (fromDb.exists("config")) {
+      Object name = fromDb.hashMap("config").open().get(configKey);
+      if (name != null) {
+        try {
+          return SerializerType.valueOf(name.toString());
+        } catch (IllegalArgumentException ex) {
+          throw new GateRuntimeException("Unknown " + configKey + " in the config map of the MapDB file: " + name);
         }
-        sharedData.put("db", db);
-        sharedData.put("map", map);
-        benchmarkCheckpoint(startTime, "__LoadMapdb");
-        //System.err.println("GOT map: "+map.size());
       }
     }
+    return SerializerType.AUTO;
+  }
+  
+  // MapDB always uses the serializer the map was created with, so we can 
+  // only check that it is the one we expect
+  private void checkSerializer(DB fromDb, Serializer<?> actual, SerializerType type, String what) {
+    if (type == SerializerType.AUTO) {
+      return;
+    }
+    if (type == SerializerType.JSON) {
+      if (actual != Serializer.STRING && actual != fromDb.getDefaultSerializer()) {
+        throw new GateRuntimeException("MapDB map " + getMapName() + " has " + what + " serializer " + 
+                SerializerType.of(fromDb, actual) + ", JSON needs STRING or DEFAULT");
+      }
+    } else if (type.getSerializer(fromDb) != actual) {
+      throw new GateRuntimeException("MapDB map " + getMapName() + " has " + what + " serializer " + 
+              SerializerType.of(fromDb, actual) + ", not " + type + ", use COPY2MEMORY to convert");
+    }
+  }
+  
+  // the serializer for the in-memory copy of a map
+  @SuppressWarnings("unchecked")
+  private Serializer<Object> copySerializer(DB toDb, DB fromDb, Serializer<?> fromSerializer, SerializerType type) {
+    if (type == SerializerType.AUTO) {
+      type = SerializerType.of(fromDb, fromSerializer);
+    }
+    if (type == SerializerType.OTHER) {
+      return (Serializer<Object>) fromSerializer;
+    }
+    return (Serializer<Object>) type.getSerializer(toDb);
   }
 
   @Override
   protected void afterLastDocument(Controller ctrl, Throwable t) {
+    System.err.println("INFO: keys looked up in duplicate " + duplicateId + " of PR " + getName() + 
+            ": " + nKeysTotal + ", distinct per document: " + nDistinctKeysTotal + ", dedup ratio: " +
+            (nDistinctKeysTotal == 0 ? 1.0 : (double)nKeysTotal / nDistinctKeysTotal));
+    nKeysTotal = 0;
+    nDistinctKeysTotal = 0;
+    if (duplicateId == 0) {
+      System.err.println("INFO: lookup metrics of PR " + getName() + ": " + metrics.getSummary());
+    }
   }
 
   @Override
   protected void finishedNoDocument(Controller ctrl, Throwable t) {
   }
   
+  @Override
+  public Resource init() throws ResourceInstantiationException {
+    super.init();
+    initialized = true;
+    startBackgroundOpen();
+    return this;
+  }
+  
   @Override
   public void cleanup() {
-    if(duplicateId == 0 && db!=null && !db.isClosed()) { db.close(); }
+    // the store gets closed once the last PR using it has released it
+    if(store != null) { 
+      store.release();
+      store = null;
+    }
+    if(duplicateId == 0 && metrics != null) { metrics.unregister(); }
   }
   
   protected void benchmarkCheckpoint(long startTime, String name) {
@@ -423,10 +1074,17 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
   
 
   
+  /**
+   * How to open or load the MapDB file. EMBEDDING_MATRIX loads a map with 
+   * float[] or double[] values of equal length into a compact in-memory
+   * matrix of floats, lookups return a copy of the vector as a double[], or
+   * a float[] if the value serializer is FLOAT_ARRAY.
+   */
   public static enum LoadingMode {
     MEMORY_MAPPED,
     FILE_ONLY,
-    COPY2MEMORY
+    COPY2MEMORY,
+    EMBEDDING_MATRIX
   }
 
   public static enum MappingMode {
@@ -435,5 +1093,57 @@ public class MapdbLookup  extends AbstractDocumentProcessor implements Benchmark
     MAP_TO_FEATURES
   }
   
+  /**
+   * The MapDB serializers which can be used for keys and values. DEFAULT
+   * is the generic MapDB serializer which can store any object, JSON means
+   * strings with JSON, stored using the STRING or DEFAULT serializer. 
+   * OTHER stands for any other serializer recorded in the file and cannot be
+   * used as a parameter value.
+   */
+  public static enum SerializerType {
+    AUTO(null),
+    DEFAULT(null),
+    STRING(Serializer.STRING),
+    LONG(Serializer.LONG),
+    INTEGER(Serializer.INTEGER),
+    DOUBLE(Serializer.DOUBLE),
+    DOUBLE_ARRAY(Serializer.DOUBLE_ARRAY),
+    FLOAT_ARRAY(Serializer.FLOAT_ARRAY),
+    INT_ARRAY(Serializer.INT_ARRAY),
+    LONG_ARRAY(Serializer.LONG_ARRAY),
+    BYTE_ARRAY(Serializer.BYTE_ARRAY),
+    JAVA(Serializer.JAVA),
+    ELSA(Serializer.ELSA),
+    JSON(Serializer.STRING),
+    OTHER(null);
+    
+    private final Serializer<?> serializer;
+    
+    SerializerType(Serializer<?> serializer) {
+      this.serializer = serializer;
+    }
+    
+    Serializer<?> getSerializer(DB db) {
+      if (this == DEFAULT) {
+        return db.getDefaultSerializer();
+      } else if (serializer == null) {
+        throw new GateRuntimeException("Not a MapDB serializer: " + this);
+      }
+      return serializer;
+    }
+    
+    static SerializerType of(DB db, Serializer<?> serializer) {
+      if (serializer == db.getDefaultSerializer()) {
+        return DEFAULT;
+      }
+      for (SerializerType t : values()) {
+        if (t != JSON && t.serializer == serializer) {
+          return t;
+        }
+      }
+      return OTHER;
+    }
+  }
+  
   
 } // class JdbcLookup
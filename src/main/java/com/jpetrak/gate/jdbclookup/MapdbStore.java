@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.util.GateRuntimeException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+
+/**
+ * An opened or loaded MapDB map, shared read-only by all PRs in the JVM
+ * which use the same file, map and way of loading it.
+ *
+ * Users call acquire to get the store and release when they do not need
+ * it any more, the store gets closed when the last user releases it. The
+ * store is opened by the first user which calls open, other users calling
+ * open wait until it is done, so the file is opened or copied only once.
+ * A store which could not be opened is replaced by a new one for the next
+ * user which acquires it.
+ *
+ * @author Johann Petrak
+ */
+public class MapdbStore {
+
+  private static final Map<String, MapdbStore> stores = new HashMap<String, MapdbStore>();
+
+  /**
+   * Opens the store by setting its fields.
+   */
+  public interface Opener {
+    void open(MapdbStore store);
+  }
+
+  private final String key;
+  private final OpenTask task;
+  // all guarded by the lock on stores
+  private int nUsers = 0;
+  private boolean released = false;
+  private boolean started = false;
+  private boolean finished = false;
+
+  DB db;
+  HTreeMap<Object, Object> map;
+  EmbeddingMatrix matrix;
+  boolean matrixDoubles = true;
+  boolean jsonValues = false;
+  VectorEncoding encoding = VectorEncoding.NONE;
+
+  private MapdbStore(String key, Opener opener) {
+    this.key = key;
+    this.task = new OpenTask(opener);
+  }
+
+  /**
+   * Get the store for the key, creating it if necessary, and register as a
+   * user of that store.
+   *
+   * @param key identifies the file, map and everything else which makes a
+   * difference to what gets opened
+   * @param opener used to open the store, if this creates the store
+   * @return the store, which may not be opened yet
+   */
+  public static MapdbStore acquire(String key, Opener opener) {
+    synchronized (stores) {
+      MapdbStore store = stores.get(key);
+      if (store != null && store.isFailed()) {
+        stores.remove(key);
+        store = null;
+      }
+      if (store == null) {
+        store = new MapdbStore(key, opener);
+        stores.put(key, store);
+      }
+      store.nUsers++;
+      return store;
+    }
+  }
+
+  /**
+   * Unregister a user of the store, if this was the last user, the store
+   * is removed and gets closed, or does not get opened at all if nobody
+   * has started opening it yet.
+   */
+  public void release() {
+    boolean close;
+    synchronized (stores) {
+      nUsers--;
+      if (nUsers > 0) {
+        return;
+      }
+      if (stores.get(key) == this) {
+        stores.remove(key);
+      }
+      released = true;
+      if (!started) {
+        // the task will not open anything once released is set, cancel it
+        // so it does not even get run
+        task.cancel(false);
+        return;
+      }
+      // if opening is still in progress, the task closes the store when done
+      close = finished;
+    }
+    if (close) {
+      close();
+    }
+  }
+
+  /**
+   * Like release, but if this was the last user and the store is still
+   * being opened, wait until that is done, so that the store is closed 
+   * when this returns. Used when a store gets replaced, so that the old 
+   * and the new one are not opened or loaded at the same time.
+   */
+  public void releaseAndWait() {
+    release();
+    boolean wait;
+    synchronized (stores) {
+      wait = released && started && !finished;
+    }
+    if (!wait) {
+      return;
+    }
+    System.err.println("INFO: waiting until the MapDB store being opened can be closed: " + key);
+    try {
+      task.get();
+    } catch (InterruptedException ex) {
+      // the task still closes the store when done
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      // closed by the task
+    } catch (CancellationException ex) {
+      // never opened
+    }
+  }
+
+  /**
+   * Check if opening the store has failed or was cancelled. 
+   *
+   * @return true if the store cannot be used
+   */
+  public boolean isFailed() {
+    if (!task.isDone()) {
+      return false;
+    }
+    if (task.isCancelled()) {
+      return true;
+    }
+    try {
+      task.get();
+      return false;
+    } catch (Exception ex) {
+      return true;
+    }
+  }
+
+  /**
+   * Open the store in this thread, unless it is already open or being
+   * opened in another thread, in which case this waits until that is done.
+   *
+   * @return this store
+   */
+  public MapdbStore open() {
+    task.run();
+    try {
+      task.get();
+    } catch (InterruptedException ex) {
+      throw new GateRuntimeException("Interrupted while waiting for the MapDB store to get opened: " + key, ex);
+    } catch (CancellationException ex) {
+      throw new GateRuntimeException("MapDB store was released before it got opened: " + key, ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw new GateRuntimeException("Could not open MapDB store: " + key, ex.getCause());
+    }
+    return this;
+  }
+
+  /**
+   * Start opening the store in a background thread, after waiting a little.
+   * Does nothing if opening has already started.
+   *
+   * @param delayMillis how long to wait before starting
+   * @param threadName the name of the thread
+   */
+  public void openInBackground(final long delayMillis, String threadName) {
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException ex) {
+          return;
+        }
+        task.run();
+      }
+    }, threadName);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public int getUsers() {
+    synchronized (stores) {
+      return nUsers;
+    }
+  }
+
+  private synchronized void close() {
+    if (db != null && !db.isClosed()) {
+      db.close();
+    }
+    map = null;
+    matrix = null;
+  }
+
+  // Cancelling a FutureTask which is already running does not stop it, it
+  // only makes the result get lost, so release only cancels before the
+  // task has started and otherwise the task closes what it opened if the 
+  // store has been released in the meantime.
+  private class OpenTask extends FutureTask<MapdbStore> {
+
+    OpenTask(final Opener opener) {
+      super(new Callable<MapdbStore>() {
+        @Override
+        public MapdbStore call() {
+          synchronized (stores) {
+            if (released) {
+              throw new CancellationException("MapDB store released before opening: " + key);
+            }
+            started = true;
+          }
+          boolean opened = false;
+          boolean close;
+          try {
+            opener.open(MapdbStore.this);
+            opened = true;
+          } finally {
+            synchronized (stores) {
+              finished = true;
+              close = released || !opened;
+            }
+            if (close) {
+              close();
+            }
+          }
+          return MapdbStore.this;
+        }
+      });
+    }
+
+    @Override
+    protected void done() {
+      if (isFailed()) {
+        synchronized (stores) {
+          // do not hand out a store which could not be opened to later users
+          if (stores.get(key) == MapdbStore.this) {
+            stores.remove(key);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.util.GateRuntimeException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.collections.impl.list.mutable.primitive.BooleanArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.DoubleArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.FloatArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.UnifiedMap;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+
+/**
+ * A read-only in-memory copy of the rows returned by a query, indexed by
+ * the key in the first column.
+ *
+ * The values are stored column-wise: columns with integer, long, float,
+ * double or boolean values in primitive arrays, string columns with each
+ * distinct string stored only once, and all other columns as objects.
+ * The rows for a key are returned in the same representation as
+ * JdbcLookup.decodeRow, a list of column values per row.
+ * <p>
+ * The table only finds the rows for exactly the key as returned by the
+ * query. Since the database may compare keys ignoring case, accents or
+ * trailing spaces, getRows does not answer for a key if the table has 
+ * some other key with the same normalized key (see {@link KeyNormalizer}),
+ * these keys have to be looked up in the database.
+ * <p>
+ * Once loaded, the table can be used by any number of threads.
+ *
+ * @author Johann Petrak
+ */
+public class PreloadedTable {
+
+  private final List<String> columnNames;
+  private final Column[] columns;
+  // key to key number
+  private final ObjectIntHashMap<String> keys;
+  // for each normalized key which differs from some key, the number of keys
+  // with that normalized key apart from the normalized key itself, this is 
+  // empty if all the keys are already normalized
+  private final ObjectIntHashMap<String> variants;
+  // for each key number the first row, for each row the next row with the
+  // same key or -1
+  private final IntArrayList firstRow;
+  private final IntArrayList nextRow;
+  private final int nRows;
+  private final long loadMillis;
+
+  private PreloadedTable(List<String> columnNames, Column[] columns,
+          ObjectIntHashMap<String> keys, ObjectIntHashMap<String> variants,
+          IntArrayList firstRow, IntArrayList nextRow, int nRows, long loadMillis) {
+    this.columnNames = columnNames;
+    this.columns = columns;
+    this.keys = keys;
+    this.variants = variants;
+    this.firstRow = firstRow;
+    this.nextRow = nextRow;
+    this.nRows = nRows;
+    this.loadMillis = loadMillis;
+  }
+
+  /**
+   * Load all the rows returned by the query.
+   *
+   * @param connection the connection to use
+   * @param query the query, which must return the key as the first column
+   * @param fetchSize the number of rows to fetch from the database at once
+   * @return the table
+   */
+  public static PreloadedTable load(Connection connection, String query, int fetchSize) {
+    long startTime = System.currentTimeMillis();
+    Statement st = null;
+    ResultSet rs = null;
+    boolean autoCommit = true;
+    try {
+      // some drivers, e.g. PostgreSQL, only honour the fetch size outside
+      // of autocommit mode
+      autoCommit = connection.getAutoCommit();
+      if (autoCommit) {
+        connection.setAutoCommit(false);
+      }
+      st = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      st.setFetchSize(fetchSize);
+      rs = st.executeQuery(query);
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int nColumns = rsmd.getColumnCount() - 1;
+      List<String> names = new ArrayList<String>(nColumns);
+      Column[] columns = new Column[nColumns];
+      for (int i = 0; i < nColumns; i++) {
+        names.add(rsmd.getColumnName(i + 2));
+        columns[i] = Column.forClassName(rsmd.getColumnClassName(i + 2));
+      }
+      ObjectIntHashMap<String> keys = new ObjectIntHashMap<String>();
+      ObjectIntHashMap<String> variants = new ObjectIntHashMap<String>();
+      IntArrayList firstRow = new IntArrayList();
+      IntArrayList lastRow = new IntArrayList();
+      IntArrayList nextRow = new IntArrayList();
+      int row = 0;
+      while (rs.next()) {
+        String key = rs.getString(1);
+        if (key == null) {
+          continue;
+        }
+        for (int i = 0; i < nColumns; i++) {
+          columns[i].add(rs, i + 2);
+        }
+        nextRow.add(-1);
+        int k = keys.getIfAbsent(key, -1);
+        if (k < 0) {
+          keys.put(key, firstRow.size());
+          String normalized = KeyNormalizer.normalize(key);
+          if (!normalized.equals(key)) {
+            variants.addToValue(normalized, 1);
+          }
+          firstRow.add(row);
+          lastRow.add(row);
+        } else {
+          nextRow.set(lastRow.get(k), row);
+          lastRow.set(k, row);
+        }
+        row++;
+      }
+      if (autoCommit) {
+        connection.commit();
+      }
+      for (Column c : columns) {
+        c.trim();
+      }
+      firstRow.trimToSize();
+      nextRow.trimToSize();
+      keys.compact();
+      variants.compact();
+      return new PreloadedTable(names, columns, keys, variants, firstRow, nextRow, row,
+              System.currentTimeMillis() - startTime);
+    } catch (SQLException ex) {
+      throw new GateRuntimeException("Could not preload the rows using query " + query, ex);
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException ex) {
+          // ignore
+        }
+      }
+      if (st != null) {
+        try {
+          st.close();
+        } catch (SQLException ex) {
+          // ignore
+        }
+      }
+      if (autoCommit) {
+        try {
+          connection.setAutoCommit(true);
+        } catch (SQLException ex) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * The names of the value columns, i.e. all columns except the key.
+   *
+   * @return the column names
+   */
+  public List<String> getColumnNames() {
+    return columnNames;
+  }
+
+  /**
+   * Get the rows for a key.
+   *
+   * @param key the key
+   * @param allRows if false, at most the first row is returned
+   * @return the list of rows, each a list of column values, empty if the key
+   * is not in the table, or null if the table has other keys which the 
+   * database may consider equal to this key
+   */
+  public List<Object> getRows(String key, boolean allRows) {
+    int k = keys.getIfAbsent(key, -1);
+    String normalized = KeyNormalizer.normalize(key);
+    boolean haveNormalized = normalized.equals(key) ? k >= 0 : keys.containsKey(normalized);
+    int nSameKeys = (variants.isEmpty() ? 0 : variants.getIfAbsent(normalized, 0)) +
+            (haveNormalized ? 1 : 0);
+    if (nSameKeys > 1 || (nSameKeys == 1 && k < 0)) {
+      return null;
+    }
+    if (k < 0) {
+      return Collections.emptyList();
+    }
+    List<Object> rows = new ArrayList<Object>(1);
+    for (int row = firstRow.get(k); row >= 0; row = nextRow.get(row)) {
+      List<Object> values = new ArrayList<Object>(columns.length);
+      for (Column c : columns) {
+        values.add(c.get(row));
+      }
+      rows.add(values);
+      if (!allRows) {
+        break;
+      }
+    }
+    return rows;
+  }
+
+  public int getNumberOfKeys() {
+    return keys.size();
+  }
+
+  public int getNumberOfRows() {
+    return nRows;
+  }
+
+  public long getLoadMillis() {
+    return loadMillis;
+  }
+
+  /**
+   * An estimate of the memory used by the table.
+   *
+   * @return the estimated number of bytes
+   */
+  public long estimateMemory() {
+    // the key map stores the key reference and the int value for each
+    // slot, the key strings have a header and the chars
+    long bytes = keys.size() * 2L * (4 + 4);
+    for (String key : keys.keysView()) {
+      bytes += stringBytes(key);
+    }
+    bytes += variants.size() * 2L * (4 + 4);
+    for (String key : variants.keysView()) {
+      bytes += stringBytes(key);
+    }
+    bytes += 4L * firstRow.size() + 4L * nextRow.size();
+    for (Column c : columns) {
+      bytes += c.estimateMemory();
+    }
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return "PreloadedTable{keys=" + keys.size() + ", rows=" + nRows +
+            ", columns=" + columnNames +
+            ", estimatedMB=" + estimateMemory() / (1024 * 1024) +
+            ", loadMillis=" + loadMillis + "}";
+  }
+
+  private static long stringBytes(String s) {
+    return 40 + 2L * s.length();
+  }
+
+  /**
+   * The values of one column for all rows.
+   */
+  private static abstract class Column {
+    // for the primitive columns, which rows have a null value
+    protected final BitSet nulls = new BitSet();
+    protected int size = 0;
+
+    abstract void add(ResultSet rs, int column) throws SQLException;
+
+    abstract Object get(int row);
+
+    abstract long estimateMemory();
+
+    abstract void trim();
+
+    static Column forClassName(String className) {
+      if ("java.lang.Integer".equals(className)) {
+        return new IntColumn();
+      } else if ("java.lang.Long".equals(className)) {
+        return new LongColumn();
+      } else if ("java.lang.Double".equals(className)) {
+        return new DoubleColumn();
+      } else if ("java.lang.Float".equals(className)) {
+        return new FloatColumn();
+      } else if ("java.lang.Boolean".equals(className)) {
+        return new BooleanColumn();
+      } else if ("java.lang.String".equals(className)) {
+        return new StringColumn();
+      } else {
+        return new ObjectColumn();
+      }
+    }
+  }
+
+  private static class IntColumn extends Column {
+    private final IntArrayList values = new IntArrayList();
+    @Override
+    void add(ResultSet rs, int column) throws SQLException {
+      values.add(rs.getInt(column));
+      if (rs.wasNull()) {
+        nulls.set(size);
+      }
+      size++;
+    }
+    @Override
+    Object get(int row) {
+      return nulls.get(row) ? null : values.get(row);
+    }
+    @Override
+    long estimateMemory() {
+      return 4L * values.size() + nulls.size() / 8;
+    }
+    @Override
+    void trim() {
+      values.trimToSize();
+    }
+  }
+
+  private static class LongColumn extends Column {
+    private final LongArrayList values = new LongArrayList();
+    @Override
+    void add(ResultSet rs, int column) throws SQLException {
+      values.add(rs.getLong(column));
+      if (rs.wasNull()) {
+        nulls.set(size);
+      }
+      size++;
+    }
+    @Override
+    Object get(int row) {
+      return nulls.get(row) ? null : values.get(row);
+    }
+    @Override
+    long estimateMemory() {
+      return 8L * values.size() + nulls.size() / 8;
+    }
+    @Override
+    void trim() {
+      values.trimToSize();
+    }
+  }
+
+  private static class DoubleColumn extends Column {
+    private final DoubleArrayList values = new DoubleArrayList();
+    @Override
+    void add(ResultSet rs, int column) throws SQLException {
+      values.add(rs.getDouble(column));
+      if (rs.wasNull()) {
+        nulls.set(size);
+      }
+      size++;
+    }
+    @Override
+    Object get(int row) {
+      return nulls.get(row) ? null : values.get(row);
+    }
+    @Override
+    long estimateMemory() {
+      return 8L * values.size() + nulls.size() / 8;
+    }
+    @Override
+    void trim() {
+      values.trimToSize();
+    }
+  }
+
+  private static class FloatColumn extends Column {
+    private final FloatArrayList values = new FloatArrayList();
+    @Override
+    void add(ResultSet rs, int column) throws SQLException {
+      values.add(rs.getFloat(column));
+      if (rs.wasNull()) {
+        nulls.set(size);
+      }
+      size++;
+    }
+    @Override
+    Object get(int row) {
+      return nulls.get(row) ? null : values.get(row);
+    }
+    @Override
+    long estimateMemory() {
+      return 4L * values.size() + nulls.size() / 8;
+    }
+    @Override
+    void trim() {
+      values.trimToSize();
+    }
+  }
+
+  private static class BooleanColumn extends Column {
+    private final BooleanArrayList values = new BooleanArrayList();
+    @Override
+    void add(ResultSet rs, int column) throws SQLException {
+      values.add(rs.getBoolean(column));
+      if (rs.wasNull()) {
+        nulls.set(size);
+      }
+      size++;
+    }
+    @Override
+    Object get(int row) {
+      return nulls.get(row) ? null : values.get(row);
+    }
+    @Override
+    long estimateMemory() {
+      return values.size() / 8 + nulls.size() / 8;
+    }
+    @Override
+    void trim() {
+      // nothing to do, the values are stored as bits anyway
+    }
+  }
+
+  // each distinct string is only stored once, rows with the same value
+  // share the same String instance
+  private static class StringColumn extends Column {
+    private final ArrayList<String> values = new ArrayList<String>();
+    private UnifiedMap<String,String> distinct = new UnifiedMap<String,String>();
+    private long distinctBytes = 0;
+    @Override
+    void add(ResultSet rs, int column) throws SQLException {
+      String value = rs.getString(column);
+      if (value != null) {
+        String existing = distinct.get(value);
+        if (existing == null) {
+          distinct.put(value, value);
+          distinctBytes += stringBytes(value);
+        } else {
+          value = existing;
+        }
+      }
+      values.add(value);
+      size++;
+    }
+    @Override
+    Object get(int row) {
+      return values.get(row);
+    }
+    @Override
+    long estimateMemory() {
+      return 4L * values.size() + distinctBytes;
+    }
+    @Override
+    void trim() {
+      values.trimToSize();
+      // the map is only needed while loading
+      distinct = null;
+    }
+  }
+
+  private static class ObjectColumn extends Column {
+    private final ArrayList<Object> values = new ArrayList<Object>();
+    @Override
+    void add(ResultSet rs, int column) throws SQLException {
+      values.add(rs.getObject(column));
+      size++;
+    }
+    @Override
+    Object get(int row) {
+      return values.get(row);
+    }
+    @Override
+    long estimateMemory() {
+      // we do not know the size of the objects, just assume something
+      return 4L * values.size() + 32L * values.size();
+    }
+    @Override
+    void trim() {
+      values.trimToSize();
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.util.GateRuntimeException;
+
+/**
+ * How vectors are encoded as byte arrays in a MapDB map. FLOAT16 stores
+ * each value as an IEEE 754 half precision float in two bytes, INT8 stores
+ * a float scale in four bytes followed by one signed byte per value, where
+ * the value is the byte times the scale. Both are big-endian, so they can
+ * be written by other tools too.
+ *
+ * NONE means the values are not encoded, e.g. stored with the DOUBLE_ARRAY or
+ * FLOAT_ARRAY serializers. AUTO means to use the encoding recorded as
+ * "valueEncoding" in the map "config" of the MapDB file, or NONE if there
+ * is none.
+ *
+ * @author Johann Petrak
+ */
+public enum VectorEncoding {
+  AUTO,
+  NONE,
+  FLOAT16,
+  INT8;
+
+  /**
+   * Encode a vector.
+   *
+   * @param vector the vector
+   * @return the encoded vector
+   */
+  public byte[] encode(float[] vector) {
+    int n = vector.length;
+    if (this == FLOAT16) {
+      byte[] bytes = new byte[2 * n];
+      for (int i = 0; i < n; i++) {
+        int h = floatToHalf(vector[i]);
+        bytes[2 * i] = (byte) (h >>> 8);
+        bytes[2 * i + 1] = (byte) h;
+      }
+      return bytes;
+    } else if (this == INT8) {
+      float maxAbs = 0.0f;
+      for (float v : vector) {
+        maxAbs = Math.max(maxAbs, Math.abs(v));
+      }
+      float scale = maxAbs / 127.0f;
+      byte[] bytes = new byte[4 + n];
+      int s = Float.floatToIntBits(scale);
+      bytes[0] = (byte) (s >>> 24);
+      bytes[1] = (byte) (s >>> 16);
+      bytes[2] = (byte) (s >>> 8);
+      bytes[3] = (byte) s;
+      for (int i = 0; i < n; i++) {
+        bytes[4 + i] = scale == 0.0f ? 0 : (byte) Math.max(-127, Math.min(127, Math.round(vector[i] / scale)));
+      }
+      return bytes;
+    }
+    throw new GateRuntimeException("Cannot encode vectors with encoding " + this);
+  }
+
+  /**
+   * Encode a vector, the values are first converted to float.
+   *
+   * @param vector the vector
+   * @return the encoded vector
+   */
+  public byte[] encode(double[] vector) {
+    float[] floats = new float[vector.length];
+    for (int i = 0; i < vector.length; i++) {
+      floats[i] = (float) vector[i];
+    }
+    return encode(floats);
+  }
+
+  /**
+   * Decode a vector.
+   *
+   * @param bytes the encoded vector
+   * @return the vector
+   */
+  public float[] decodeFloats(byte[] bytes) {
+    if (this == FLOAT16) {
+      float[] vector = new float[bytes.length / 2];
+      for (int i = 0; i < vector.length; i++) {
+        vector[i] = halfToFloat(((bytes[2 * i] & 0xff) << 8) | (bytes[2 * i + 1] & 0xff));
+      }
+      return vector;
+    } else if (this == INT8) {
+      float scale = scaleOf(bytes);
+      float[] vector = new float[bytes.length - 4];
+      for (int i = 0; i < vector.length; i++) {
+        vector[i] = bytes[4 + i] * scale;
+      }
+      return vector;
+    }
+    throw new GateRuntimeException("Cannot decode vectors with encoding " + this);
+  }
+
+  /**
+   * Decode a vector into doubles, without an intermediate float array.
+   *
+   * @param bytes the encoded vector
+   * @return the vector
+   */
+  public double[] decodeDoubles(byte[] bytes) {
+    if (this == FLOAT16) {
+      double[] vector = new double[bytes.length / 2];
+      for (int i = 0; i < vector.length; i++) {
+        vector[i] = halfToFloat(((bytes[2 * i] & 0xff) << 8) | (bytes[2 * i + 1] & 0xff));
+      }
+      return vector;
+    } else if (this == INT8) {
+      float scale = scaleOf(bytes);
+      double[] vector = new double[bytes.length - 4];
+      for (int i = 0; i < vector.length; i++) {
+        vector[i] = bytes[4 + i] * scale;
+      }
+      return vector;
+    }
+    throw new GateRuntimeException("Cannot decode vectors with encoding " + this);
+  }
+
+  private static float scaleOf(byte[] bytes) {
+    return Float.intBitsToFloat(((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) |
+            ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff));
+  }
+
+  /**
+   * Convert a float to the bits of the nearest half precision float,
+   * rounding ties to even. Values too large become infinity.
+   *
+   * @param f the float
+   * @return the half precision bits in the lower 16 bits
+   */
+  static int floatToHalf(float f) {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int exp = (bits >>> 23) & 0xff;
+    int mant = bits & 0x7fffff;
+    if (exp == 0xff) {
+      // infinity or NaN
+      return sign | 0x7c00 | (mant != 0 ? 0x200 : 0);
+    }
+    int e = exp - 127 + 15;
+    if (e >= 31) {
+      return sign | 0x7c00;
+    }
+    int shift;
+    int h;
+    if (e <= 0) {
+      // subnormal half, the value is m * 2^-24
+      if (e < -10) {
+        return sign;
+      }
+      mant |= 0x800000;
+      shift = 14 - e;
+      h = sign | (mant >>> shift);
+    } else {
+      shift = 13;
+      h = sign | (e << 10) | (mant >>> shift);
+    }
+    int rest = mant & ((1 << shift) - 1);
+    int half = 1 << (shift - 1);
+    // a carry into the exponent gives the right result, including infinity
+    if (rest > half || (rest == half && (h & 1) != 0)) {
+      h++;
+    }
+    return h;
+  }
+
+  /**
+   * Convert the bits of a half precision float to a float.
+   *
+   * @param h the half precision bits in the lower 16 bits
+   * @return the float
+   */
+  static float halfToFloat(int h) {
+    int sign = (h & 0x8000) << 16;
+    int exp = (h >>> 10) & 0x1f;
+    int mant = h & 0x3ff;
+    if (exp == 0) {
+      float f = mant * 0x1p-24f;
+      return sign == 0 ? f : -f;
+    } else if (exp == 31) {
+      return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+    }
+    return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.test.GATEPluginTests;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the sweep in ContainedAnnotations with one 
+ * getContainedAnnotations query per containing annotation on random 
+ * annotations.
+ *
+ * @author Johann Petrak
+ */
+public class ContainedAnnotationsTest extends GATEPluginTests {
+
+  private static final Comparator<Annotation> BY_OFFSETS = new Comparator<Annotation>() {
+    @Override
+    public int compare(Annotation a1, Annotation a2) {
+      int c = a1.getStartNode().getOffset().compareTo(a2.getStartNode().getOffset());
+      if (c == 0) {
+        c = a1.getEndNode().getOffset().compareTo(a2.getEndNode().getOffset());
+      }
+      if (c == 0) {
+        c = a1.getId().compareTo(a2.getId());
+      }
+      return c;
+    }
+  };
+
+  private static List<Annotation> sorted(AnnotationSet anns) {
+    List<Annotation> list = new ArrayList<Annotation>(anns);
+    Collections.sort(list, BY_OFFSETS);
+    return list;
+  }
+
+  private static void addRandom(Random rnd, AnnotationSet set, String type, int n, int docLength, int maxLength) 
+          throws Exception {
+    for (int i = 0; i < n; i++) {
+      long start = rnd.nextInt(docLength);
+      long end = Math.min(docLength, start + rnd.nextInt(maxLength + 1));
+      set.add(start, end, type, Factory.newFeatureMap());
+    }
+  }
+
+  @Test
+  public void testSameAsGetContainedAnnotations() throws Exception {
+    Random rnd = new Random(42);
+    int docLength = 300;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < docLength; i++) {
+      sb.append('x');
+    }
+    for (int round = 0; round < 200; round++) {
+      Document doc = Factory.newDocument(sb.toString());
+      try {
+        AnnotationSet set = doc.getAnnotations();
+        addRandom(rnd, set, "Token", rnd.nextInt(60), docLength, 10);
+        addRandom(rnd, set, "Sentence", rnd.nextInt(15), docLength, 80);
+        AnnotationSet inputs = set.get("Token");
+        AnnotationSet containers = set.get("Sentence");
+        List<Annotation> once = new ArrayList<Annotation>();
+        Set<Annotation> any = new LinkedHashSet<Annotation>();
+        for (Annotation container : sorted(containers)) {
+          List<Annotation> contained = sorted(gate.Utils.getContainedAnnotations(inputs, container));
+          once.addAll(contained);
+          any.addAll(contained);
+        }
+        List<Annotation> anySorted = new ArrayList<Annotation>(any);
+        Collections.sort(anySorted, BY_OFFSETS);
+        assertEquals("round " + round, once, 
+                ContainedAnnotations.getContained(inputs, containers, true));
+        assertEquals("round " + round, anySorted, 
+                ContainedAnnotations.getContained(inputs, containers, false));
+      } finally {
+        Factory.deleteResource(doc);
+      }
+    }
+  }
+}
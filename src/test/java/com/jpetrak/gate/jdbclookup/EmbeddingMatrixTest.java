@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.util.GateRuntimeException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the EmbeddingMatrix.
+ *
+ * @author Johann Petrak
+ */
+public class EmbeddingMatrixTest {
+
+  @Test
+  public void testFloatsRoundTrip() {
+    EmbeddingMatrix matrix = new EmbeddingMatrix(3, 2);
+    assertEquals(0, matrix.add("dog", new float[] { 1.5f, -2.0f }));
+    assertEquals(1, matrix.add("cat", new float[] { 0.1f, 0.2f }));
+    assertEquals(2, matrix.size());
+    assertEquals(2, matrix.getDimensions());
+    assertArrayEquals(new float[] { 1.5f, -2.0f }, matrix.getFloats(matrix.getRow("dog")), 0.0f);
+    assertArrayEquals(new float[] { 0.1f, 0.2f }, matrix.getFloats(matrix.getRow("cat")), 0.0f);
+    assertArrayEquals(new double[] { 0.1f, 0.2f }, matrix.getDoubles(matrix.getRow("cat")), 0.0);
+    // the vectors returned are copies
+    matrix.getFloats(0)[0] = 99.0f;
+    assertEquals(1.5f, matrix.getFloats(0)[0], 0.0f);
+  }
+
+  @Test
+  public void testDoublesRoundTrip() {
+    EmbeddingMatrix matrix = new EmbeddingMatrix(2, 3);
+    matrix.add("dog", new double[] { 0.1, 0.25, -1e-3 });
+    // stored as floats
+    assertArrayEquals(new double[] { 0.1f, 0.25f, -1e-3f }, matrix.getDoubles(matrix.getRow("dog")), 0.0);
+    assertArrayEquals(new float[] { 0.1f, 0.25f, -1e-3f }, matrix.getFloats(matrix.getRow("dog")), 0.0f);
+  }
+
+  @Test
+  public void testFromMap() {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("dog", new float[] { 1.0f, 2.0f });
+    map.put("cat", new double[] { 3.0, 4.0 });
+    EmbeddingMatrix matrix = EmbeddingMatrix.fromMap(map, VectorEncoding.NONE);
+    assertEquals(2, matrix.size());
+    assertArrayEquals(new float[] { 1.0f, 2.0f }, matrix.getFloats(matrix.getRow("dog")), 0.0f);
+    assertArrayEquals(new float[] { 3.0f, 4.0f }, matrix.getFloats(matrix.getRow("cat")), 0.0f);
+    assertEquals(0, EmbeddingMatrix.fromMap(new LinkedHashMap<String, Object>(), VectorEncoding.NONE).size());
+  }
+
+  @Test
+  public void testFromEncodedMap() {
+    float[] dog = { 0.5f, -0.25f, 0.125f };
+    float[] cat = { 0.3f, 0.6f, -0.9f };
+    for (VectorEncoding encoding : new VectorEncoding[] { VectorEncoding.FLOAT16, VectorEncoding.INT8 }) {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      map.put("dog", encoding.encode(dog));
+      map.put("cat", encoding.encode(cat));
+      EmbeddingMatrix matrix = EmbeddingMatrix.fromMap(map, encoding);
+      assertEquals(3, matrix.getDimensions());
+      assertArrayEquals(encoding.decodeFloats(encoding.encode(dog)), matrix.getFloats(matrix.getRow("dog")), 0.0f);
+      assertArrayEquals(encoding.decodeFloats(encoding.encode(cat)), matrix.getFloats(matrix.getRow("cat")), 0.0f);
+    }
+  }
+
+  @Test
+  public void testEncodedMapWithoutEncoding() {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("dog", VectorEncoding.FLOAT16.encode(new float[] { 1.0f }));
+    try {
+      EmbeddingMatrix.fromMap(map, VectorEncoding.NONE);
+      fail("byte[] values without an encoding should not be accepted");
+    } catch (GateRuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("dog"));
+    }
+  }
+
+  @Test
+  public void testDuplicateWord() {
+    EmbeddingMatrix matrix = new EmbeddingMatrix(2, 2);
+    assertEquals(0, matrix.add("dog", new float[] { 1.0f, 2.0f }));
+    // replaces the vector in the same row, so does not use up capacity
+    assertEquals(0, matrix.add("dog", new double[] { 3.0, 4.0 }));
+    assertEquals(1, matrix.size());
+    assertArrayEquals(new float[] { 3.0f, 4.0f }, matrix.getFloats(matrix.getRow("dog")), 0.0f);
+    assertEquals(1, matrix.add("cat", new float[] { 5.0f, 6.0f }));
+    assertEquals(0, matrix.add("dog", new float[] { 7.0f, 8.0f }));
+    assertArrayEquals(new float[] { 7.0f, 8.0f }, matrix.getFloats(0), 0.0f);
+    assertArrayEquals(new float[] { 5.0f, 6.0f }, matrix.getFloats(1), 0.0f);
+  }
+
+  @Test
+  public void testMissingWord() {
+    EmbeddingMatrix matrix = new EmbeddingMatrix(2, 1);
+    matrix.add("dog", new float[] { 1.0f });
+    assertEquals(-1, matrix.getRow("cat"));
+    assertEquals(-1, matrix.getRow("Dog"));
+    assertEquals(-1, matrix.getRow(""));
+    assertEquals(-1, new EmbeddingMatrix(0, 0).getRow("dog"));
+  }
+
+  @Test
+  public void testDimensionMismatch() {
+    EmbeddingMatrix matrix = new EmbeddingMatrix(2, 2);
+    matrix.add("dog", new float[] { 1.0f, 2.0f });
+    try {
+      matrix.add("cat", new float[] { 1.0f, 2.0f, 3.0f });
+      fail("a vector with 3 dimensions should not be accepted");
+    } catch (GateRuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("cat"));
+    }
+    try {
+      matrix.add("cat", new double[] { 1.0 });
+      fail("a vector with 1 dimension should not be accepted");
+    } catch (GateRuntimeException ex) {
+      assertTrue(ex.getMessage(), ex.getMessage().contains("cat"));
+    }
+    assertEquals(1, matrix.size());
+    assertEquals(-1, matrix.getRow("cat"));
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("dog", new float[] { 1.0f, 2.0f });
+    map.put("cat", new float[] { 1.0f });
+    try {
+      EmbeddingMatrix.fromMap(map, VectorEncoding.NONE);
+      fail("vectors of different lengths should not be accepted");
+    } catch (GateRuntimeException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFull() {
+    EmbeddingMatrix matrix = new EmbeddingMatrix(1, 1);
+    matrix.add("dog", new float[] { 1.0f });
+    try {
+      matrix.add("cat", new float[] { 2.0f });
+      fail("the matrix should be full");
+    } catch (GateRuntimeException ex) {
+      // expected
+    }
+    assertEquals(-1, matrix.getRow("cat"));
+    assertArrayEquals(new float[] { 1.0f }, matrix.getFloats(matrix.getRow("dog")), 0.0f);
+  }
+
+  @Test
+  public void testManyWords() {
+    int n = 10000;
+    EmbeddingMatrix matrix = new EmbeddingMatrix(n, 2);
+    for (int i = 0; i < n; i++) {
+      matrix.add("w" + i, new float[] { i, -i });
+    }
+    assertEquals(n, matrix.size());
+    for (int i = 0; i < n; i++) {
+      assertArrayEquals(new float[] { i, -i }, matrix.getFloats(matrix.getRow("w" + i)), 0.0f);
+    }
+    assertEquals(-1, matrix.getRow("w" + n));
+  }
+}
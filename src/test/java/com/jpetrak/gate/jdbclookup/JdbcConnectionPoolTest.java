@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the shared JDBC connection pool.
+ *
+ * @author Johann Petrak
+ */
+public class JdbcConnectionPoolTest {
+
+  private static final String URL = "jdbc:h2:mem:pooltest";
+
+  @BeforeClass
+  public static void loadDriver() throws Exception {
+    Class.forName("org.h2.Driver");
+  }
+
+  @Test
+  public void testPoolPerPassword() {
+    JdbcConnectionPool p1 = JdbcConnectionPool.acquire(URL, "sa", "one");
+    JdbcConnectionPool p2 = JdbcConnectionPool.acquire(URL, "sa", "two");
+    JdbcConnectionPool p3 = JdbcConnectionPool.acquire(URL, "sa", "one");
+    try {
+      assertNotSame(p1, p2);
+      assertSame(p1, p3);
+      assertEquals(2, p1.getUsers());
+      assertFalse(p1.toString().contains("one"));
+    } finally {
+      p1.release();
+      p2.release();
+      p3.release();
+    }
+  }
+
+  @Test
+  public void testMaxSizeOnlyRaised() {
+    // a pool created by a PR has no limit, a later JdbcLR cannot add one
+    JdbcConnectionPool pool = JdbcConnectionPool.acquire(URL, "", "");
+    try {
+      assertEquals(0, pool.getMaxSize());
+      JdbcConnectionPool same = JdbcConnectionPool.acquire(URL, "", "", JdbcConnectionPool.DEFAULT_MAX_SIZE);
+      assertSame(pool, same);
+      assertEquals(0, pool.getMaxSize());
+      same.release();
+    } finally {
+      pool.release();
+    }
+    pool = JdbcConnectionPool.acquire(URL, "", "", 4);
+    try {
+      assertEquals(4, pool.getMaxSize());
+      JdbcConnectionPool.acquire(URL, "", "", 2).release();
+      assertEquals(4, pool.getMaxSize());
+      JdbcConnectionPool.acquire(URL, "", "", 8).release();
+      assertEquals(8, pool.getMaxSize());
+      JdbcConnectionPool.acquire(URL, "", "").release();
+      assertEquals(0, pool.getMaxSize());
+    } finally {
+      pool.release();
+    }
+  }
+
+  @Test
+  public void testBorrowWaitsAtMaxSize() throws Exception {
+    final JdbcConnectionPool pool = JdbcConnectionPool.acquire(URL, "", "", 1);
+    try {
+      JdbcConnectionPool.PooledConnection first = pool.borrow();
+      final AtomicReference<JdbcConnectionPool.PooledConnection> second = 
+              new AtomicReference<JdbcConnectionPool.PooledConnection>();
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          second.set(pool.borrow());
+        }
+      });
+      t.start();
+      t.join(500);
+      assertTrue(t.isAlive());
+      assertNull(second.get());
+      pool.returnConnection(first);
+      t.join(5000);
+      assertSame(first, second.get());
+      assertEquals(1, pool.getOpen());
+      assertEquals(1, pool.getCreated());
+      assertEquals(1, pool.getWaits());
+      pool.returnConnection(second.get());
+      assertEquals(0, pool.getActive());
+    } finally {
+      pool.release();
+    }
+  }
+
+  @Test
+  public void testFailedConnectFreesSlot() throws Exception {
+    JdbcConnectionPool pool = JdbcConnectionPool.acquire("jdbc:nosuchdriver:x", "", "", 1);
+    try {
+      for (int i = 0; i < 2; i++) {
+        try {
+          pool.borrow();
+          fail("expected an exception");
+        } catch (gate.util.GateRuntimeException ex) {
+          // expected
+        }
+      }
+      assertEquals(0, pool.getOpen());
+      assertEquals(0, pool.getActive());
+    } finally {
+      pool.release();
+    }
+  }
+}
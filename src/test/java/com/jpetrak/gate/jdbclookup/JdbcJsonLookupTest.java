@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.Annotation;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.LanguageAnalyser;
+import gate.creole.SerialAnalyserController;
+import gate.test.GATEPluginTests;
+import gate.util.GateRuntimeException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the JdbcJsonLookup PR, using an in-memory H2 database.
+ *
+ * @author Johann Petrak
+ */
+public class JdbcJsonLookupTest extends GATEPluginTests {
+
+  private static final String URL = "jdbc:h2:mem:jdbcjsonlookuptest;DB_CLOSE_DELAY=-1";
+
+  private static final String JSON = 
+          "{\"name\":\"dog\",\"info\":{\"pos\":\"NN\",\"freq\":10,\"tags\":[\"a\",\"b\"]},\"other\":[1,2,3]}";
+
+  private static Connection keepOpen;
+
+  @BeforeClass
+  public static void createTables() throws Exception {
+    Class.forName("org.h2.Driver");
+    keepOpen = DriverManager.getConnection(URL, "", "");
+    Statement st = keepOpen.createStatement();
+    st.execute("CREATE TABLE jtext (word VARCHAR(100), js VARCHAR(1000))");
+    st.execute("CREATE TABLE jbin (word VARCHAR(100), js VARBINARY(1000))");
+    st.close();
+    PreparedStatement pst = keepOpen.prepareStatement("INSERT INTO jtext VALUES ('dog', ?)");
+    pst.setString(1, JSON);
+    pst.execute();
+    pst.close();
+    pst = keepOpen.prepareStatement("INSERT INTO jbin VALUES ('dog', ?)");
+    pst.setBytes(1, ("\n  " + JSON).getBytes("UTF-8"));
+    pst.execute();
+    pst.close();
+  }
+
+  @AfterClass
+  public static void dropTables() throws Exception {
+    Statement st = keepOpen.createStatement();
+    st.execute("DROP TABLE jtext");
+    st.execute("DROP TABLE jbin");
+    st.close();
+    keepOpen.close();
+  }
+
+  // run the PR over a document with the tokens "dog cat dog" and return 
+  // the features of the lookup annotations
+  private static List<FeatureMap> run(String table, List<String> fields) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("jdbcUrl", URL);
+    parms.put("inputAnnotationType", "Token");
+    parms.put("listAnnotationType", "");
+    parms.put("sqlQuery", "SELECT js FROM " + table + " WHERE word = ?");
+    if (fields != null) {
+      parms.put("jsonFields", fields);
+    }
+    LanguageAnalyser pr = (LanguageAnalyser) Factory.createResource(JdbcJsonLookup.class.getName(), parms);
+    SerialAnalyserController controller = (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+    Corpus corpus = Factory.newCorpus("test");
+    Document doc = Factory.newDocument("dog cat dog");
+    FeatureMap none = Factory.newFeatureMap();
+    doc.getAnnotations().add(0L, 3L, "Token", none);
+    doc.getAnnotations().add(4L, 7L, "Token", none);
+    doc.getAnnotations().add(8L, 11L, "Token", none);
+    corpus.add(doc);
+    try {
+      controller.add(pr);
+      controller.setCorpus(corpus);
+      controller.execute();
+      List<FeatureMap> ret = new ArrayList<FeatureMap>();
+      for (Annotation ann : gate.Utils.inDocumentOrder(doc.getAnnotations().get("LookupData"))) {
+        ret.add(ann.getFeatures());
+      }
+      return ret;
+    } finally {
+      controller.setCorpus(null);
+      controller.remove(pr);
+      Factory.deleteResource(controller);
+      Factory.deleteResource(pr);
+      Factory.deleteResource(corpus);
+      Factory.deleteResource(doc);
+    }
+  }
+
+  @Test
+  public void testAllFields() throws Exception {
+    List<FeatureMap> fms = run("jtext", null);
+    assertEquals(2, fms.size());
+    assertEquals("dog", fms.get(0).get("name"));
+    assertEquals(Arrays.asList(1, 2, 3), fms.get(0).get("other"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testNestedValuesNotShared() throws Exception {
+    List<FeatureMap> fms = run("jtext", null);
+    assertEquals(2, fms.size());
+    // both annotations come from the same decoded row
+    ((List<Object>) fms.get(0).get("other")).add(4);
+    ((Map<String, Object>) fms.get(0).get("info")).put("pos", "VB");
+    assertEquals(Arrays.asList(1, 2, 3), fms.get(1).get("other"));
+    assertEquals("NN", ((Map<?, ?>) fms.get(1).get("info")).get("pos"));
+  }
+
+  @Test
+  public void testProjection() throws Exception {
+    List<FeatureMap> fms = run("jtext", Arrays.asList("name", "/info/pos", "/info/tags"));
+    assertEquals(2, fms.size());
+    FeatureMap fm = fms.get(0);
+    assertEquals(3, fm.size());
+    assertEquals("dog", fm.get("name"));
+    assertEquals("NN", fm.get("pos"));
+    assertEquals(Arrays.asList("a", "b"), fm.get("tags"));
+  }
+
+  @Test(expected = GateRuntimeException.class)
+  public void testDuplicateFeatureRejected() throws Exception {
+    run("jtext", Arrays.asList("/info/name", "name"));
+  }
+
+  @Test(expected = GateRuntimeException.class)
+  public void testOverlappingFieldsRejected() throws Exception {
+    run("jtext", Arrays.asList("/info", "/info/pos"));
+  }
+
+  @Test(expected = GateRuntimeException.class)
+  public void testArrayIndexRejected() throws Exception {
+    run("jtext", Arrays.asList("/other/1"));
+  }
+
+  @Test
+  public void testTextJsonInBinaryColumn() throws Exception {
+    List<FeatureMap> fms = run("jbin", Arrays.asList("name", "/info/freq"));
+    assertEquals(2, fms.size());
+    assertEquals("dog", fms.get(0).get("name"));
+    assertEquals(10, fms.get(0).get("freq"));
+  }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.Annotation;
+import gate.Corpus;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.LanguageAnalyser;
+import gate.ProcessingResource;
+import gate.creole.SerialAnalyserController;
+import gate.test.GATEPluginTests;
+import gate.util.OffsetComparator;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the JdbcLookup PR, using an in-memory H2 database.
+ *
+ * @author Johann Petrak
+ */
+public class JdbcLookupTest extends GATEPluginTests {
+
+  private static final String URL = "jdbc:h2:mem:jdbclookuptest;DB_CLOSE_DELAY=-1";
+
+  private static Connection keepOpen;
+
+  @BeforeClass
+  public static void createTables() throws Exception {
+    Class.forName("org.h2.Driver");
+    keepOpen = DriverManager.getConnection(URL, "", "");
+    Statement st = keepOpen.createStatement();
+    st.execute("CREATE TABLE words (word VARCHAR(100), pos VARCHAR(10), freq INT)");
+    st.execute("INSERT INTO words VALUES ('dog', 'NN', 10), ('cat', 'NN', 5), ('runs', 'VB', 7), ('runs', 'NN', 1)");
+    // keys which compare equal in different spellings
+    st.execute("CREATE TABLE iwords (word VARCHAR_IGNORECASE(100), pos VARCHAR(10), freq INT)");
+    st.execute("INSERT INTO iwords VALUES ('Dog', 'NN', 10), ('DOG', 'NP', 2), ('cat', 'NN', 5), ('Runs', 'VB', 7)");
+    st.execute("CREATE TABLE bwords (word VARCHAR(100), pos VARCHAR(10), freq VARBINARY(10))");
+    st.execute("INSERT INTO bwords VALUES ('dog', 'NN', X'0102'), ('cat', 'NN', X'0304')");
+    st.close();
+  }
+
+  @AfterClass
+  public static void dropTables() throws Exception {
+    Statement st = keepOpen.createStatement();
+    st.execute("DROP TABLE words");
+    st.execute("DROP TABLE iwords");
+    st.execute("DROP TABLE bwords");
+    st.close();
+    keepOpen.close();
+  }
+
+  private static final String[] TOKENS = {
+    "dog", "cat", "mouse", "runs", "Dog", "DOG", "dog", "CAT", "Runs", "cat"
+  };
+
+  private static Document newDocument() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    List<long[]> spans = new ArrayList<long[]>();
+    for (String token : TOKENS) {
+      spans.add(new long[] { sb.length(), sb.length() + token.length() });
+      sb.append(token).append(' ');
+    }
+    Document doc = Factory.newDocument(sb.toString());
+    for (long[] span : spans) {
+      doc.getAnnotations().add(span[0], span[1], "Token", Factory.newFeatureMap());
+    }
+    return doc;
+  }
+
+  private static FeatureMap mappings() {
+    FeatureMap mappings = Factory.newFeatureMap();
+    mappings.put("POS", "pos");
+    mappings.put("FREQ", "freq");
+    return mappings;
+  }
+
+  static LanguageAnalyser newLookup(String table, FeatureMap extraParms) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("jdbcUrl", URL);
+    parms.put("inputAnnotationType", "Token");
+    parms.put("processingMode", JdbcLookup.ProcessingMode.AddAnnotations);
+    parms.put("nameMappings", mappings());
+    parms.put("sqlQuery", "SELECT pos, freq FROM " + table + " WHERE word = ?");
+    parms.put("batchSqlQuery", "SELECT word, pos, freq FROM " + table + " WHERE word IN (!!KEYS!!)");
+    if (extraParms != null) {
+      parms.putAll(extraParms);
+    }
+    return (LanguageAnalyser) Factory.createResource(JdbcLookup.class.getName(), parms);
+  }
+
+  // Run the PRs over a new document and return the lookup annotations
+  // as strings, sorted
+  static List<String> run(ProcessingResource... prs) throws Exception {
+    Document doc = newDocument();
+    try {
+      runOn(doc, prs);
+      return describe(doc);
+    } finally {
+      Factory.deleteResource(doc);
+    }
+  }
+
+  // Run the PRs in a controller over a corpus with just the document
+  static void runOn(Document doc, ProcessingResource... prs) throws Exception {
+    SerialAnalyserController controller = (SerialAnalyserController)
+            Factory.createResource(SerialAnalyserController.class.getName());
+    Corpus corpus = Factory.newCorpus("test");
+    corpus.add(doc);
+    try {
+      for (ProcessingResource pr : prs) {
+        controller.add(pr);
+      }
+      controller.setCorpus(corpus);
+      controller.execute();
+    } finally {
+      controller.setCorpus(null);
+      for (ProcessingResource pr : prs) {
+        controller.remove(pr);
+      }
+      Factory.deleteResource(controller);
+      corpus.clear();
+      Factory.deleteResource(corpus);
+    }
+  }
+
+  static List<String> describe(Document doc) {
+    List<Annotation> anns = new ArrayList<Annotation>(doc.getAnnotations().get("LookupData"));
+    Collections.sort(anns, new OffsetComparator());
+    List<String> ret = new ArrayList<String>();
+    for (Annotation ann : anns) {
+      ret.add(gate.Utils.stringFor(doc, ann) + "@" + ann.getStartNode().getOffset()
+              + ":" + ann.getFeatures().get("pos") + "/" + ann.getFeatures().get("freq"));
+    }
+    Collections.sort(ret);
+    return ret;
+  }
+
+  private static List<String> runWithBatchMode(String table, JdbcLookupBase.BatchMode mode) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("batchMode", mode);
+    parms.put("batchSize", 3);
+    if (mode == JdbcLookupBase.BatchMode.H2_TABLE) {
+      parms.put("batchSqlQuery", "SELECT t.word, t.pos, t.freq FROM TABLE(X VARCHAR = !!KEYS!!) k" +
+              " JOIN " + table + " t ON t.word = k.X");
+    }
+    LanguageAnalyser pr = newLookup(table, parms);
+    try {
+      return run(pr);
+    } finally {
+      Factory.deleteResource(pr);
+    }
+  }
+
+  @Test
+  public void testBatchSameAsSingleKey() throws Exception {
+    List<String> single = runWithBatchMode("words", JdbcLookupBase.BatchMode.NONE);
+    assertEquals(6, single.size());
+    assertEquals(single, runWithBatchMode("words", JdbcLookupBase.BatchMode.IN_LIST));
+    assertEquals(single, runWithBatchMode("words", JdbcLookupBase.BatchMode.H2_TABLE));
+  }
+
+  @Test
+  public void testBatchSameAsSingleKeyIgnoreCase() throws Exception {
+    List<String> single = runWithBatchMode("iwords", JdbcLookupBase.BatchMode.NONE);
+    // every token except mouse matches, dog in any spelling matches two rows
+    assertEquals(13, single.size());
+    assertEquals(single, runWithBatchMode("iwords", JdbcLookupBase.BatchMode.IN_LIST));
+    assertEquals(single, runWithBatchMode("iwords", JdbcLookupBase.BatchMode.H2_TABLE));
+  }
+
+  @Test
+  public void testDuplicateWithOnlyCacheHits() throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("cacheSize", 100);
+    LanguageAnalyser pr = newLookup("words", parms);
+    LanguageAnalyser dup = (LanguageAnalyser) Factory.duplicate(pr);
+    try {
+      List<String> expected = run(pr);
+      assertEquals(6, expected.size());
+      // all keys are in the shared cache now, so the duplicate never 
+      // decodes a row itself
+      assertEquals(expected, run(dup));
+      // changed mappings must be used for cached rows too
+      FeatureMap mappings = Factory.newFeatureMap();
+      mappings.put("POS", "category");
+      mappings.put("FREQ", "freq");
+      dup.setParameterValue("nameMappings", mappings);
+      List<String> renamed = run(dup);
+      assertEquals(6, renamed.size());
+      for (String ann : renamed) {
+        assertTrue(ann, ann.contains(":null/"));
+      }
+    } finally {
+      Factory.deleteResource(dup);
+      Factory.deleteResource(pr);
+    }
+  }
+
+  @Test
+  public void testMutableValuesNotShared() throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("cacheSize", 100);
+    for (JdbcLookup.ProcessingMode mode : JdbcLookup.ProcessingMode.values()) {
+      parms.put("processingMode", mode);
+      LanguageAnalyser pr = newLookup("bwords", parms);
+      Document doc = newDocument();
+      try {
+        runOn(doc, pr);
+        String type = mode == JdbcLookup.ProcessingMode.AddAnnotations ? "LookupData" : "Token";
+        List<Annotation> dogs = new ArrayList<Annotation>();
+        for (Annotation ann : doc.getAnnotations().get(type)) {
+          if ("dog".equals(gate.Utils.stringFor(doc, ann))) {
+            dogs.add(ann);
+          }
+        }
+        assertEquals(mode.toString(), 2, dogs.size());
+        byte[] first = (byte[]) dogs.get(0).getFeatures().get("freq");
+        assertArrayEquals(new byte[] { 1, 2 }, first);
+        first[0] = 42;
+        assertArrayEquals(mode.toString(), new byte[] { 1, 2 }, (byte[]) dogs.get(1).getFeatures().get("freq"));
+      } finally {
+        Factory.deleteResource(doc);
+        Factory.deleteResource(pr);
+      }
+    }
+  }
+
+  private static List<String> runWithPreload(String table, boolean preload) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("preload", preload);
+    parms.put("preloadSqlQuery", "SELECT word, pos, freq FROM " + table);
+    LanguageAnalyser pr = newLookup(table, parms);
+    try {
+      return run(pr);
+    } finally {
+      Factory.deleteResource(pr);
+    }
+  }
+
+  @Test
+  public void testPreloadSameAsQuery() throws Exception {
+    List<String> queried = runWithPreload("words", false);
+    assertEquals(6, queried.size());
+    assertEquals(queried, runWithPreload("words", true));
+  }
+
+  @Test
+  public void testPreloadSameAsQueryIgnoreCase() throws Exception {
+    List<String> queried = runWithPreload("iwords", false);
+    assertEquals(13, queried.size());
+    assertEquals(queried, runWithPreload("iwords", true));
+  }
+
+  @Test
+  public void testAsyncSameAsSync() throws Exception {
+    List<String> sync = runWithBatchMode("iwords", JdbcLookupBase.BatchMode.NONE);
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("asyncLookups", 2);
+    LanguageAnalyser pr = newLookup("iwords", parms);
+    LanguageAnalyser dup = (LanguageAnalyser) Factory.duplicate(pr);
+    try {
+      assertEquals(sync, run(pr));
+      assertEquals(sync, run(dup));
+    } finally {
+      Factory.deleteResource(dup);
+      Factory.deleteResource(pr);
+    }
+  }
+
+  @Test
+  public void testParallelSameAsSync() throws Exception {
+    List<String> sync = runWithBatchMode("iwords", JdbcLookupBase.BatchMode.NONE);
+    // the document has 8 distinct keys, so with at most 2 keys per chunk
+    // they get split into 4 chunks which are looked up in parallel
+    for (JdbcLookupBase.BatchMode mode : new JdbcLookupBase.BatchMode[] {
+      JdbcLookupBase.BatchMode.NONE, JdbcLookupBase.BatchMode.IN_LIST }) {
+      FeatureMap parms = Factory.newFeatureMap();
+      parms.put("batchMode", mode);
+      parms.put("batchSize", 3);
+      parms.put("parallelThreshold", 2);
+      parms.put("parallelChunkSize", 2);
+      LanguageAnalyser pr = newLookup("iwords", parms);
+      LanguageAnalyser dup = (LanguageAnalyser) Factory.duplicate(pr);
+      try {
+        assertEquals(mode.toString(), sync, run(pr));
+        assertEquals(mode.toString(), sync, run(dup));
+      } finally {
+        Factory.deleteResource(dup);
+        Factory.deleteResource(pr);
+      }
+    }
+  }
+}
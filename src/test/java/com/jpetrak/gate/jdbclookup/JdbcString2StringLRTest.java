@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.Factory;
+import gate.FeatureMap;
+import gate.test.GATEPluginTests;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import gate.util.GateRuntimeException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for JdbcString2StringLR, using an in-memory H2 database.
+ *
+ * @author Johann Petrak
+ */
+public class JdbcString2StringLRTest extends GATEPluginTests {
+
+  // a long lock timeout so that a flush waits for a table locked by a test
+  private static final String URL = "jdbc:h2:mem:jdbcstring2stringlrtest;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+
+  private static Connection keepOpen;
+
+  @BeforeClass
+  public static void createTables() throws Exception {
+    Class.forName("org.h2.Driver");
+    keepOpen = DriverManager.getConnection(URL, "", "");
+    Statement st = keepOpen.createStatement();
+    st.execute("CREATE TABLE ikv (`key` VARCHAR_IGNORECASE NOT NULL, `value` VARCHAR)");
+    st.execute("INSERT INTO ikv VALUES ('dog', 'animal'), ('Cat', 'pet'), ('CAT', 'feline')");
+    st.close();
+  }
+
+  @AfterClass
+  public static void dropTables() throws Exception {
+    keepOpen.close();
+  }
+
+  static JdbcString2StringLR newLR(String table, FeatureMap extraParms) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("jdbcUrl", URL);
+    parms.put("dbDirectoryUrl", new File(System.getProperty("java.io.tmpdir")).toURI().toURL());
+    parms.put("tableName", table);
+    if (extraParms != null) {
+      parms.putAll(extraParms);
+    }
+    return (JdbcString2StringLR) Factory.createResource(JdbcString2StringLR.class.getName(), parms);
+  }
+
+  @Test
+  public void testBulkSameAsSingleKeyIgnoreCase() throws Exception {
+    JdbcString2StringLR lr = newLR("ikv", null);
+    try {
+      List<String> keys = Arrays.asList("dog", "Dog", "DOG", "cat", "Cat", "mouse");
+      Map<String, String> expected = new HashMap<String, String>();
+      Set<String> existing = new HashSet<String>();
+      for (String key : keys) {
+        if (lr.contains(key)) {
+          existing.add(key);
+          expected.put(key, lr.get(key));
+        }
+      }
+      // every spelling of dog and cat, but not mouse
+      assertEquals(5, existing.size());
+      assertEquals("animal", expected.get("DOG"));
+      assertEquals(expected, lr.getAll(keys));
+      assertEquals(existing, lr.getExistingKeys(keys));
+      // asked without the spelling stored in the table
+      assertEquals(expected.get("Dog"), lr.getAll(Arrays.asList("Dog")).get("Dog"));
+      assertEquals(new HashSet<String>(Arrays.asList("Dog")), lr.getExistingKeys(Arrays.asList("Dog")));
+    } finally {
+      Factory.deleteResource(lr);
+    }
+  }
+
+  private static FeatureMap writeBehind() {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("writeBehind", true);
+    // only flush when the test says so
+    parms.put("writeBehindFlushInterval", 1000000);
+    parms.put("writeBehindBatchSize", 1000000);
+    return parms;
+  }
+
+  // the value in the table, read directly, or "NONE" if the key is not there
+  private static String inTable(String table, String key) throws Exception {
+    Statement st = keepOpen.createStatement();
+    try {
+      ResultSet rs = st.executeQuery("SELECT `value` FROM " + table + " WHERE `key` = '" + key + "'");
+      return rs.next() ? rs.getString(1) : "NONE";
+    } finally {
+      st.close();
+    }
+  }
+
+  private static void execute(String sql) throws Exception {
+    Statement st = keepOpen.createStatement();
+    st.execute(sql);
+    st.close();
+  }
+
+  @Test
+  public void testReadPendingWrites() throws Exception {
+    JdbcString2StringLR lr = newLR("wbpending", writeBehind());
+    try {
+      lr.put("a", "1");
+      lr.put("b", "2");
+      lr.flush();
+      lr.put("a", "3");
+      lr.remove("b");
+      lr.put("c", null);
+      // nothing written yet
+      assertEquals("1", inTable("wbpending", "a"));
+      assertEquals("2", inTable("wbpending", "b"));
+      assertEquals("NONE", inTable("wbpending", "c"));
+      assertEquals("3", lr.get("a"));
+      assertNull(lr.get("b"));
+      assertFalse(lr.contains("b"));
+      assertTrue(lr.contains("c"));
+      assertNull(lr.get("c"));
+      Map<String, String> expected = new HashMap<String, String>();
+      expected.put("a", "3");
+      expected.put("c", null);
+      assertEquals(expected, lr.getAll(Arrays.asList("a", "b", "c", "d")));
+      assertEquals(expected.keySet(), lr.getExistingKeys(Arrays.asList("a", "b", "c", "d")));
+      lr.flush();
+      assertEquals("3", inTable("wbpending", "a"));
+      assertEquals("NONE", inTable("wbpending", "b"));
+      assertNull(inTable("wbpending", "c"));
+      // one flush of 2 and one of 3 operations
+      assertTrue(lr.getWriteBehindStatistics(), 
+              lr.getWriteBehindStatistics().startsWith("flushes=2, operations=5,"));
+    } finally {
+      Factory.deleteResource(lr);
+    }
+  }
+
+  @Test
+  public void testReadWhileFlushing() throws Exception {
+    final JdbcString2StringLR lr = newLR("wbflushing", writeBehind());
+    try {
+      lr.put("a", "1");
+      lr.remove("b");
+      // lock the table, so the flush has to wait with the operations in 
+      // the flushing map
+      keepOpen.setAutoCommit(false);
+      execute("SELECT * FROM wbflushing FOR UPDATE");
+      final AtomicReference<Exception> error = new AtomicReference<Exception>();
+      Thread flushing = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            lr.flush();
+          } catch (Exception ex) {
+            error.set(ex);
+          }
+        }
+      });
+      try {
+        flushing.start();
+        Thread.sleep(300);
+        assertTrue(flushing.isAlive());
+        assertEquals("1", lr.get("a"));
+        assertFalse(lr.contains("b"));
+        // a new operation while flushing wins over the one being flushed
+        lr.put("a", "2");
+        assertEquals("2", lr.get("a"));
+      } finally {
+        keepOpen.commit();
+        keepOpen.setAutoCommit(true);
+      }
+      flushing.join(10000);
+      assertNull(error.get());
+      assertEquals("1", inTable("wbflushing", "a"));
+      assertEquals("2", lr.get("a"));
+      lr.flush();
+      assertEquals("2", inTable("wbflushing", "a"));
+    } finally {
+      Factory.deleteResource(lr);
+    }
+  }
+
+  @Test
+  public void testFailedFlushKeepsOperations() throws Exception {
+    JdbcString2StringLR lr = newLR("wbfailing", writeBehind());
+    try {
+      lr.put("a", "1");
+      lr.put("b", "2");
+      execute("ALTER TABLE wbfailing RENAME TO wbfailing_away");
+      try {
+        lr.flush();
+        fail("flush should have failed");
+      } catch (GateRuntimeException ex) {
+        // expected
+      } finally {
+        execute("ALTER TABLE wbfailing_away RENAME TO wbfailing");
+      }
+      assertEquals("NONE", inTable("wbfailing", "a"));
+      assertEquals("1", lr.get("a"));
+      // a newer operation is not overwritten by the one kept from the flush
+      lr.put("b", "3");
+      lr.flush();
+      assertEquals("1", inTable("wbfailing", "a"));
+      assertEquals("3", inTable("wbfailing", "b"));
+    } finally {
+      Factory.deleteResource(lr);
+    }
+  }
+
+  @Test
+  public void testFlushOnCleanup() throws Exception {
+    JdbcString2StringLR lr = newLR("wbcleanup", writeBehind());
+    lr.put("a", "1");
+    lr.remove("b");
+    assertEquals("NONE", inTable("wbcleanup", "a"));
+    Factory.deleteResource(lr);
+    assertEquals("1", inTable("wbcleanup", "a"));
+  }
+
+  @Test
+  public void testFullBatchFlushed() throws Exception {
+    FeatureMap parms = writeBehind();
+    parms.put("writeBehindBatchSize", 10);
+    JdbcString2StringLR lr = newLR("wbfull", parms);
+    try {
+      for (int i = 0; i < 10; i++) {
+        lr.put("k" + i, "v" + i);
+      }
+      // the flusher thread writes the full batch right away
+      for (int i = 0; i < 500 && "NONE".equals(inTable("wbfull", "k9")); i++) {
+        Thread.sleep(10);
+      }
+      assertEquals("v9", inTable("wbfull", "k9"));
+    } finally {
+      Factory.deleteResource(lr);
+    }
+  }
+
+  @Test
+  public void testBulkChunks() throws Exception {
+    JdbcString2StringLR lr = newLR("bulk", null);
+    try {
+      int chunk = JdbcString2StringLR.BULK_CHUNK_SIZE;
+      for (int n : new int[] { 1, chunk - 1, chunk, chunk + 1, 2 * chunk + 1 }) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < n; i++) {
+          map.put(n + "-" + i, "v" + i);
+        }
+        lr.putAll(map);
+        List<String> keys = new ArrayList<String>(map.keySet());
+        // the padding repeats the last key, which must not matter
+        keys.add("missing");
+        assertEquals("n=" + n, map, lr.getAll(keys));
+        assertEquals("n=" + n, map.keySet(), lr.getExistingKeys(keys));
+        lr.removeAll(map.keySet());
+        assertTrue("n=" + n, lr.getExistingKeys(keys).isEmpty());
+      }
+    } finally {
+      Factory.deleteResource(lr);
+    }
+  }
+
+  @Test
+  public void testConcurrentUse() throws Exception {
+    for (final boolean wb : new boolean[] { false, true }) {
+      final JdbcString2StringLR lr = newLR(wb ? "concurrentwb" : "concurrent", wb ? writeBehind() : null);
+      try {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+          final int nr = t;
+          threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                for (int i = 0; i < 200; i++) {
+                  String key = nr + "-" + i;
+                  lr.put(key, "v" + i);
+                  if (!("v" + i).equals(lr.get(key))) {
+                    throw new AssertionError("wrong value for " + key);
+                  }
+                }
+              } catch (Throwable ex) {
+                error.set(ex);
+              }
+            }
+          }));
+        }
+        for (Thread t : threads) {
+          t.start();
+        }
+        for (Thread t : threads) {
+          t.join();
+        }
+        assertNull(error.get());
+        lr.flush();
+        for (int t = 0; t < 8; t++) {
+          assertEquals("v199", inTable(wb ? "concurrentwb" : "concurrent", t + "-199"));
+        }
+      } finally {
+        Factory.deleteResource(lr);
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for building, saving and reloading the key filter.
+ *
+ * @author Johann Petrak
+ */
+public class KeyFilterTest {
+
+  private static final String QUERY = "SELECT word FROM kwords";
+
+  private Connection connection;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    Class.forName("org.h2.Driver");
+    connection = DriverManager.getConnection("jdbc:h2:mem:keyfiltertest", "", "");
+    Statement st = connection.createStatement();
+    st.execute("CREATE TABLE kwords (word VARCHAR(100))");
+    st.execute("INSERT INTO kwords VALUES ('dog'), ('Cat'), ('café '), (NULL)");
+    st.close();
+    file = File.createTempFile("keyfiltertest", ".bloom");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connection.close();
+    file.delete();
+  }
+
+  @Test
+  public void testBuildAndLoad() throws Exception {
+    KeyFilter filter = KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    assertTrue(file.exists());
+    assertTrue(filter.mightContain("dog"));
+    assertFalse(filter.mightContain("mouse"));
+    long modified = file.lastModified();
+    KeyFilter loaded = KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    assertEquals(modified, file.lastModified());
+    assertTrue(loaded.mightContain("dog"));
+    assertFalse(loaded.mightContain("mouse"));
+    assertEquals(1, loaded.getQueriesAvoided());
+  }
+
+  @Test
+  public void testDifferentSpellingsAreNotRejected() throws Exception {
+    KeyFilter filter = KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    // a database with a case or accent insensitive collation could match these
+    assertTrue(filter.mightContain("cat"));
+    assertTrue(filter.mightContain("DOG"));
+    assertTrue(filter.mightContain("cafe"));
+  }
+
+  @Test
+  public void testRebuiltWhenRowsChange() throws Exception {
+    KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    Statement st = connection.createStatement();
+    st.execute("INSERT INTO kwords VALUES ('mouse')");
+    st.close();
+    KeyFilter filter = KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    assertTrue(filter.mightContain("mouse"));
+    // the rebuilt filter is saved and used from now on
+    filter = KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    assertTrue(filter.mightContain("mouse"));
+  }
+
+  @Test
+  public void testRebuiltForOtherQuery() throws Exception {
+    KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    KeyFilter filter = KeyFilter.loadOrBuild(file, connection, 
+            "SELECT UPPER(word) || 'X' FROM kwords", 0.0001);
+    assertTrue(filter.mightContain("DOGX"));
+    assertFalse(filter.mightContain("dog"));
+  }
+
+  @Test
+  public void testNotRebuiltWithoutRowCheck() throws Exception {
+    KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001);
+    long modified = file.lastModified();
+    Statement st = connection.createStatement();
+    st.execute("INSERT INTO kwords VALUES ('mouse')");
+    st.close();
+    KeyFilter filter = KeyFilter.loadOrBuild(file, connection, QUERY, 0.0001, false);
+    assertEquals(modified, file.lastModified());
+    assertTrue(filter.mightContain("dog"));
+    assertFalse(filter.mightContain("mouse"));
+    // a different query is still noticed
+    filter = KeyFilter.loadOrBuild(file, connection, QUERY + " WHERE word <> 'dog'", 0.0001, false);
+    assertFalse(filter.mightContain("dog"));
+    assertTrue(filter.mightContain("mouse"));
+  }
+
+  @Test
+  public void testSizedForRows() throws Exception {
+    Statement st = connection.createStatement();
+    st.execute("INSERT INTO kwords SELECT 'w' || X FROM SYSTEM_RANGE(1, 20000)");
+    st.close();
+    KeyFilter filter = KeyFilter.loadOrBuild(file, connection, QUERY, 0.01);
+    assertEquals(0.01, filter.getFalsePositiveRate(), 0.005);
+    for (int i = 1; i <= 20000; i++) {
+      assertTrue(filter.mightContain("w" + i));
+    }
+    int nFalsePositives = 0;
+    for (int i = 1; i <= 20000; i++) {
+      if (filter.mightContain("x" + i)) {
+        nFalsePositives++;
+      }
+    }
+    assertTrue("false positives: " + nFalsePositives, nFalsePositives < 400);
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the segmented LRU lookup cache.
+ *
+ * @author Johann Petrak
+ */
+public class LookupCacheTest {
+
+  private static List<Object> rows(String value) {
+    List<Object> rows = new ArrayList<Object>();
+    rows.add(value);
+    return rows;
+  }
+
+  @Test
+  public void testGetPut() {
+    LookupCache cache = new LookupCache(10, 0, true);
+    assertNull(cache.get("a"));
+    cache.put("a", rows("A"));
+    assertEquals(rows("A"), cache.get("a"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testMisses() {
+    LookupCache cache = new LookupCache(10, 0, true);
+    cache.put("a", new ArrayList<Object>());
+    assertEquals(Collections.emptyList(), cache.get("a"));
+    cache = new LookupCache(10, 0, false);
+    cache.put("a", new ArrayList<Object>());
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testFrequentKeysSurviveScan() {
+    LookupCache cache = new LookupCache(10, 0, true);
+    // a and b are seen twice and get promoted to the protected segment
+    cache.put("a", rows("A"));
+    cache.put("b", rows("B"));
+    assertNotNull(cache.get("a"));
+    assertNotNull(cache.get("b"));
+    // a scan of keys seen only once only evicts probationary keys
+    for (int i = 0; i < 100; i++) {
+      cache.put("k" + i, rows("K" + i));
+    }
+    assertEquals(10, cache.size());
+    assertEquals(92, cache.getEvictions());
+    assertEquals(rows("A"), cache.get("a"));
+    assertEquals(rows("B"), cache.get("b"));
+    assertNull(cache.get("k0"));
+    assertNotNull(cache.get("k99"));
+  }
+
+  @Test
+  public void testProtectedSegmentIsBounded() {
+    LookupCache cache = new LookupCache(10, 0, true);
+    for (int i = 0; i < 10; i++) {
+      cache.put("k" + i, rows("K" + i));
+      assertNotNull(cache.get("k" + i));
+    }
+    // only 8 keys fit into the protected segment, the least recently used
+    // ones got demoted to the probationary segment and are evicted first
+    cache.put("new1", rows("N1"));
+    cache.put("new2", rows("N2"));
+    assertEquals(10, cache.size());
+    assertNull(cache.get("k0"));
+    assertNull(cache.get("k1"));
+    for (int i = 2; i < 10; i++) {
+      assertNotNull(cache.get("k" + i));
+    }
+  }
+
+  @Test
+  public void testSignatureClears() {
+    LookupCache cache = new LookupCache(10, 0, true);
+    cache.checkSignature("q1");
+    cache.put("a", rows("A"));
+    cache.checkSignature("q1");
+    assertNotNull(cache.get("a"));
+    cache.checkSignature("q2");
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testTimeToLive() throws Exception {
+    LookupCache cache = new LookupCache(10, 1, true);
+    cache.put("a", rows("A"));
+    cache.put("b", rows("B"));
+    // b is in the protected segment
+    assertNotNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    Thread.sleep(1100);
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    // a new entry gets a new time to live
+    cache.put("a", rows("A2"));
+    assertEquals(rows("A2"), cache.get("a"));
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the flight recorder events. The tests are compiled for Java 8 
+ * like the plugin, so the recording is done through reflection too. 
+ *
+ * @author Johann Petrak
+ */
+public class LookupEventsTest {
+
+  @Test
+  public void testNotRecordedWithoutRecording() {
+    assertNull(LookupEvents.beginDocumentLookup());
+    assertNull(LookupEvents.beginMapdbOpen());
+    // null events are ignored
+    LookupEvents.commitDocumentLookup(null, "pr", "doc", 1, 1, 1, 1);
+    LookupEvents.commitMapdbOpen(null, "pr", "file", "map", "mode");
+  }
+
+  @Test
+  public void testRecorded() throws Exception {
+    Class<?> recordingClass;
+    try {
+      recordingClass = Class.forName("jdk.jfr.Recording");
+    } catch (ClassNotFoundException ex) {
+      Assume.assumeTrue("JFR not available", false);
+      return;
+    }
+    Object recording = recordingClass.getConstructor().newInstance();
+    recordingClass.getMethod("start").invoke(recording);
+    File file = File.createTempFile("lookupevents", ".jfr");
+    try {
+      Object ev = LookupEvents.beginDocumentLookup();
+      assertNotNull(ev);
+      LookupEvents.commitDocumentLookup(ev, "pr", "doc", 10, 4, 3, 7);
+      ev = LookupEvents.beginMapdbOpen();
+      assertNotNull(ev);
+      LookupEvents.commitMapdbOpen(ev, "pr", "file", "map", "mode");
+      recordingClass.getMethod("stop").invoke(recording);
+      recordingClass.getMethod("dump", Path.class).invoke(recording, file.toPath());
+      List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+              .getMethod("readAllEvents", Path.class).invoke(null, file.toPath());
+      assertEquals(2, events.size());
+      Object event = find(events, LookupEvents.DOCUMENT_LOOKUP);
+      Method getValue = event.getClass().getMethod("getValue", String.class);
+      assertEquals("pr", getValue.invoke(event, "processingResource"));
+      assertEquals("doc", getValue.invoke(event, "document"));
+      assertEquals(10, getValue.invoke(event, "keys"));
+      assertEquals(4, getValue.invoke(event, "distinctKeys"));
+      assertEquals(3, getValue.invoke(event, "hits"));
+      assertEquals(1, getValue.invoke(event, "misses"));
+      assertEquals(7L, getValue.invoke(event, "rows"));
+      event = find(events, LookupEvents.MAPDB_OPEN);
+      assertEquals("file", getValue.invoke(event, "file"));
+      assertEquals("map", getValue.invoke(event, "mapName"));
+      assertEquals("mode", getValue.invoke(event, "loadingMode"));
+    } finally {
+      recordingClass.getMethod("close").invoke(recording);
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testNotRecordedWhenDisabled() throws Exception {
+    Class<?> recordingClass;
+    try {
+      recordingClass = Class.forName("jdk.jfr.Recording");
+    } catch (ClassNotFoundException ex) {
+      Assume.assumeTrue("JFR not available", false);
+      return;
+    }
+    Object recording = recordingClass.getConstructor().newInstance();
+    recordingClass.getMethod("disable", String.class).invoke(recording, LookupEvents.DOCUMENT_LOOKUP);
+    recordingClass.getMethod("start").invoke(recording);
+    try {
+      // the enabled state of the event types is checked on each begin
+      assertNull(LookupEvents.beginDocumentLookup());
+      Object ev = LookupEvents.beginMapdbOpen();
+      assertNotNull(ev);
+      LookupEvents.commitMapdbOpen(ev, "pr", "file", "map", "mode");
+    } finally {
+      recordingClass.getMethod("close").invoke(recording);
+    }
+    assertNull(LookupEvents.beginMapdbOpen());
+  }
+
+  private static Object find(List<?> events, String name) throws Exception {
+    for (Object event : events) {
+      Object type = event.getClass().getMethod("getEventType").invoke(event);
+      if (name.equals(type.getClass().getMethod("getName").invoke(type))) {
+        return event;
+      }
+    }
+    fail("no event " + name);
+    return null;
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the bucket and percentile calculations of the lookup metrics
+ * histogram.
+ *
+ * @author Johann Petrak
+ */
+public class LookupMetricsTest {
+
+  @Test
+  public void testSmallValuesExact() {
+    for (long v = 0; v < 32; v++) {
+      assertEquals(v, LookupMetrics.Histogram.valueOf(LookupMetrics.Histogram.bucketOf(v)));
+    }
+  }
+
+  @Test
+  public void testBucketsOrderedAndRelativeError() {
+    int last = -1;
+    for (long v = 0; v < 1000000; v++) {
+      int bucket = LookupMetrics.Histogram.bucketOf(v);
+      assertTrue("bucket of " + v, bucket == last || bucket == last + 1);
+      last = bucket;
+      long estimate = LookupMetrics.Histogram.valueOf(bucket);
+      assertTrue("value of " + v + " is " + estimate, Math.abs(estimate - v) <= v / 32.0);
+    }
+    for (int shift = 20; shift < 63; shift++) {
+      long v = (1L << shift) + 12345;
+      long estimate = LookupMetrics.Histogram.valueOf(LookupMetrics.Histogram.bucketOf(v));
+      assertTrue("value of " + v + " is " + estimate, Math.abs(estimate - v) <= v / 32.0);
+    }
+    long estimate = LookupMetrics.Histogram.valueOf(LookupMetrics.Histogram.bucketOf(Long.MAX_VALUE));
+    assertTrue("value of max is " + estimate, estimate > 0 && Long.MAX_VALUE - estimate <= Long.MAX_VALUE / 32);
+  }
+
+  @Test
+  public void testBucketValueRoundTrip() {
+    int lastBucket = LookupMetrics.Histogram.bucketOf(Long.MAX_VALUE);
+    for (int bucket = 0; bucket <= lastBucket; bucket++) {
+      assertEquals(bucket, LookupMetrics.Histogram.bucketOf(LookupMetrics.Histogram.valueOf(bucket)));
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    LookupMetrics.Histogram histogram = new LookupMetrics.Histogram();
+    assertEquals(0, histogram.getPercentile(0.5));
+    for (long v = 1; v <= 1000; v++) {
+      histogram.record(v);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500.5, histogram.getMean(), 1e-9);
+    assertEquals(1, histogram.getPercentile(0.0));
+    assertEquals(500, histogram.getPercentile(0.5), 500 / 32.0);
+    assertEquals(990, histogram.getPercentile(0.99), 990 / 32.0);
+    // never above the largest recorded value
+    assertEquals(1000, histogram.getPercentile(1.0));
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(0.99));
+  }
+
+  @Test
+  public void testNegativeCountedAsZero() {
+    LookupMetrics.Histogram histogram = new LookupMetrics.Histogram();
+    histogram.record(-5);
+    histogram.record(7);
+    assertEquals(2, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(0.5));
+    assertEquals(7, histogram.getPercentile(1.0));
+    assertEquals(3.5, histogram.getMean(), 1e-9);
+  }
+}
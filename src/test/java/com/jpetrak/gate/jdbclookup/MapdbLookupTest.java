@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.Annotation;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.LanguageAnalyser;
+import gate.test.GATEPluginTests;
+import gate.util.OffsetComparator;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the MapdbLookup PR, with small MapDB files created for each test.
+ *
+ * @author Johann Petrak
+ */
+public class MapdbLookupTest extends GATEPluginTests {
+
+  private static File dir;
+
+  @BeforeClass
+  public static void createDir() throws Exception {
+    dir = Files.createTempDirectory("mapdblookuptest").toFile();
+  }
+
+  @AfterClass
+  public static void deleteDir() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  // Create a MapDB file with the map "map" and, if config is not null, 
+  // the map "config" with the config entries
+  private static File newFile(String name, Serializer<?> keySerializer, Serializer<?> valueSerializer,
+          Map<?, ?> entries, Map<String, String> config) {
+    File file = new File(dir, name + ".mapdb");
+    DB db = DBMaker.fileDB(file).make();
+    @SuppressWarnings("unchecked")
+    Map<Object, Object> map = (Map<Object, Object>) db.hashMap("map", keySerializer, valueSerializer).create();
+    map.putAll(entries);
+    if (config != null) {
+      db.hashMap("config", Serializer.STRING, Serializer.STRING).create().putAll(config);
+    }
+    db.close();
+    return file;
+  }
+
+  private static LanguageAnalyser newLookup(File file, FeatureMap extraParms) throws Exception {
+    FeatureMap parms = Factory.newFeatureMap();
+    parms.put("mapDbFileUrl", file.toURI().toURL());
+    parms.put("inputAnnotationType", "Token");
+    if (extraParms != null) {
+      parms.putAll(extraParms);
+    }
+    return (LanguageAnalyser) Factory.createResource(MapdbLookup.class.getName(), parms);
+  }
+
+  private static FeatureMap parms(Object... namesAndValues) {
+    FeatureMap fm = Factory.newFeatureMap();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      fm.put(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return fm;
+  }
+
+  // Run the PR over a document with the tokens and return the value 
+  // feature of each token, then delete the PR
+  private static List<Object> lookup(LanguageAnalyser pr, String... tokens) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (String token : tokens) {
+      sb.append(token).append(' ');
+    }
+    Document doc = Factory.newDocument(sb.toString());
+    try {
+      int offset = 0;
+      for (String token : tokens) {
+        doc.getAnnotations().add((long) offset, (long) (offset + token.length()), "Token", Factory.newFeatureMap());
+        offset += token.length() + 1;
+      }
+      JdbcLookupTest.runOn(doc, pr);
+      List<Annotation> anns = new ArrayList<Annotation>(doc.getAnnotations().get("Token"));
+      Collections.sort(anns, new OffsetComparator());
+      List<Object> values = new ArrayList<Object>();
+      for (Annotation ann : anns) {
+        values.add(ann.getFeatures().get("value"));
+      }
+      return values;
+    } finally {
+      Factory.deleteResource(doc);
+      Factory.deleteResource(pr);
+    }
+  }
+
+  private static Throwable rootCause(Throwable t) {
+    while (t.getCause() != null && t.getCause() != t) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  @Test
+  public void testEmbeddingMatrixFloats() throws Exception {
+    Map<String, float[]> entries = new LinkedHashMap<String, float[]>();
+    entries.put("dog", new float[] { 0.5f, -1.0f });
+    entries.put("cat", new float[] { 0.1f, 0.2f });
+    File file = newFile("floats", Serializer.STRING, Serializer.FLOAT_ARRAY, entries, null);
+    List<Object> values = lookup(newLookup(file, parms("loadingMode", MapdbLookup.LoadingMode.EMBEDDING_MATRIX)), 
+            "cat", "mouse", "dog", "cat");
+    // FLOAT_ARRAY values are returned as float[]
+    assertArrayEquals(new float[] { 0.1f, 0.2f }, (float[]) values.get(0), 0.0f);
+    assertNull(values.get(1));
+    assertArrayEquals(new float[] { 0.5f, -1.0f }, (float[]) values.get(2), 0.0f);
+    assertArrayEquals(new float[] { 0.1f, 0.2f }, (float[]) values.get(3), 0.0f);
+    // each annotation has its own copy
+    assertNotSame(values.get(0), values.get(3));
+  }
+
+  @Test
+  public void testEmbeddingMatrixDoubles() throws Exception {
+    Map<String, double[]> entries = new LinkedHashMap<String, double[]>();
+    entries.put("dog", new double[] { 0.1, 0.2, 0.3 });
+    File file = newFile("doubles", Serializer.STRING, Serializer.DOUBLE_ARRAY, entries, null);
+    List<Object> values = lookup(newLookup(file, parms("loadingMode", MapdbLookup.LoadingMode.EMBEDDING_MATRIX)), 
+            "dog", "cat");
+    // stored as floats in the matrix, returned as double[]
+    assertArrayEquals(new double[] { 0.1f, 0.2f, 0.3f }, (double[]) values.get(0), 0.0);
+    assertNull(values.get(1));
+  }
+
+  @Test
+  public void testEmbeddingMatrixEncoded() throws Exception {
+    float[] dog = { 0.5f, -0.3f, 0.7f };
+    float[] cat = { -0.1f, 0.9f, 0.0f };
+    for (VectorEncoding encoding : new VectorEncoding[] { VectorEncoding.FLOAT16, VectorEncoding.INT8 }) {
+      Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+      entries.put("dog", encoding.encode(dog));
+      entries.put("cat", encoding.encode(cat));
+      Map<String, String> config = new LinkedHashMap<String, String>();
+      config.put("valueEncoding", encoding.toString());
+      File file = newFile("encoded" + encoding, Serializer.STRING, Serializer.BYTE_ARRAY, entries, config);
+      // the encoding comes from the config map
+      List<Object> values = lookup(newLookup(file, parms("loadingMode", MapdbLookup.LoadingMode.EMBEDDING_MATRIX)), 
+              "dog", "cat", "mouse");
+      assertArrayEquals(encoding.decodeDoubles(encoding.encode(dog)), (double[]) values.get(0), 0.0);
+      assertArrayEquals(encoding.decodeDoubles(encoding.encode(cat)), (double[]) values.get(1), 0.0);
+      assertNull(values.get(2));
+      // the same values as decoding in the other loading modes
+      List<Object> mapped = lookup(newLookup(file, null), "dog", "cat", "mouse");
+      assertArrayEquals((double[]) mapped.get(0), (double[]) values.get(0), 0.0);
+      assertArrayEquals((double[]) mapped.get(1), (double[]) values.get(1), 0.0);
+      assertNull(mapped.get(2));
+    }
+  }
+
+  @Test
+  public void testEmbeddingMatrixDimensionMismatch() throws Exception {
+    Map<String, float[]> entries = new LinkedHashMap<String, float[]>();
+    entries.put("dog", new float[] { 0.5f, -1.0f });
+    entries.put("cat", new float[] { 0.1f, 0.2f, 0.3f });
+    File file = newFile("mismatch", Serializer.STRING, Serializer.FLOAT_ARRAY, entries, null);
+    try {
+      lookup(newLookup(file, parms("loadingMode", MapdbLookup.LoadingMode.EMBEDDING_MATRIX)), "dog");
+      fail("vectors with different dimensions should not be loaded");
+    } catch (Exception ex) {
+      assertTrue(rootCause(ex).getMessage(), rootCause(ex).getMessage().contains("dimensions"));
+    }
+  }
+
+  @Test
+  public void testAutoSerializersFromConfig() throws Exception {
+    Map<Long, String> entries = new LinkedHashMap<Long, String>();
+    entries.put(42L, "{\"pos\":\"NN\",\"freq\":[1,2]}");
+    entries.put(-7L, "\"text\"");
+    Map<String, String> config = new LinkedHashMap<String, String>();
+    config.put("keySerializer", "LONG");
+    config.put("valueSerializer", "JSON");
+    File file = newFile("autojson", Serializer.LONG, Serializer.STRING, entries, config);
+    List<Object> values = lookup(newLookup(file, null), "42", "-7", "43", "dog", "42", "042");
+    Map<String, Object> expected = new LinkedHashMap<String, Object>();
+    expected.put("pos", "NN");
+    List<Object> freq = new ArrayList<Object>();
+    freq.add(1);
+    freq.add(2);
+    expected.put("freq", freq);
+    assertEquals(expected, values.get(0));
+    assertEquals("text", values.get(1));
+    assertNull(values.get(2));
+    // not a number, so it cannot be a LONG key
+    assertNull(values.get(3));
+    assertEquals(expected, values.get(4));
+    // the key string gets converted to the number
+    assertEquals(expected, values.get(5));
+    // each annotation has its own copy of the parsed value
+    assertNotSame(values.get(0), values.get(4));
+  }
+
+  @Test
+  public void testJsonWithDefaultSerializer() throws Exception {
+    Map<String, String> entries = new LinkedHashMap<String, String>();
+    entries.put("dog", "[\"NN\",10]");
+    File file = newFile("defaultjson", Serializer.STRING, Serializer.JAVA, entries, null);
+    // JAVA is neither STRING nor the DEFAULT serializer
+    try {
+      lookup(newLookup(file, parms("valueSerializer", MapdbLookup.SerializerType.JSON)), "dog");
+      fail("JSON values need the STRING or DEFAULT serializer");
+    } catch (Exception ex) {
+      assertTrue(rootCause(ex).getMessage(), rootCause(ex).getMessage().contains("JSON needs STRING or DEFAULT"));
+    }
+    File defaultFile = new File(dir, "defaultjson2.mapdb");
+    DB db = DBMaker.fileDB(defaultFile).make();
+    @SuppressWarnings("unchecked")
+    Map<Object, Object> map = (Map<Object, Object>) db.hashMap("map").create();
+    map.putAll(entries);
+    db.close();
+    List<Object> values = lookup(newLookup(defaultFile, parms("valueSerializer", MapdbLookup.SerializerType.JSON)), 
+            "dog", "cat");
+    List<Object> expected = new ArrayList<Object>();
+    expected.add("NN");
+    expected.add(10);
+    assertEquals(expected, values.get(0));
+    assertNull(values.get(1));
+  }
+
+  @Test
+  public void testSerializerMismatch() throws Exception {
+    Map<String, String> entries = new LinkedHashMap<String, String>();
+    entries.put("dog", "NN");
+    File file = newFile("serializermismatch", Serializer.STRING, Serializer.STRING, entries, null);
+    for (MapdbLookup.LoadingMode mode : new MapdbLookup.LoadingMode[] {
+      MapdbLookup.LoadingMode.MEMORY_MAPPED, MapdbLookup.LoadingMode.FILE_ONLY }) {
+      try {
+        lookup(newLookup(file, parms("loadingMode", mode, "keySerializer", MapdbLookup.SerializerType.LONG)), "dog");
+        fail("the key serializer should not match");
+      } catch (Exception ex) {
+        assertTrue(rootCause(ex).getMessage(), rootCause(ex).getMessage().contains("key serializer STRING, not LONG"));
+      }
+    }
+    // the same from the config map
+    Map<String, String> config = new LinkedHashMap<String, String>();
+    config.put("valueSerializer", "DOUBLE_ARRAY");
+    File configFile = newFile("configmismatch", Serializer.STRING, Serializer.STRING, entries, config);
+    try {
+      lookup(newLookup(configFile, null), "dog");
+      fail("the value serializer should not match");
+    } catch (Exception ex) {
+      assertTrue(rootCause(ex).getMessage(), rootCause(ex).getMessage().contains("value serializer STRING, not DOUBLE_ARRAY"));
+    }
+    // the parameter is used instead of the config map
+    assertEquals("NN", lookup(newLookup(configFile, parms("valueSerializer", MapdbLookup.SerializerType.STRING)), "dog").get(0));
+    config.put("valueSerializer", "NOSUCH");
+    File unknownFile = newFile("unknownserializer", Serializer.STRING, Serializer.STRING, entries, config);
+    try {
+      lookup(newLookup(unknownFile, null), "dog");
+      fail("the config value serializer is not known");
+    } catch (Exception ex) {
+      assertTrue(rootCause(ex).getMessage(), rootCause(ex).getMessage().contains("Unknown valueSerializer"));
+    }
+  }
+
+  @Test
+  public void testCopyToMemory() throws Exception {
+    // several batches of keys for the parallel copy
+    int n = 2500;
+    Map<Long, String> entries = new LinkedHashMap<Long, String>();
+    for (long i = 0; i < n; i++) {
+      entries.put(i, "v" + i);
+    }
+    Map<String, String> config = new LinkedHashMap<String, String>();
+    config.put("keySerializer", "LONG");
+    File file = newFile("copy", Serializer.LONG, Serializer.STRING, entries, config);
+    String[] tokens = { "0", "999", "1000", "2499", "2500", "x", "1000" };
+    List<Object> expected = new ArrayList<Object>();
+    for (String token : new String[] { "v0", "v999", "v1000", "v2499", null, null, "v1000" }) {
+      expected.add(token);
+    }
+    assertEquals(expected, lookup(newLookup(file, null), tokens));
+    for (int nThreads : new int[] { 1, 4 }) {
+      assertEquals("threads: " + nThreads, expected, lookup(newLookup(file, parms(
+              "loadingMode", MapdbLookup.LoadingMode.COPY2MEMORY, "loadingThreads", nThreads)), tokens));
+    }
+    // the copy can be made with a serializer different from the file's
+    for (int nThreads : new int[] { 1, 4 }) {
+      assertEquals("threads: " + nThreads, expected, lookup(newLookup(file, parms(
+              "loadingMode", MapdbLookup.LoadingMode.COPY2MEMORY, "loadingThreads", nThreads, 
+              "valueSerializer", MapdbLookup.SerializerType.DEFAULT)), tokens));
+    }
+  }
+
+  @Test
+  public void testCopyToMemoryWrongSerializer() throws Exception {
+    Map<Long, String> entries = new LinkedHashMap<Long, String>();
+    for (long i = 0; i < 1500; i++) {
+      entries.put(i, "v" + i);
+    }
+    File file = newFile("copywrong", Serializer.LONG, Serializer.STRING, entries, null);
+    for (int nThreads : new int[] { 1, 4 }) {
+      try {
+        lookup(newLookup(file, parms("loadingMode", MapdbLookup.LoadingMode.COPY2MEMORY, "loadingThreads", nThreads,
+                "valueSerializer", MapdbLookup.SerializerType.DOUBLE_ARRAY)), "1");
+        fail("strings cannot be stored with DOUBLE_ARRAY");
+      } catch (Exception ex) {
+        Throwable cause = ex;
+        while (cause.getCause() != null && !(cause.getMessage() != null && cause.getMessage().contains("cannot be stored"))) {
+          cause = cause.getCause();
+        }
+        assertTrue("threads: " + nThreads + ": " + cause, cause.getMessage().contains("cannot be stored"));
+      }
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import gate.util.GateRuntimeException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the reference counting, failure and release handling of 
+ * MapdbStore, with in-memory MapDB databases.
+ *
+ * @author Johann Petrak
+ */
+public class MapdbStoreTest {
+
+  // opens an in-memory db and counts how often it was called
+  private static class CountingOpener implements MapdbStore.Opener {
+    final AtomicInteger nOpened = new AtomicInteger();
+
+    @Override
+    public void open(MapdbStore store) {
+      nOpened.incrementAndGet();
+      store.db = DBMaker.memoryDB().make();
+    }
+  }
+
+  private static void waitUntilClosed(DB db) throws InterruptedException {
+    for (int i = 0; i < 500 && !db.isClosed(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(db.isClosed());
+  }
+
+  @Test
+  public void testRefCount() throws Exception {
+    CountingOpener opener = new CountingOpener();
+    MapdbStore store = MapdbStore.acquire("refcount", opener);
+    assertSame(store, MapdbStore.acquire("refcount", opener));
+    assertEquals(2, store.getUsers());
+    assertSame(store, store.open());
+    assertSame(store, store.open());
+    assertEquals(1, opener.nOpened.get());
+    DB db = store.db;
+    store.release();
+    assertEquals(1, store.getUsers());
+    assertFalse(db.isClosed());
+    store.release();
+    assertTrue(db.isClosed());
+    // the last release removed it, so this is a new store
+    MapdbStore again = MapdbStore.acquire("refcount", opener);
+    assertNotSame(store, again);
+    again.open();
+    assertEquals(2, opener.nOpened.get());
+    again.release();
+  }
+
+  @Test
+  public void testFailedOpenNotReused() throws Exception {
+    MapdbStore store = MapdbStore.acquire("failing", new MapdbStore.Opener() {
+      @Override
+      public void open(MapdbStore s) {
+        throw new GateRuntimeException("cannot open");
+      }
+    });
+    try {
+      store.open();
+      fail("open should have failed");
+    } catch (GateRuntimeException ex) {
+      assertEquals("cannot open", ex.getMessage());
+    }
+    assertTrue(store.isFailed());
+    // even though the failed store still has a user, the next user gets
+    // a new one which is opened again
+    CountingOpener opener = new CountingOpener();
+    MapdbStore other = MapdbStore.acquire("failing", opener);
+    assertNotSame(store, other);
+    other.open();
+    assertFalse(other.isFailed());
+    assertEquals(1, opener.nOpened.get());
+    store.release();
+    other.release();
+  }
+
+  @Test
+  public void testReleaseBeforeOpening() throws Exception {
+    CountingOpener opener = new CountingOpener();
+    MapdbStore store = MapdbStore.acquire("notopened", opener);
+    store.openInBackground(200, "MapdbStoreTest-open");
+    store.release();
+    Thread.sleep(500);
+    assertEquals(0, opener.nOpened.get());
+    assertTrue(store.isFailed());
+    try {
+      store.open();
+      fail("open should have failed");
+    } catch (GateRuntimeException ex) {
+      // released before it got opened
+    }
+    assertEquals(0, opener.nOpened.get());
+  }
+
+  @Test
+  public void testReleaseWhileOpening() throws Exception {
+    final CountDownLatch opening = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final DB db = DBMaker.memoryDB().make();
+    MapdbStore store = MapdbStore.acquire("opening", new MapdbStore.Opener() {
+      @Override
+      public void open(MapdbStore s) {
+        s.db = db;
+        opening.countDown();
+        try {
+          proceed.await();
+        } catch (InterruptedException ex) {
+          throw new GateRuntimeException(ex);
+        }
+      }
+    });
+    store.openInBackground(0, "MapdbStoreTest-open");
+    assertTrue(opening.await(5, TimeUnit.SECONDS));
+    store.release();
+    assertFalse(db.isClosed());
+    // what the running open returns gets closed when it finishes
+    proceed.countDown();
+    waitUntilClosed(db);
+  }
+
+  @Test
+  public void testReleaseAndWaitWhileOpening() throws Exception {
+    final CountDownLatch opening = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final DB db = DBMaker.memoryDB().make();
+    final MapdbStore store = MapdbStore.acquire("replaced", new MapdbStore.Opener() {
+      @Override
+      public void open(MapdbStore s) {
+        s.db = db;
+        opening.countDown();
+        try {
+          proceed.await();
+        } catch (InterruptedException ex) {
+          throw new GateRuntimeException(ex);
+        }
+      }
+    });
+    store.openInBackground(0, "MapdbStoreTest-open");
+    assertTrue(opening.await(5, TimeUnit.SECONDS));
+    Thread releasing = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        store.releaseAndWait();
+      }
+    });
+    releasing.start();
+    releasing.join(200);
+    assertTrue(releasing.isAlive());
+    assertFalse(db.isClosed());
+    proceed.countDown();
+    releasing.join(5000);
+    assertFalse(releasing.isAlive());
+    // closed by the time releaseAndWait returns
+    assertTrue(db.isClosed());
+  }
+
+  @Test
+  public void testReleaseAndWaitNotOpened() throws Exception {
+    CountingOpener opener = new CountingOpener();
+    MapdbStore store = MapdbStore.acquire("replacednotopened", opener);
+    store.releaseAndWait();
+    assertEquals(0, opener.nOpened.get());
+    assertTrue(store.isFailed());
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015-2016 The University of Sheffield.
+ *
+ * This file is part of gateplugin-JdbcLookup
+ * (see https://github.com/johann-petrak/gateplugin-JdbcLookup)
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation, either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jpetrak.gate.jdbclookup;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the FLOAT16 and INT8 vector encodings.
+ *
+ * @author Johann Petrak
+ */
+public class VectorEncodingTest {
+
+  @Test
+  public void testAllHalfsRoundTrip() {
+    for (int h = 0; h < 0x10000; h++) {
+      float f = VectorEncoding.halfToFloat(h);
+      if (Float.isNaN(f)) {
+        assertTrue(Float.isNaN(VectorEncoding.halfToFloat(VectorEncoding.floatToHalf(f))));
+      } else {
+        assertEquals(Integer.toHexString(h), h, VectorEncoding.floatToHalf(f));
+      }
+    }
+  }
+
+  @Test
+  public void testHalfEdgeCases() {
+    assertEquals(0x0000, VectorEncoding.floatToHalf(0.0f));
+    assertEquals(0x8000, VectorEncoding.floatToHalf(-0.0f));
+    assertEquals(0x3c00, VectorEncoding.floatToHalf(1.0f));
+    assertEquals(0x7bff, VectorEncoding.floatToHalf(65504.0f));
+    // from halfway between the largest half and the next power of two up
+    // the value rounds to infinity
+    assertEquals(0x7bff, VectorEncoding.floatToHalf(65519.0f));
+    assertEquals(0x7c00, VectorEncoding.floatToHalf(65520.0f));
+    assertEquals(0xfc00, VectorEncoding.floatToHalf(Float.NEGATIVE_INFINITY));
+    assertEquals(0x7c00, VectorEncoding.floatToHalf(1e10f));
+    // smallest subnormal, half of it is a tie which goes to zero
+    assertEquals(0x0001, VectorEncoding.floatToHalf(0x1p-24f));
+    assertEquals(0x0000, VectorEncoding.floatToHalf(0x1p-25f));
+    assertEquals(0x0001, VectorEncoding.floatToHalf(0x1.01p-25f));
+    assertEquals(0x8000, VectorEncoding.floatToHalf(-1e-10f));
+    // largest subnormal rounds up into the smallest normal
+    assertEquals(0x0400, VectorEncoding.floatToHalf(0x1.ffep-15f));
+    // ties to even: 1 + 2^-11 is halfway between 1 and the next half
+    assertEquals(0x3c00, VectorEncoding.floatToHalf(1.0f + 0x1p-11f));
+    assertEquals(0x3c02, VectorEncoding.floatToHalf(1.0f + 3 * 0x1p-11f));
+  }
+
+  @Test
+  public void testHalfIsNearest() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      float f = (float) ((random.nextDouble() * 2 - 1) * Math.pow(2, random.nextInt(40) - 25));
+      int h = VectorEncoding.floatToHalf(f);
+      double error = Math.abs(VectorEncoding.halfToFloat(h) - (double) f);
+      // the neighbours with the same sign must not be closer
+      int mag = h & 0x7fff;
+      if (mag > 0) {
+        assertTrue(f + " -> " + h, error <= Math.abs(VectorEncoding.halfToFloat(h - 1) - (double) f));
+      }
+      if (mag < 0x7bff) {
+        assertTrue(f + " -> " + h, error <= Math.abs(VectorEncoding.halfToFloat(h + 1) - (double) f));
+      }
+    }
+  }
+
+  @Test
+  public void testFloat16Vector() {
+    float[] vector = { 0.0f, 1.0f, -2.5f, 0.1f, 1000.0f, -0.001f };
+    byte[] bytes = VectorEncoding.FLOAT16.encode(vector);
+    assertEquals(2 * vector.length, bytes.length);
+    float[] floats = VectorEncoding.FLOAT16.decodeFloats(bytes);
+    double[] doubles = VectorEncoding.FLOAT16.decodeDoubles(bytes);
+    assertEquals(vector.length, floats.length);
+    for (int i = 0; i < vector.length; i++) {
+      // 11 significant bits
+      assertEquals(vector[i], floats[i], Math.abs(vector[i]) * 0x1p-11f);
+      assertEquals(floats[i], doubles[i], 0.0);
+    }
+  }
+
+  @Test
+  public void testInt8Vector() {
+    Random random = new Random(42);
+    double[] vector = new double[300];
+    for (int i = 0; i < vector.length; i++) {
+      vector[i] = random.nextGaussian();
+    }
+    byte[] bytes = VectorEncoding.INT8.encode(vector);
+    assertEquals(4 + vector.length, bytes.length);
+    float[] floats = VectorEncoding.INT8.decodeFloats(bytes);
+    double[] doubles = VectorEncoding.INT8.decodeDoubles(bytes);
+    double maxAbs = 0.0;
+    for (double v : vector) {
+      maxAbs = Math.max(maxAbs, Math.abs(v));
+    }
+    double scale = maxAbs / 127;
+    for (int i = 0; i < vector.length; i++) {
+      assertEquals(vector[i], floats[i], scale / 2 + 1e-6);
+      assertEquals(floats[i], doubles[i], 0.0);
+    }
+  }
+
+  @Test
+  public void testInt8ZeroVector() {
+    byte[] bytes = VectorEncoding.INT8.encode(new float[] { 0.0f, 0.0f });
+    assertArrayEquals(new double[] { 0.0, 0.0 }, VectorEncoding.INT8.decodeDoubles(bytes), 0.0);
+  }
+}